@@ -2,8 +2,10 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.ListIterator;
 
-import org.doube.bonej.Skeletonize3D;
+import org.doube.bonej.SimplePointLUT;
+import org.doube.bonej.SkeletonGraph;
 import org.doube.util.ImageCheck;
+import org.doube.util.NeighbourhoodCursor;
 import org.doube.util.ResultInserter;
 
 import ij.IJ;
@@ -147,6 +149,12 @@ public class Analyze_Skeleton implements PlugInFilter {
 	/** number of trees (skeletons) in the image */
 	private int numOfTrees = 0;
 
+	/** graph of end points, junctions and the branches between them */
+	private SkeletonGraph graph = null;
+
+	/** voxel the last visited branch stopped at, or null */
+	private int[] branchEnd = null;
+
 	/* ----------------------------------------------------------------------- */
 	/**
 	 * This method is called once when the filter is loaded.
@@ -180,36 +188,86 @@ public class Analyze_Skeleton implements PlugInFilter {
 	public void run(ImageProcessor ip) {
 		if (!ImageCheck.checkIJVersion())
 			return;
-		this.width = this.imRef.getWidth();
-		this.height = this.imRef.getHeight();
-		this.depth = this.imRef.getStackSize();
-		this.inputImage = this.imRef.getStack();
-
-		// initialize visit flags
-		this.visited = new boolean[this.width][this.height][this.depth];
 
 		if (!showDialog()) {
 			return;
 		}
 
-		// Prepare data: classify voxels and tag them.
-		if (doPrune) {
-			ImageStack stack1 = tagImage(this.inputImage);
-			this.taggedImage = pruneEndBranches(stack1);
+		analyse(this.imRef, this.doPrune);
+
+		if (this.doPrune) {
 			ImagePlus taggedIP = new ImagePlus("Tagged Pruned Image",
 					this.taggedImage);
 			if (!Interpreter.isBatchMode())
 				taggedIP.show();
-		} else
-			this.taggedImage = tagImage(this.inputImage);
+		}
 
-		// Mark trees
-		ImageStack treeIS = markTrees(this.taggedImage);
 		if (this.numOfTrees == 0) {
 			IJ.showMessage("No trees to analyse.");
 			return;
 		}
 
+		// Show results table
+		showResults();
+
+		// Show tags image.
+		ImagePlus tagIP = new ImagePlus("Tagged skeleton", taggedImage);
+		tagIP.setCalibration(this.imRef.getCalibration());
+
+		// We apply the Fire LUT and reset the min and max to be between 0-255.
+		tagIP.show();
+		IJ.run("Fire");
+		tagIP.resetDisplayRange();
+		tagIP.updateAndDraw();
+
+	} /* end run */
+
+	/* ----------------------------------------------------------------------- */
+	/**
+	 * Tag, optionally prune, and measure a skeleton, without showing any
+	 * results, and return its graph. End points, junctions (groups of
+	 * neighbouring junction voxels) and the starting slab voxels of circular
+	 * trees are the graph's nodes, and the branches that are counted and
+	 * measured for the results table are its edges, so degree statistics and
+	 * branch angles can be worked out from the graph without walking the
+	 * tagged image again.
+	 * 
+	 * @param imp
+	 *            8-bit skeleton image, as made by Skeletonize3D
+	 * @param prune
+	 *            true to prune end branches first
+	 * @return graph of the skeleton, with no nodes if there are no trees
+	 */
+	public SkeletonGraph analyse(ImagePlus imp, boolean prune) {
+		this.imRef = imp;
+		this.VOXEL_WIDTH = imp.getCalibration().pixelWidth;
+		this.VOXEL_HEIGHT = imp.getCalibration().pixelHeight;
+		this.VOXEL_DEPTH = imp.getCalibration().pixelDepth;
+		this.width = imp.getWidth();
+		this.height = imp.getHeight();
+		this.depth = imp.getStackSize();
+		this.inputImage = imp.getStack();
+		this.doPrune = prune;
+		this.listOfEndPoints = new ArrayList<int[]>();
+		this.listOfJunctionVoxels = new ArrayList<int[]>();
+		this.listOfSlabVoxels = new ArrayList<int[]>();
+		this.listOfStartingSlabVoxels = new ArrayList<int[]>();
+		this.graph = new SkeletonGraph(this.width, this.height, this.depth);
+
+		// initialize visit flags
+		this.visited = new boolean[this.width][this.height][this.depth];
+
+		// Prepare data: classify voxels and tag them.
+		if (prune)
+			this.taggedImage = pruneEndBranches(tagImage(this.inputImage));
+		else
+			this.taggedImage = tagImage(this.inputImage);
+
+		// Mark trees
+		ImageStack treeIS = markTrees(this.taggedImage);
+		if (this.numOfTrees == 0)
+			return this.graph;
+
 		// Ask memory for every tree
 		this.numberOfBranches = new int[this.numOfTrees];
 		this.numberOfSlabs = new int[this.numOfTrees];
@@ -242,6 +300,10 @@ public class Analyze_Skeleton implements PlugInFilter {
 		// Calculate number of junctions (group neighbor junction voxels)
 		groupJunctions(treeIS);
 
+		// End points and junctions are the graph's nodes
+		for (int i = 0; i < this.numOfTrees; i++)
+			addNodes(i);
+
 		// Visit skeleton and measure distances.
 		for (int i = 0; i < this.numOfTrees; i++)
 			visitSkeleton(taggedImage, treeIS, i + 1);
@@ -249,20 +311,68 @@ public class Analyze_Skeleton implements PlugInFilter {
 		// Calculate triple points (junctions with exactly 3 branches)
 		calculateTriplePoints();
 
-		// Show results table
-		showResults();
+		return this.graph;
+	} /* end analyse */
 
-		// Show tags image.
-		ImagePlus tagIP = new ImagePlus("Tagged skeleton", taggedImage);
-		tagIP.setCalibration(this.imRef.getCalibration());
-
-		// We apply the Fire LUT and reset the min and max to be between 0-255.
-		tagIP.show();
-		IJ.run("Fire");
-		tagIP.resetDisplayRange();
-		tagIP.updateAndDraw();
+	/* ----------------------------------------------------------------------- */
+	/**
+	 * Add a tree's end points and junctions to the graph
+	 * 
+	 * @param iTree
+	 *            tree index
+	 */
+	private void addNodes(int iTree) {
+		for (int i = 0; i < this.endPointsTree[iTree].size(); i++) {
+			final int[] p = this.endPointsTree[iTree].get(i);
+			this.graph.addNode(SkeletonGraph.END_POINT, iTree);
+			this.graph.addNodeVoxel(p[0], p[1], p[2]);
+		}
+		for (int j = 0; j < this.listOfSingleJunctions[iTree].size(); j++) {
+			ArrayList<int[]> groupOfJunctions = this.listOfSingleJunctions[iTree]
+					.get(j);
+			this.graph.addNode(SkeletonGraph.JUNCTION, iTree);
+			for (int i = 0; i < groupOfJunctions.size(); i++) {
+				final int[] p = groupOfJunctions.get(i);
+				this.graph.addNodeVoxel(p[0], p[1], p[2]);
+			}
+		}
+	}
 
-	} /* end run */
+	/* ----------------------------------------------------------------------- */
+	/**
+	 * Find the node that the last visited branch ends at: the end point or
+	 * junction it stopped at, or else the branch's first voxel if that is a
+	 * node, or else a node next to its last slab voxel. A branch that comes
+	 * back to where it started ends at its source.
+	 * 
+	 * @param source
+	 *            node the branch was walked from
+	 * @param startingPoint
+	 *            first voxel the branch was visited from
+	 * @return target node
+	 */
+	private int getBranchTarget(int source, int[] startingPoint) {
+		int node;
+		if (this.branchEnd != null) {
+			node = this.graph.findNode(this.branchEnd[0], this.branchEnd[1],
+					this.branchEnd[2]);
+			if (node >= 0)
+				return node;
+		}
+		node = this.graph.findNode(startingPoint[0], startingPoint[1],
+				startingPoint[2]);
+		if (node >= 0 && node != source)
+			return node;
+		final int[] p = this.auxPoint;
+		for (int z = -1; z < 2; z++)
+			for (int y = -1; y < 2; y++)
+				for (int x = -1; x < 2; x++) {
+					node = this.graph.findNode(p[0] + x, p[1] + y, p[2] + z);
+					if (node >= 0 && node != source)
+						return node;
+				}
+		return source;
+	}
 
 	/* ----------------------------------------------------------------------- */
 	/**
@@ -371,6 +481,10 @@ public class Analyze_Skeleton implements PlugInFilter {
 			this.branchLength[iTree] += length;
 			double[] lA = { length, 0 }; // 2nd element is the bin.
 			this.listOfBranchLengths.add(lA);
+			final int source = this.graph.findNode(endPointCoord[0],
+					endPointCoord[1], endPointCoord[2]);
+			this.graph.addEdge(source, getBranchTarget(source, endPointCoord),
+					iTree, length);
 
 			// update maximum branch length
 			if (length > this.maximumBranchLength[iTree]) {
@@ -381,9 +495,7 @@ public class Analyze_Skeleton implements PlugInFilter {
 		}
 
 		// Now visit branches starting at junctions
-		Skeletonize3D sk = new Skeletonize3D();
-		int[] LUT = new int[256];
-		sk.fillEulerLUT(LUT);
+		NeighbourhoodCursor cursor = new NeighbourhoodCursor(this.taggedImage);
 
 		for (int j = 0; j < this.listOfSingleJunctions[iTree].size(); j++) {
 			ArrayList<int[]> groupOfJunctions = this.listOfSingleJunctions[iTree]
@@ -405,7 +517,7 @@ public class Analyze_Skeleton implements PlugInFilter {
 
 			for (int i = 0; i < groupOfJunctions.size(); i++) {
 				final int[] junctionCoord = groupOfJunctions.get(i);
-				if (isJunctionMiddle(this.taggedImage, junctionCoord, LUT, sk))
+				if (isJunctionMiddle(cursor, junctionCoord))
 					continue;
 
 				// Mark junction as visited
@@ -431,6 +543,10 @@ public class Analyze_Skeleton implements PlugInFilter {
 					this.numberOfBranches[iTree]++;
 					double[] lA = { length, 0 }; // 2nd element is the bin.
 					this.listOfBranchLengths.add(lA);
+					final int source = this.graph.findNode(junctionCoord[0],
+							junctionCoord[1], junctionCoord[2]);
+					this.graph.addEdge(source, getBranchTarget(source,
+							nextPoint), iTree, length);
 					// update maximum branch length
 					if (length > this.maximumBranchLength[iTree]) {
 						this.maximumBranchLength[iTree] = length;
@@ -458,6 +574,15 @@ public class Analyze_Skeleton implements PlugInFilter {
 				double[] lA = { length, 0 }; // 2nd element is the bin.
 				this.listOfBranchLengths.add(lA);
 
+				// the tree has no end points or junctions, so its starting
+				// slab is its node
+				final int source = this.graph.addNode(SkeletonGraph.SLAB,
+						iTree);
+				this.graph.addNodeVoxel(startCoord[0], startCoord[1],
+						startCoord[2]);
+				this.graph.addEdge(source, getBranchTarget(source, startCoord),
+						iTree, length);
+
 				if (length > this.maximumBranchLength[iTree]) {
 					this.maximumBranchLength[iTree] = length;
 					this.initialPoint[iTree] = startCoord;
@@ -724,6 +849,7 @@ public class Analyze_Skeleton implements PlugInFilter {
 	 */
 	private double visitBranch(int[] startingPoint, int iTree) {
 		double length = 0;
+		this.branchEnd = null;
 
 		// mark starting point as visited
 		setVisited(startingPoint, true);
@@ -762,10 +888,13 @@ public class Analyze_Skeleton implements PlugInFilter {
 
 		if (isSlab(startingPoint)) {
 			this.numberOfSlabs[iTree]++;
+			this.graph.addSlab(startingPoint[0], startingPoint[1],
+					startingPoint[2]);
 		}
 		// We visit the branch until we find an end point or a junction
 		while (nextPoint != null && isSlab(nextPoint)) {
 			this.numberOfSlabs[iTree]++;
+			this.graph.addSlab(nextPoint[0], nextPoint[1], nextPoint[2]);
 
 			// Add length
 			length += calculateDistance(previousPoint, nextPoint);
@@ -779,6 +908,7 @@ public class Analyze_Skeleton implements PlugInFilter {
 		}
 
 		if (nextPoint != null) {
+			this.branchEnd = nextPoint;
 			// Add distance to last point
 			length += calculateDistance(previousPoint, nextPoint);
 
@@ -942,6 +1072,7 @@ public class Analyze_Skeleton implements PlugInFilter {
 	 * junctions with exactly 3 branches.
 	 */
 	private void calculateTriplePoints() {
+		NeighbourhoodCursor cursor = new NeighbourhoodCursor(this.taggedImage);
 		for (int iTree = 0; iTree < this.numOfTrees; iTree++) {
 			// Visit the groups of junction voxels
 			for (int i = 0; i < this.listOfSingleJunctions[iTree].size(); i++) {
@@ -956,10 +1087,9 @@ public class Analyze_Skeleton implements PlugInFilter {
 					int[] pj = groupOfJunctions.get(j);
 
 					// Get neighbors and check the slabs
-					byte[] neighborhood = this.getNeighborhood(
-							this.taggedImage, pj[0], pj[1], pj[2]);
+					cursor.moveTo(pj[0], pj[1], pj[2]);
 					for (int k = 0; k < 27; k++)
-						if (neighborhood[k] == Analyze_Skeleton.SLAB)
+						if (cursor.get(k) == Analyze_Skeleton.SLAB)
 							nSlab++;
 				}
 				// If the junction has only 3 slab neighbors, then it is a
@@ -1211,14 +1341,16 @@ public class Analyze_Skeleton implements PlugInFilter {
 				inputImage2.getColorModel());
 
 		// Tag voxels
+		NeighbourhoodCursor cursor = new NeighbourhoodCursor(inputImage2);
 		for (int z = 0; z < depth; z++) {
 			outputImage.addSlice(inputImage2.getSliceLabel(z + 1),
 					new ByteProcessor(this.width, this.height));
+			final byte[] pixels = (byte[]) inputImage2.getPixels(z + 1);
 			for (int x = 0; x < width; x++)
 				for (int y = 0; y < height; y++) {
-					if (getPixel(inputImage2, x, y, z) != 0) {
-						int numOfNeighbors = getNumberOfNeighbors(inputImage2,
-								x, y, z);
+					if (pixels[x + y * this.width] != 0) {
+						int numOfNeighbors = cursor.getNumberOfNeighbors(x, y,
+								z);
 						if (numOfNeighbors < 2) {
 							setPixel(outputImage, x, y, z,
 									Analyze_Skeleton.END_POINT);
@@ -1251,10 +1383,7 @@ public class Analyze_Skeleton implements PlugInFilter {
 	 * 
 	 */
 	private ImageStack pruneEndBranches(ImageStack stack) {
-		// Prepare Euler LUT [Lee94]
-		Skeletonize3D sk = new Skeletonize3D();
-		int eulerLUT[] = new int[256];
-		sk.fillEulerLUT(eulerLUT);
+		NeighbourhoodCursor cursor = new NeighbourhoodCursor(stack);
 		int endPoints = this.listOfEndPoints.size();
 		prune: while (!this.listOfEndPoints.isEmpty()) {
 			IJ.showStatus("Pruning end branches...");
@@ -1274,20 +1403,18 @@ public class Analyze_Skeleton implements PlugInFilter {
 						iteri.remove(); // note this is iteri not iterk
 						// Check if point is Euler invariant, simple and not an
 						// endpoint
-						byte[] neighbors = this.getNeighborhood(stack, x, y, z);
-						byte nNeighbors = 0;
-						for (int l = 0; l < 27; l++) {
-							if (neighbors[l] > 0) {
-								neighbors[l] = 1;
-								nNeighbors++;
-							}
-						}
-						if (sk.isEulerInvariant(neighbors, eulerLUT)
-								&& sk.isSimplePoint(neighbors)
+						final int neighbors = cursor.moveTo(x, y, z);
+						final int key = SimplePointLUT.getKey(neighbors);
+						// neighbours, counting the point itself
+						final int nNeighbors = SimplePointLUT
+								.getNumberOfNeighbors(key)
+								+ ((neighbors >> 13) & 1);
+						if (SimplePointLUT.isEulerInvariant(key)
+								&& SimplePointLUT.isSimplePoint(key)
 								&& nNeighbors > 2) {
 							// delete the junction point
 							iterk.remove();
-							setPixel(stack, x, y, z, (byte) 0);
+							cursor.set(x, y, z, (byte) 0);
 						}
 						continue prune;
 					}
@@ -1296,9 +1423,10 @@ public class Analyze_Skeleton implements PlugInFilter {
 				// if the endPoint has only one neighbour, move the endpoint to
 				// the
 				// neighbours position
-				if (getNumberOfNeighbors(stack, x, y, z) == 1) {
+				final int nNeighbors = cursor.getNumberOfNeighbors(x, y, z);
+				if (nNeighbors == 1) {
 					// remove the end voxel from the tagged image
-					setPixel(stack, x, y, z, (byte) 0);
+					cursor.set(x, y, z, (byte) 0);
 
 					// remove end voxel from list of slabs
 					ListIterator<int[]> iterj = this.listOfSlabVoxels
@@ -1312,133 +1440,24 @@ public class Analyze_Skeleton implements PlugInFilter {
 						}
 					}
 					// get the values of the neighbors
-					byte[] nHood = getNeighborhood(stack, x, y, z);
+					final int nHood = cursor.moveTo(x, y, z);
 					// get the coordinates of the single neighbor
-					for (int p = 0; p < 27; p++) {
-						if (nHood[p] != 0) {
-							// translate the neighbourhood index
-							// into new endpoint coordinates
-							switch (p) {
-							case 0:
-								x -= 1;
-								y -= 1;
-								z -= 1;
-								break;
-							case 1:
-								y -= 1;
-								z -= 1;
-								break;
-							case 2:
-								x += 1;
-								y -= 1;
-								z -= 1;
-								break;
-							case 3:
-								x -= 1;
-								z -= 1;
-								break;
-							case 4:
-								z -= 1;
-								break;
-							case 5:
-								x += 1;
-								z -= 1;
-								break;
-							case 6:
-								x -= 1;
-								y += 1;
-								z -= 1;
-								break;
-							case 7:
-								y += 1;
-								z -= 1;
-								break;
-							case 8:
-								x += 1;
-								y += 1;
-								z -= 1;
-								break;
-							case 9:
-								x -= 1;
-								y -= 1;
-								break;
-							case 10:
-								y -= 1;
-								break;
-							case 11:
-								x += 1;
-								y -= 1;
-								break;
-							case 12:
-								x -= 1;
-								break;
-							case 13:
-								break;
-							case 14:
-								x += 1;
-								break;
-							case 15:
-								x -= 1;
-								y += 1;
-								break;
-							case 16:
-								y += 1;
-								break;
-							case 17:
-								x += 1;
-								y += 1;
-								break;
-							case 18:
-								x -= 1;
-								y -= 1;
-								z += 1;
-								break;
-							case 19:
-								y -= 1;
-								z += 1;
-								break;
-							case 20:
-								x += 1;
-								y -= 1;
-								z += 1;
-								break;
-							case 21:
-								x -= 1;
-								z += 1;
-								break;
-							case 22:
-								z += 1;
-								break;
-							case 23:
-								x += 1;
-								z += 1;
-								break;
-							case 24:
-								x -= 1;
-								y += 1;
-								z += 1;
-								break;
-							case 25:
-								y += 1;
-								z += 1;
-								break;
-							case 26:
-								x += 1;
-								y += 1;
-								z += 1;
-								break;
-							}
-							endPoint[0] = x;
-							endPoint[1] = y;
-							endPoint[2] = z;
-							// if the one neighbour is not an endPoint already
-							// move the endPoint to the neighbour
-							if (getPixel(stack, x, y, z) != END_POINT)
-								iteri.set(endPoint);
-							break;
-						}
+					if (nHood != 0) {
+						// translate the neighbourhood index
+						// into new endpoint coordinates
+						final int p = Integer.numberOfTrailingZeros(nHood);
+						x += p % 3 - 1;
+						y += (p / 3) % 3 - 1;
+						z += p / 9 - 1;
+						endPoint[0] = x;
+						endPoint[1] = y;
+						endPoint[2] = z;
+						// if the one neighbour is not an endPoint already
+						// move the endPoint to the neighbour
+						if (getPixel(stack, x, y, z) != END_POINT)
+							iteri.set(endPoint);
 					}
-				} else if (getNumberOfNeighbors(stack, x, y, z) > 1) {
+				} else if (nNeighbors > 1) {
 					iteri.remove();
 				} else {
 					// number of neighbours = 0
@@ -1469,96 +1488,15 @@ public class Analyze_Skeleton implements PlugInFilter {
 		while (it.hasNext()) {
 			int[] slab = it.next();
 			int x = slab[0], y = slab[1], z = slab[2];
-			if (getNumberOfNeighbors(stack, x, y, z) == 0) {
+			if (cursor.getNumberOfNeighbors(x, y, z) == 0) {
 				it.remove();
 				this.listOfEndPoints.add(slab);
-				setPixel(stack, x, y, z, END_POINT);
+				cursor.set(x, y, z, END_POINT);
 			}
 		}
 		return stack;
 	}
 
-	/* ----------------------------------------------------------------------- */
-	/**
-	 * Get number of neighbors of a voxel in a 3D image (0 border conditions)
-	 * 
-	 * @param image
-	 *            3D image (ImageStack)
-	 * @param x
-	 *            x- coordinate
-	 * @param y
-	 *            y- coordinate
-	 * @param z
-	 *            z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding 27-pixels neighborhood (0 if out of image)
-	 */
-	private int getNumberOfNeighbors(ImageStack image, int x, int y, int z) {
-		int n = 0;
-		byte[] neighborhood = getNeighborhood(image, x, y, z);
-
-		for (int i = 0; i < 27; i++)
-			if (neighborhood[i] != 0)
-				n++;
-		// We return n-1 because neighborhood includes the actual voxel.
-		return (n - 1);
-	}
-
-	/* ----------------------------------------------------------------------- */
-	/**
-	 * Get neighborhood of a pixel in a 3D image (0 border conditions)
-	 * 
-	 * @param image
-	 *            3D image (ImageStack)
-	 * @param x
-	 *            x- coordinate
-	 * @param y
-	 *            y- coordinate
-	 * @param z
-	 *            z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding 27-pixels neighborhood (0 if out of image)
-	 */
-	private byte[] getNeighborhood(ImageStack image, int x, int y, int z) {
-		byte[] neighborhood = new byte[27];
-
-		neighborhood[0] = getPixel(image, x - 1, y - 1, z - 1);
-		neighborhood[1] = getPixel(image, x, y - 1, z - 1);
-		neighborhood[2] = getPixel(image, x + 1, y - 1, z - 1);
-
-		neighborhood[3] = getPixel(image, x - 1, y, z - 1);
-		neighborhood[4] = getPixel(image, x, y, z - 1);
-		neighborhood[5] = getPixel(image, x + 1, y, z - 1);
-
-		neighborhood[6] = getPixel(image, x - 1, y + 1, z - 1);
-		neighborhood[7] = getPixel(image, x, y + 1, z - 1);
-		neighborhood[8] = getPixel(image, x + 1, y + 1, z - 1);
-
-		neighborhood[9] = getPixel(image, x - 1, y - 1, z);
-		neighborhood[10] = getPixel(image, x, y - 1, z);
-		neighborhood[11] = getPixel(image, x + 1, y - 1, z);
-
-		neighborhood[12] = getPixel(image, x - 1, y, z);
-		neighborhood[13] = getPixel(image, x, y, z);
-		neighborhood[14] = getPixel(image, x + 1, y, z);
-
-		neighborhood[15] = getPixel(image, x - 1, y + 1, z);
-		neighborhood[16] = getPixel(image, x, y + 1, z);
-		neighborhood[17] = getPixel(image, x + 1, y + 1, z);
-
-		neighborhood[18] = getPixel(image, x - 1, y - 1, z + 1);
-		neighborhood[19] = getPixel(image, x, y - 1, z + 1);
-		neighborhood[20] = getPixel(image, x + 1, y - 1, z + 1);
-
-		neighborhood[21] = getPixel(image, x - 1, y, z + 1);
-		neighborhood[22] = getPixel(image, x, y, z + 1);
-		neighborhood[23] = getPixel(image, x + 1, y, z + 1);
-
-		neighborhood[24] = getPixel(image, x - 1, y + 1, z + 1);
-		neighborhood[25] = getPixel(image, x, y + 1, z + 1);
-		neighborhood[26] = getPixel(image, x + 1, y + 1, z + 1);
-
-		return neighborhood;
-	} /* end getNeighborhood */
-
 	/* ----------------------------------------------------------------------- */
 	/**
 	 * Get pixel in 3D image (0 border conditions)
@@ -1673,16 +1611,16 @@ public class Analyze_Skeleton implements PlugInFilter {
 			((short[]) image.getPixels(z + 1))[x + y * this.width] = value;
 	} /* end getPixel */
 
-	private boolean isJunctionMiddle(ImageStack image, int[] junctionCoord,
-			int[] LUT, Skeletonize3D sk) {
+	private boolean isJunctionMiddle(NeighbourhoodCursor cursor,
+			int[] junctionCoord) {
 		// filter out non-branching junction voxels by marking them visited
 
 		int x = junctionCoord[0], y = junctionCoord[1], z = junctionCoord[2];
 
-		byte[] neighbors = getNeighborhood(this.taggedImage, x, y, z);
+		final int neighbors = cursor.moveTo(x, y, z);
 
 		for (int j = 0; j < 27; j++) {
-			switch (neighbors[j]) {
+			switch (cursor.get(j)) {
 			case SLAB:
 				return false;
 			case END_POINT:
@@ -1695,11 +1633,7 @@ public class Analyze_Skeleton implements PlugInFilter {
 		// Junction voxel is surrounded by 0's or junction voxels
 		// so see if it is really a branch stub and not in the middle of a
 		// junction
-		for (int j = 0; j < 27; j++) {
-			if (neighbors[j] > 0)
-				neighbors[j] = 1;
-		}
-		if (!sk.isEulerInvariant(neighbors, LUT)) {
+		if (!SimplePointLUT.isEulerInvariant(SimplePointLUT.getKey(neighbors))) {
 			// junction voxels in the middle of a junction shouldn't contribute
 			// to
 			// branches
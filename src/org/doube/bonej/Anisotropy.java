@@ -20,7 +20,6 @@ package org.doube.bonej;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.process.ImageProcessor;
 import ij.plugin.PlugIn;
 import ij.gui.*;
@@ -43,6 +42,7 @@ import ij3d.Content;
 
 import org.doube.jama.Matrix;
 import org.doube.jama.EigenvalueDecomposition;
+import org.doube.util.BinaryVolume;
 import org.doube.util.ImageCheck;
 import org.doube.util.ResultInserter;
 
@@ -202,6 +202,9 @@ public class Anisotropy implements PlugIn {
 			plotImage = createGraph(imp.getTitle());
 			plotImage.show();
 		}
+		// pack the foreground once, to be sampled at every site
+		BinaryVolume volume = new BinaryVolume(imp.getImageStack());
+		Calibration cal = imp.getCalibration();
 		Vector<Double> anisotropyHistory = new Vector<Double>();
 		Vector<Double> errorHistory = new Vector<Double>();
 		double[][] emptyArray = new double[3][3];
@@ -220,8 +223,8 @@ public class Anisotropy implements PlugIn {
 			IJ.showStatus("Counting intercepts at site " + s
 					+ ", anisotropy = " + IJ.d2s(anisotropy, 5) + ", CV = "
 					+ IJ.d2s(variance, 3));
-			interceptCounts = countIntercepts(imp, centroid, vectorList,
-					nVectors, radius, vectorSampling);
+			interceptCounts = countIntercepts(volume, cal, centroid,
+					vectorList, nVectors, radius, vectorSampling);
 
 			// add intercepts to vectors
 			for (int i = 0; i < nVectors; i++) {
@@ -407,6 +410,10 @@ public class Anisotropy implements PlugIn {
 	 * </p>
 	 * 
 	 * 
+	 * @param volume
+	 *            binary volume holding the image's foreground
+	 * @param cal
+	 *            the image's calibration
 	 * @param centroid
 	 *            3-element array containing calibrated 3D centroid location
 	 * @param vectorList
@@ -419,59 +426,21 @@ public class Anisotropy implements PlugIn {
 	 *            distance between tests along each vector
 	 * @return 1D array containing a count of intercepts for each vector
 	 */
-	private double[] countIntercepts(ImagePlus imp, double[] centroid,
-			double[][] vectorList, int nVectors, double radius,
-			double vectorSampling) {
-		Calibration cal = imp.getCalibration();
+	private double[] countIntercepts(BinaryVolume volume, Calibration cal,
+			double[] centroid, double[][] vectorList, int nVectors,
+			double radius, double vectorSampling) {
 		final double vW = cal.pixelWidth;
 		final double vH = cal.pixelHeight;
 		final double vD = cal.pixelDepth;
 
-		final double cX = centroid[0];
-		final double cY = centroid[1];
-		final double cZ = centroid[2];
-
-		final int width = imp.getWidth();
+		// centroid position in pixels; samples are read straight from the
+		// volume, so no work array has to be copied out around it
+		final int cX = (int) Math.round(centroid[0] / vW);
+		final int cY = (int) Math.round(centroid[1] / vH);
+		final int cZ = (int) Math.round(centroid[2] / vD);
 
 		boolean lastPos, thisPos;
 
-		// create a work array containing pixels +- 1 radius from centroid
-		final int w = (int) Math.round(radius / vW);
-		final int h = (int) Math.round(radius / vH);
-		final int d = (int) Math.round(radius / vD);
-		byte[] workArray = new byte[(2 * w + 1) * (2 * h + 1) * (2 * d + 1)];
-
-		final int startCol = (int) Math.round(cX / vW) - w;
-		final int endCol = (int) Math.round(cX / vW) + w;
-		final int startRow = (int) Math.round(cY / vH) - h;
-		final int endRow = (int) Math.round(cY / vH) + h;
-		final int startSlice = (int) Math.round(cZ / vD) - d;
-		final int endSlice = (int) Math.round(cZ / vD) + d;
-
-		final ImageStack stack = imp.getImageStack();
-		// fill the work array
-		int i = 0;
-		for (int s = startSlice; s <= endSlice; s++) {
-			final byte[] slicePixels = (byte[]) stack.getPixels(s + 1);
-			for (int r = startRow; r <= endRow; r++) {
-				final int index = width * r;
-				for (int c = startCol; c <= endCol; c++) {
-					workArray[i] = slicePixels[index + c];
-					i++;
-				}
-			}
-		}
-
-		// centroid position in workArray is at (w+1, h+1, d+1), subtract one
-		// for starting at 0.
-		final int a = (2 * w + 1);
-		final int b = a * (2 * h + 1);
-
-		final int wVz = b * d;
-		final int wVy = a * h;
-		final int wVx = w;
-		final int centroidIndex = wVz + wVy + wVx;
-
 		// store an intercept count for each vector
 		double[] interceptCounts = new double[nVectors];
 
@@ -491,31 +460,20 @@ public class Anisotropy implements PlugIn {
 			final int yS = (int) Math.round(radVh * vY);
 			final int zS = (int) Math.round(radVd * vZ);
 
-			final int startIndex = centroidIndex + b * zS + a * yS + xS;
-
-			if (workArray[startIndex] == 0) {
-				lastPos = true;
-			} else {
-				lastPos = false;
-			}
+			lastPos = !volume.get(cX + xS, cY + yS, cZ + zS);
 
 			final double vXvW = vX / vW;
 			final double vYvH = vY / vH;
 			final double vZvD = vZ / vD;
 
 			for (double pos = -radius; pos <= radius; pos += vectorSampling) {
-				// find the index of the voxel that the sample falls within
-				// offset from centroid
+				// find the voxel that the sample falls within, offset from
+				// centroid
 				final int x = (int) Math.round(pos * vXvW);
 				final int y = (int) Math.round(pos * vYvH);
 				final int z = (int) Math.round(pos * vZvD);
-				final int testIndex = centroidIndex + b * z + a * y + x;
 				// determine if the voxel is thresholded or not
-				if (workArray[testIndex] == 0) {
-					thisPos = true;
-				} else {
-					thisPos = false;
-				}
+				thisPos = !volume.get(cX + x, cY + y, cZ + z);
 				// if this pos is not equal to last pos then an interface is
 				// counted
 				if (thisPos != lastPos) {
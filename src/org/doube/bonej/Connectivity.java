@@ -18,15 +18,20 @@ package org.doube.bonej;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.doube.util.ImageCheck;
 import org.doube.util.ResultInserter;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
 import ij.macro.Interpreter;
 import ij.measure.Calibration;
+import ij.measure.ResultsTable;
 
 /**
  * <p>
@@ -52,6 +57,11 @@ import ij.measure.Calibration;
  * <li>Calculate connectivity as &#946;<sub>1</sub> = 1 - &#916;&#967;</li>
  * <li>Calculate connectivity density as &#946;<sub>1</sub> / V</li>
  * </ol>
+ * <p>
+ * Run with the argument "map" to map connectivity density over a grid of
+ * sub-volumes instead (see {@link #getLocalDeltaChi(ImagePlus, int, int, int)}
+ * ).
+ * </p>
  * 
  * @author Michael Doube
  * 
@@ -103,10 +113,17 @@ public class Connectivity implements PlugIn {
 			IJ.error("Connectivity requires a binary image.");
 			return;
 		}
+		if (arg.equals("map")) {
+			showLocalConnDensity(imp);
+			return;
+		}
+
+		// Euler sum and edge correction in one set of threads
+		long[] counts = getEulerCounts(imp, true, true);
 
-		double sumEuler = getSumEuler(imp);
+		double sumEuler = counts[0] / 8.0;
 
-		double deltaChi = getDeltaChi(imp, sumEuler);
+		double deltaChi = sumEuler - getEdgeCorrection(counts);
 
 		double connectivity = getConnectivity(deltaChi);
 
@@ -129,6 +146,258 @@ public class Connectivity implements PlugIn {
 		return;
 	}
 
+	/**
+	 * Ask for a grid, then show the connectivity density of each of its cells
+	 * as an image with one pixel per cell and as a table
+	 * 
+	 * @param imp
+	 *            Binary ImagePlus
+	 */
+	private void showLocalConnDensity(ImagePlus imp) {
+		GenericDialog gd = new GenericDialog("Local Connectivity");
+		gd.addNumericField("Cell_width", 32, 0, 5, "pixels");
+		gd.addNumericField("Cell_height", 32, 0, 5, "pixels");
+		gd.addNumericField("Cell_depth", 32, 0, 5, "slices");
+		gd.addNumericField("Window", 1, 0, 5, "cells");
+		gd.addCheckbox("Show_density image", true);
+		gd.addCheckbox("Show_table", true);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		final int cellWidth = (int) Math.floor(gd.getNextNumber());
+		final int cellHeight = (int) Math.floor(gd.getNextNumber());
+		final int cellDepth = (int) Math.floor(gd.getNextNumber());
+		final int window = (int) Math.floor(gd.getNextNumber());
+		final boolean doImage = gd.getNextBoolean();
+		final boolean doTable = gd.getNextBoolean();
+		if (cellWidth < 1 || cellHeight < 1 || cellDepth < 1) {
+			IJ.error("Cells must be at least 1 pixel in each dimension.");
+			return;
+		}
+		if (window < 1 || window % 2 == 0) {
+			IJ.error("Window must be an odd number of cells.");
+			return;
+		}
+		final int nX = (imp.getWidth() + cellWidth - 1) / cellWidth;
+		final int nY = (imp.getHeight() + cellHeight - 1) / cellHeight;
+		final int nZ = (imp.getStackSize() + cellDepth - 1) / cellDepth;
+
+		double[] deltaChi = getLocalDeltaChi(imp, cellWidth, cellHeight,
+				cellDepth);
+		double[] volumes = getCellVolumes(imp, cellWidth, cellHeight,
+				cellDepth);
+		deltaChi = sumWindows(deltaChi, nX, nY, nZ, window);
+		volumes = sumWindows(volumes, nX, nY, nZ, window);
+		final int nCells = deltaChi.length;
+		double[] connDensity = new double[nCells];
+		for (int c = 0; c < nCells; c++)
+			connDensity[c] = -deltaChi[c] / volumes[c];
+
+		Calibration cal = imp.getCalibration();
+		final String units = cal.getUnits();
+		if (doImage) {
+			ImageStack stack = new ImageStack(nX, nY);
+			double max = 0;
+			for (int k = 0; k < nZ; k++) {
+				float[] pixels = new float[nX * nY];
+				for (int i = 0; i < nX * nY; i++) {
+					pixels[i] = (float) connDensity[k * nX * nY + i];
+					max = Math.max(max, pixels[i]);
+				}
+				stack.addSlice("" + (k + 1), pixels);
+			}
+			ImagePlus impOut = new ImagePlus(imp.getShortTitle() + "_ConnD",
+					stack);
+			Calibration calOut = cal.copy();
+			calOut.pixelWidth *= cellWidth;
+			calOut.pixelHeight *= cellHeight;
+			calOut.pixelDepth *= cellDepth;
+			impOut.setCalibration(calOut);
+			impOut.getProcessor().setMinAndMax(0, max);
+			impOut.show();
+			IJ.run("Fire");
+		}
+		if (doTable) {
+			ResultsTable rt = new ResultsTable();
+			for (int k = 0; k < nZ; k++) {
+				for (int j = 0; j < nY; j++) {
+					for (int i = 0; i < nX; i++) {
+						final int c = (k * nY + j) * nX + i;
+						rt.incrementCounter();
+						rt.addLabel(imp.getTitle());
+						rt.addValue("x (" + units + ")", i * cellWidth
+								* cal.pixelWidth);
+						rt.addValue("y (" + units + ")", j * cellHeight
+								* cal.pixelHeight);
+						rt.addValue("z (" + units + ")", k * cellDepth
+								* cal.pixelDepth);
+						rt.addValue("Δ(χ)", deltaChi[c]);
+						rt.addValue("Conn.D (" + units + "^-3)",
+								connDensity[c]);
+					}
+				}
+			}
+			rt.show(imp.getShortTitle() + "_ConnD");
+		}
+	}
+
+	/**
+	 * <p>
+	 * Get the contribution of each cell of a grid to the Euler characteristic
+	 * of the foreground, in one pass through the stack.
+	 * </p>
+	 * <p>
+	 * Each vertex's contribution is looked up from its octant in the whole
+	 * image and shared between the cells owning the octant's voxels: half
+	 * each on a face between two cells, and so on, with the share of voxels
+	 * outside the stack dropped. Unlike cropping each cell and running
+	 * getDeltaChi() on it, no edge correction is needed and the cells' values
+	 * add up, so a window of cells is the sum of its cells. Because the
+	 * &#946;<sub>1</sub> = 1 - &#916;&#967; relation holds only for a whole
+	 * connected structure, the local connectivity of a cell is taken as
+	 * -&#916;&#967;.
+	 * </p>
+	 * 
+	 * @param imp
+	 *            Binary ImagePlus
+	 * @param cellWidth
+	 *            cell width in pixels
+	 * @param cellHeight
+	 *            cell height in pixels
+	 * @param cellDepth
+	 *            cell depth in slices
+	 * @return &#916;&#967; of each cell, indexed (z * nY + y) * nX + x where
+	 *         cells at the far edges of the stack may be smaller than the rest
+	 */
+	public double[] getLocalDeltaChi(ImagePlus imp, int cellWidth,
+			int cellHeight, int cellDepth) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getStackSize();
+		final int[][] xCells = getVertexCells(w, cellWidth);
+		final int[][] yCells = getVertexCells(h, cellHeight);
+		final int[][] zCells = getVertexCells(d, cellDepth);
+		final int nX = (w + cellWidth - 1) / cellWidth;
+		final int nY = (h + cellHeight - 1) / cellHeight;
+		final int nZ = (d + cellDepth - 1) / cellDepth;
+		final int[] octantLUT = getOctantEulerLUT();
+
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		long[][] cellSums = new long[nThreads][nX * nY * nZ];
+		final AtomicInteger nextPlane = new AtomicInteger(0);
+		LocalThread[] localThread = new LocalThread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			localThread[thread] = new LocalThread(thread, nThreads, imp,
+					octantLUT, xCells, yCells, zCells, nX, nY,
+					cellSums[thread], nextPlane);
+			localThread[thread].start();
+		}
+		try {
+			for (int thread = 0; thread < nThreads; thread++) {
+				localThread[thread].join();
+			}
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted.");
+		}
+		double[] deltaChi = new double[nX * nY * nZ];
+		for (int c = 0; c < deltaChi.length; c++) {
+			long sum = 0;
+			for (int thread = 0; thread < nThreads; thread++)
+				sum += cellSums[thread][c];
+			// LUT values are 8 x the vertex's contribution and shares are
+			// counted in eighths
+			deltaChi[c] = sum / 64.0;
+		}
+		return deltaChi;
+	}
+
+	/**
+	 * Find the cells on either side of each vertex along one axis
+	 * 
+	 * @param size
+	 *            number of voxels along the axis
+	 * @param cellSize
+	 *            number of voxels per cell
+	 * @return int[2][size + 1] holding the cells of the voxels before and
+	 *         after each vertex, or -1 outside the stack. Both are the same
+	 *         for vertices inside a cell.
+	 */
+	private static int[][] getVertexCells(int size, int cellSize) {
+		int[][] cells = new int[2][size + 1];
+		for (int v = 0; v <= size; v++) {
+			cells[0][v] = v > 0 ? (v - 1) / cellSize : -1;
+			cells[1][v] = v < size ? v / cellSize : -1;
+		}
+		return cells;
+	}
+
+	/**
+	 * Get the calibrated volume of each cell of a grid
+	 * 
+	 * @return volume of each cell, indexed as by getLocalDeltaChi()
+	 */
+	private double[] getCellVolumes(ImagePlus imp, int cellWidth,
+			int cellHeight, int cellDepth) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getStackSize();
+		final int nX = (w + cellWidth - 1) / cellWidth;
+		final int nY = (h + cellHeight - 1) / cellHeight;
+		final int nZ = (d + cellDepth - 1) / cellDepth;
+		Calibration cal = imp.getCalibration();
+		final double voxelVolume = cal.pixelWidth * cal.pixelHeight
+				* cal.pixelDepth;
+		double[] volumes = new double[nX * nY * nZ];
+		for (int k = 0; k < nZ; k++) {
+			final int cD = Math.min(cellDepth, d - k * cellDepth);
+			for (int j = 0; j < nY; j++) {
+				final int cH = Math.min(cellHeight, h - j * cellHeight);
+				for (int i = 0; i < nX; i++) {
+					final int cW = Math.min(cellWidth, w - i * cellWidth);
+					volumes[(k * nY + j) * nX + i] = (double) cW * cH * cD
+							* voxelVolume;
+				}
+			}
+		}
+		return volumes;
+	}
+
+	/**
+	 * Sum cell values over a sliding window of cells, clipped to the grid
+	 * 
+	 * @param values
+	 *            value of each cell, indexed (z * nY + y) * nX + x
+	 * @param window
+	 *            odd number of cells along each side of the window
+	 * @return sum over the window centred on each cell
+	 */
+	private static double[] sumWindows(double[] values, int nX, int nY,
+			int nZ, int window) {
+		if (window == 1)
+			return values;
+		final int r = window / 2;
+		// separable box sums along x, y then z
+		final int[] steps = { 1, nX, nX * nY };
+		final int[] lengths = { nX, nY, nZ };
+		double[] in = values;
+		for (int axis = 0; axis < 3; axis++) {
+			double[] out = new double[in.length];
+			final int step = steps[axis];
+			final int length = lengths[axis];
+			for (int c = 0; c < in.length; c++) {
+				final int pos = (c / step) % length;
+				final int from = Math.max(0, pos - r);
+				final int to = Math.min(length - 1, pos + r);
+				double sum = 0;
+				for (int p = from; p <= to; p++)
+					sum += in[c + (p - pos) * step];
+				out[c] = sum;
+			}
+			in = out;
+		}
+		return in;
+	}
+
 	/**
 	 * Calculate connectivity density
 	 * 
@@ -174,10 +443,8 @@ public class Connectivity implements PlugIn {
 	 * @return delta Chi
 	 */
 	public double getDeltaChi(ImagePlus imp, double sumEuler) {
-		this.width = imp.getWidth();
-		this.height = imp.getHeight();
-		this.depth = imp.getStackSize();
-		double deltaChi = sumEuler - correctForEdges(imp.getStack());
+		double deltaChi = sumEuler
+				- getEdgeCorrection(getEulerCounts(imp, false, true));
 		return deltaChi;
 	}
 
@@ -189,73 +456,410 @@ public class Connectivity implements PlugIn {
 	 * @return Euler characteristic of the foreground particles
 	 */
 	public double getSumEuler(ImagePlus imp) {
+		double sumEuler = getEulerCounts(imp, true, false)[0] / 8.0;
+		return sumEuler;
+	}
+
+	/**
+	 * <p>
+	 * Get &#916;&#967; of the foreground of a grey-level image thresholded at
+	 * each of several thresholds, in a single pass through its voxels.
+	 * </p>
+	 * <p>
+	 * Voxels are visited from the highest grey value down, so that the
+	 * foreground (pixel &gt; threshold) grows by one voxel at a time. Adding a
+	 * voxel only changes the 8 octants that contain it, so the Euler sum is
+	 * kept up to date by looking up just those octants before and after the
+	 * voxel is added. The edge correction only depends on voxels on the
+	 * stack's surface, so for each threshold only the surface is thresholded,
+	 * into a stack that is reused between thresholds.
+	 * </p>
+	 * 
+	 * @param imp
+	 *            8- or 16-bit grey-level ImagePlus
+	 * @param thresholds
+	 *            thresholds to test; foreground is pixel &gt; threshold
+	 * @return &#916;&#967; at each threshold, as getDeltaChi() would give for
+	 *         the thresholded stack
+	 */
+	public double[] getDeltaChis(ImagePlus imp, int[] thresholds) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getStackSize();
+		final int wh = w * h;
+		final int nLevels;
+		if (imp.getBitDepth() == 8)
+			nLevels = 256;
+		else if (imp.getBitDepth() == 16)
+			nLevels = 65536;
+		else
+			throw new IllegalArgumentException("Need an 8- or 16-bit image");
+		if ((long) (w + 1) * (h + 1) * (d + 1) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Stack is too large to sweep");
+		ImageStack stack = imp.getImageStack();
+
+		// sort voxels by grey value
+		IJ.showStatus("Sorting voxels...");
+		int[] start = new int[nLevels + 1];
+		for (int z = 0; z < d; z++) {
+			final Object pixels = stack.getPixels(z + 1);
+			for (int i = 0; i < wh; i++)
+				start[getValue(pixels, i) + 1]++;
+		}
+		for (int v = 0; v < nLevels; v++)
+			start[v + 1] += start[v];
+		int[] order = new int[wh * d];
+		int[] next = start.clone();
+		for (int z = 0; z < d; z++) {
+			final Object pixels = stack.getPixels(z + 1);
+			final int offset = z * wh;
+			for (int i = 0; i < wh; i++)
+				order[next[getValue(pixels, i)]++] = offset + i;
+		}
+
+		// add voxels from the top grey value down, recording 8 x chi of
+		// pixel > v - 1 once all voxels of value v are in
+		IJ.showStatus("Sweeping thresholds...");
+		final int[] octantLUT = getOctantEulerLUT();
+		final int vw = w + 1;
+		final int vwh = vw * (h + 1);
+		// octant configuration of every vertex
+		byte[] octants = new byte[vwh * (d + 1)];
+		long[] sumAbove = new long[nLevels + 1];
+		long sum = 0;
+		for (int v = nLevels - 1; v >= 0; v--) {
+			for (int n = start[v]; n < start[v + 1]; n++) {
+				final int index = order[n];
+				final int z = index / wh;
+				final int y = (index % wh) / w;
+				final int x = index % w;
+				// the voxel is at (-i, -j, -k) from vertex (x + i, y + j, z
+				// + k), which is bit (1 - i) * 2 + (1 - j) + (1 - k) * 4
+				for (int k = 0; k < 2; k++) {
+					for (int j = 0; j < 2; j++) {
+						for (int i = 0; i < 2; i++) {
+							final int vertex = (z + k) * vwh + (y + j) * vw
+									+ x + i;
+							final int old = octants[vertex] & 0xff;
+							final int config = old
+									| 1 << ((1 - i) * 2 + (1 - j) + (1 - k) * 4);
+							sum += octantLUT[config] - octantLUT[old];
+							octants[vertex] = (byte) config;
+						}
+					}
+				}
+			}
+			sumAbove[v] = sum;
+			IJ.showProgress(nLevels - v, nLevels);
+		}
+
+		// correct for edges using the thresholded surface only
+		ImageStack surface = new ImageStack(w, h);
+		for (int z = 0; z < d; z++)
+			surface.addSlice(stack.getSliceLabel(z + 1), new byte[wh]);
+		ImagePlus surfaceImp = new ImagePlus("surface", surface);
+		final int nThresholds = thresholds.length;
+		double[] deltaChis = new double[nThresholds];
+		for (int t = 0; t < nThresholds; t++) {
+			final int threshold = thresholds[t];
+			// sumAbove[v] has pixel >= v, i.e. pixel > v - 1
+			final int v = Math.max(0, threshold + 1);
+			final double sumEuler = v >= nLevels ? 0 : sumAbove[v] / 8.0;
+			for (int z = 0; z < d; z++) {
+				final Object pixels = stack.getPixels(z + 1);
+				final byte[] binary = (byte[]) surface.getPixels(z + 1);
+				final boolean face = z == 0 || z == d - 1;
+				for (int y = 0; y < h; y++) {
+					final int rowIndex = y * w;
+					final boolean edgeRow = face || y == 0 || y == h - 1;
+					final int step = edgeRow ? 1 : Math.max(1, w - 1);
+					for (int x = 0; x < w; x += step) {
+						final int i = rowIndex + x;
+						binary[i] = getValue(pixels, i) > threshold ? (byte) -1
+								: 0;
+					}
+				}
+			}
+			deltaChis[t] = getDeltaChi(surfaceImp, sumEuler);
+		}
+		return deltaChis;
+	}
+
+	/**
+	 * @return unsigned value of pixel i of an 8- or 16-bit slice
+	 */
+	private static int getValue(Object pixels, int i) {
+		if (pixels instanceof byte[])
+			return ((byte[]) pixels)[i] & 0xff;
+		return ((short[]) pixels)[i] & 0xffff;
+	}
+
+	/**
+	 * <p>
+	 * Sum the Euler contributions of the stack's vertices and count the voxel
+	 * elements lying on the stack's edges, sharing all of the work between
+	 * one set of threads.
+	 * </p>
+	 * <p>
+	 * Threads claim blocks of vertex planes from a shared counter. Blocks
+	 * start large and shrink as fewer planes are left, so threads that draw
+	 * dense slices don't hold up threads that draw empty ones. Threads then
+	 * claim the edge counts, one at a time. Totals are kept in longs, which
+	 * can't overflow for any stack that fits in memory.
+	 * </p>
+	 * 
+	 * @param imp
+	 *            Binary ImagePlus
+	 * @param doSum
+	 *            true to sum the vertices' Euler contributions
+	 * @param doEdges
+	 *            true to count the voxel elements on the stack's edges
+	 * @return long[7] holding 8 &#215; the Euler characteristic, then the
+	 *         numbers of stack vertices, stack edges, stack faces, edge
+	 *         vertices, face vertices and face edges as used by
+	 *         getEdgeCorrection(). Elements not asked for are 0.
+	 */
+	private long[] getEulerCounts(ImagePlus imp, boolean doSum,
+			boolean doEdges) {
 		this.width = imp.getWidth();
 		this.height = imp.getHeight();
 		this.depth = imp.getStackSize();
 
-		int eulerLUT[] = new int[256];
-		fillEulerLUT(eulerLUT);
+		final int[] octantLUT = getOctantEulerLUT();
 
 		int nThreads = Runtime.getRuntime().availableProcessors();
-		int[] sumEulerInt = new int[nThreads];
-
-		SliceThread[] sliceThread = new SliceThread[nThreads];
+		long[] sumEuler = new long[nThreads];
+		long[] counts = new long[7];
+		final int nPlanes = doSum ? this.depth + 1 : 0;
+		final int nCounts = doEdges ? 6 : 0;
+		final AtomicInteger nextPlane = new AtomicInteger(0);
+		final AtomicInteger nextCount = new AtomicInteger(0);
+
+		EulerThread[] eulerThread = new EulerThread[nThreads];
 		for (int thread = 0; thread < nThreads; thread++) {
-			sliceThread[thread] = new SliceThread(thread, nThreads, imp,
-					eulerLUT, sumEulerInt);
-			sliceThread[thread].start();
+			eulerThread[thread] = new EulerThread(thread, nThreads, imp,
+					octantLUT, nPlanes, nextPlane, nCounts, nextCount,
+					sumEuler, counts);
+			eulerThread[thread].start();
 		}
 		try {
 			for (int thread = 0; thread < nThreads; thread++) {
-				sliceThread[thread].join();
+				eulerThread[thread].join();
 			}
 		} catch (InterruptedException ie) {
 			IJ.error("A thread was interrupted.");
 		}
 
-		double sumEuler = 0;
-		for (int i = 0; i < sumEulerInt.length; i++) {
-			sumEuler += sumEulerInt[i];
+		for (int i = 0; i < nThreads; i++) {
+			counts[0] += sumEuler[i];
 		}
+		return counts;
+	}
 
-		sumEuler /= 8;
-		return sumEuler;
+	/**
+	 * Claim the next block of vertex planes for a thread. Each block is a
+	 * share of the planes left, so blocks get smaller towards the end of the
+	 * stack and the threads finish close together. This gives the adaptive
+	 * splitting of fork-join tasks on Java 6, which BoneJ runs on and which
+	 * has no ForkJoinPool.
+	 * 
+	 * @param next
+	 *            first plane not yet claimed, shared by all threads
+	 * @param nPlanes
+	 *            number of planes
+	 * @param nThreads
+	 *            number of threads sharing the planes
+	 * @param range
+	 *            int[2] to put the block's first plane and last plane + 1 in
+	 * @return false if there are no planes left
+	 */
+	private static boolean claimPlanes(AtomicInteger next, int nPlanes,
+			int nThreads, int[] range) {
+		while (true) {
+			final int start = next.get();
+			if (start >= nPlanes)
+				return false;
+			final int size = Math.max(1, (nPlanes - start) / (2 * nThreads));
+			if (next.compareAndSet(start, start + size)) {
+				range[0] = start;
+				range[1] = start + size;
+				return true;
+			}
+		}
 	}
 
-	/* ----------------------------------------------------------------------- */
 	/**
-	 * Get octant of a vertex at (0,0,0) of a voxel (upper top left) in a 3D
-	 * image (0 border conditions)
+	 * Get the Euler contribution of every possible octant, so that an octant
+	 * can be looked up directly instead of being rotated by getDeltaEuler()
 	 * 
-	 * @param stack
-	 *            3D image (ImageStack)
-	 * @param x
-	 *            x- coordinate
+	 * @return int[256] indexed by octant configuration, where bit n - 1 is set
+	 *         if octant voxel n is foreground. Voxels are numbered 1 to 8
+	 *         from (x - 1, y - 1, z - 1), (x - 1, y, z - 1), (x, y - 1, z -
+	 *         1) and (x, y, z - 1) to the same positions in slice z.
+	 *         Values are 8 times the vertex's delta Euler, as summed by
+	 *         getSumEuler().
+	 */
+	public int[] getOctantEulerLUT() {
+		int[] eulerLUT = new int[256];
+		fillEulerLUT(eulerLUT);
+		int[] octantLUT = new int[256];
+		byte[] octant = new byte[9];
+		for (int config = 1; config < 256; config++) {
+			octant[0] = 0;
+			for (int n = 1; n < 9; n++) {
+				octant[n] = ((config >> (n - 1)) & 1) == 1 ? (byte) -1 : 0;
+				octant[0] -= octant[n];
+			}
+			octantLUT[config] = getDeltaEuler(octant, eulerLUT);
+		}
+		return octantLUT;
+	}
+
+	/**
+	 * Pack a slice's foreground into bit rows, one bit per pixel and 64 pixels
+	 * per word. Row y is stored from word (y + 1) * wordsPerRow, so that rows
+	 * -1 and height are empty and octants on the stack's edges can be read
+	 * without bounds checks.
+	 * 
+	 * @param pixels
+	 *            slice pixels, or null for an empty slice
+	 * @param width
+	 * @param height
+	 * @param packed
+	 *            array of (height + 2) * wordsPerRow words to fill
+	 */
+	private static void packSlice(final byte[] pixels, final int width,
+			final int height, final long[] packed) {
+		final int wordsPerRow = (width + 63) >> 6;
+		Arrays.fill(packed, 0);
+		if (pixels == null)
+			return;
+		for (int y = 0; y < height; y++) {
+			final int rowIndex = y * width;
+			final int rowWord = (y + 1) * wordsPerRow;
+			for (int x = 0; x < width; x++) {
+				if (pixels[rowIndex + x] == -1)
+					packed[rowWord + (x >> 6)] |= 1L << (x & 63);
+			}
+		}
+	}
+
+	/**
+	 * Sum the Euler contributions of one plane of vertices, lying between two
+	 * packed slices. The octant index of each vertex is built from the
+	 * previous vertex's by shifting out its x - 1 voxels, so each vertex costs
+	 * a few shifts and a single LUT access, and runs of 64 empty columns are
+	 * skipped a word at a time.
+	 * 
+	 * @param above
+	 *            packed slice z - 1, as from packSlice()
+	 * @param below
+	 *            packed slice z
+	 * @param width
+	 * @param height
+	 * @param octantLUT
+	 *            from getOctantEulerLUT()
+	 * @return sum of 8 &#215; &#948;&#967; over the plane's vertices
+	 */
+	private static long sumPlane(final long[] above, final long[] below,
+			final int width, final int height, final int[] octantLUT) {
+		final int wordsPerRow = (width + 63) >> 6;
+		long sum = 0;
+		for (int y = 0; y <= height; y++) {
+			// rows y - 1 and y of each slice
+			final int back = y * wordsPerRow;
+			final int front = back + wordsPerRow;
+			// octant index of the previous vertex
+			int config = 0;
+			for (int word = 0; word < wordsPerRow; word++) {
+				long a = above[back + word];
+				long b = above[front + word];
+				long c = below[back + word];
+				long d = below[front + word];
+				final int x0 = word << 6;
+				final int nX = Math.min(64, width - x0);
+				if ((a | b | c | d) == 0) {
+					// only the first vertex can have foreground, at x - 1
+					if (config != 0) {
+						sum += octantLUT[(config >> 2) & 0x33];
+						config = 0;
+					}
+					continue;
+				}
+				for (int x = 0; x < nX; x++) {
+					config = ((config >> 2) & 0x33)
+							| (int) ((a & 1) << 2 | (b & 1) << 3 | (c & 1) << 6
+									| (d & 1) << 7);
+					sum += octantLUT[config];
+					a >>>= 1;
+					b >>>= 1;
+					c >>>= 1;
+					d >>>= 1;
+				}
+			}
+			// vertex at x = width has only x - 1 voxels
+			sum += octantLUT[(config >> 2) & 0x33];
+		}
+		return sum;
+	}
+
+	/**
+	 * Get the Euler contribution of each vertex in row y of a plane of
+	 * vertices, as sumPlane() does but keeping each vertex's value
+	 * 
+	 * @param above
+	 *            packed slice z - 1
+	 * @param below
+	 *            packed slice z
 	 * @param y
-	 *            y- coordinate
-	 * @param z
-	 *            z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding 8-pixel octant (0 if out of image)
+	 *            vertex row
+	 * @param width
+	 * @param octantLUT
+	 *            from getOctantEulerLUT()
+	 * @param values
+	 *            array of width + 1 to put 8 &#215; &#948;&#967; of each
+	 *            vertex in
+	 * @return false if every vertex in the row is 0
 	 */
-	private byte[] getOctant(final ImageStack stack, final int x, final int y,
-			final int z) {
-		byte[] octant = new byte[9]; // index 0 is counter to determine octant
-		// emptiness, index 8 is at (x,y,z)
-
-		octant[1] = getPixel(stack, x - 1, y - 1, z - 1);
-		octant[2] = getPixel(stack, x - 1, y, z - 1);
-		octant[3] = getPixel(stack, x, y - 1, z - 1);
-		octant[4] = getPixel(stack, x, y, z - 1);
-		octant[5] = getPixel(stack, x - 1, y - 1, z);
-		octant[6] = getPixel(stack, x - 1, y, z);
-		octant[7] = getPixel(stack, x, y - 1, z);
-		octant[8] = getPixel(stack, x, y, z);
-
-		for (int n = 1; n < 9; n++)
-			octant[0] -= octant[n]; // foreground is -1, so octant[0] contains
-		// nVoxels in octant
-		return octant;
-	} /* end getNeighborhood */
+	private static boolean getRowValues(final long[] above,
+			final long[] below, final int y, final int width,
+			final int[] octantLUT, final int[] values) {
+		final int wordsPerRow = (width + 63) >> 6;
+		final int back = y * wordsPerRow;
+		final int front = back + wordsPerRow;
+		boolean found = false;
+		int config = 0;
+		for (int word = 0; word < wordsPerRow; word++) {
+			long a = above[back + word];
+			long b = above[front + word];
+			long c = below[back + word];
+			long d = below[front + word];
+			final int x0 = word << 6;
+			final int nX = Math.min(64, width - x0);
+			if ((a | b | c | d) == 0) {
+				Arrays.fill(values, x0, x0 + nX, 0);
+				if (config != 0) {
+					values[x0] = octantLUT[(config >> 2) & 0x33];
+					found = true;
+					config = 0;
+				}
+				continue;
+			}
+			found = true;
+			for (int x = 0; x < nX; x++) {
+				config = ((config >> 2) & 0x33)
+						| (int) ((a & 1) << 2 | (b & 1) << 3 | (c & 1) << 6
+								| (d & 1) << 7);
+				values[x0 + x] = octantLUT[config];
+				a >>>= 1;
+				b >>>= 1;
+				c >>>= 1;
+				d >>>= 1;
+			}
+		}
+		values[width] = octantLUT[(config >> 2) & 0x33];
+		return found || config != 0;
+	}
 
 	/* ----------------------------------------------------------------------- */
 	/**
@@ -735,19 +1339,20 @@ public class Connectivity implements PlugIn {
 	 * connectivity
 	 * </p>
 	 * 
-	 * @param stack
+	 * @param counts
+	 *            edge counts from getEulerCounts()
 	 * @return edgeCorrection for subtraction from the stack's Euler number
 	 */
-	private double correctForEdges(final ImageStack stack) {
+	private double getEdgeCorrection(final long[] counts) {
 
-		long f = getStackVertices(stack);
-		long e = getStackEdges(stack) + 3 * f;
-		long c = getStackFaces(stack) + 2 * e - 3 * f; // there are already 6 *
+		long f = counts[1];
+		long e = counts[2] + 3 * f;
+		long c = counts[3] + 2 * e - 3 * f; // there are already 6 *
 		// f in 2 * e, so remove
 		// 3 * f
-		long d = getEdgeVertices(stack) + f;
-		long a = getFaceVertices(stack);
-		long b = getFaceEdges(stack);
+		long d = counts[4] + f;
+		long a = counts[5];
+		long b = counts[6];
 
 		double chiZero = (double) f;
 		double chiOne = (double) d - (double) e;
@@ -756,7 +1361,7 @@ public class Connectivity implements PlugIn {
 		double edgeCorrection = chiTwo / 2 + chiOne / 4 + chiZero / 8;
 
 		return edgeCorrection;
-	}/* end correctForEdges */
+	}/* end getEdgeCorrection */
 
 	/* ----------------------------------------------------------------------- */
 	/**
@@ -904,17 +1509,23 @@ public class Connectivity implements PlugIn {
 		LUT[255] = 0;
 	}/* end fillEulerLUT */
 
-	class SliceThread extends Thread {
-		final int thread, nThreads, width, height, depth;
+	class EulerThread extends Thread {
+		final int thread, nThreads, width, height, depth, nPlanes, nCounts;
+
+		final int[] octantLUT;
+
+		final long[] sumEuler, counts;
 
-		final int[] eulerLUT, sumEulerInt;
+		final AtomicInteger nextPlane, nextCount;
 
 		final ImagePlus impT;
 
 		final ImageStack stackT;
 
-		public SliceThread(int thread, int nThreads, ImagePlus imp,
-				int[] eulerLUT, int[] sumEulerInt) {
+		public EulerThread(int thread, int nThreads, ImagePlus imp,
+				int[] octantLUT, int nPlanes, AtomicInteger nextPlane,
+				int nCounts, AtomicInteger nextCount, long[] sumEuler,
+				long[] counts) {
 			this.impT = imp;
 			this.stackT = this.impT.getStack();
 			this.width = this.impT.getWidth();
@@ -922,23 +1533,168 @@ public class Connectivity implements PlugIn {
 			this.depth = this.impT.getStackSize();
 			this.thread = thread;
 			this.nThreads = nThreads;
-			this.eulerLUT = eulerLUT;
-			this.sumEulerInt = sumEulerInt;
+			this.octantLUT = octantLUT;
+			this.nPlanes = nPlanes;
+			this.nextPlane = nextPlane;
+			this.nCounts = nCounts;
+			this.nextCount = nextCount;
+			this.sumEuler = sumEuler;
+			this.counts = counts;
 		}
 
 		public void run() {
-			long deltaEuler = 0;
-			for (int z = this.thread; z <= this.depth; z += this.nThreads) {
+			final int nWords = (this.height + 2) * ((this.width + 63) >> 6);
+			long[] above = new long[nWords];
+			long[] below = new long[nWords];
+			int[] range = new int[2];
+			long sum = 0;
+			while (claimPlanes(this.nextPlane, this.nPlanes, this.nThreads,
+					range)) {
+				packSlice(getSlice(range[0] - 1), this.width, this.height,
+						above);
+				for (int z = range[0]; z < range[1]; z++) {
+					packSlice(getSlice(z), this.width, this.height, below);
+					sum += sumPlane(above, below, this.width, this.height,
+							this.octantLUT);
+					final long[] swap = above;
+					above = below;
+					below = swap;
+				}
+			}
+			this.sumEuler[this.thread] = sum;
+			int count;
+			while ((count = this.nextCount.getAndIncrement()) < this.nCounts) {
+				switch (count) {
+				case 0:
+					this.counts[1] = getStackVertices(this.stackT);
+					break;
+				case 1:
+					this.counts[2] = getStackEdges(this.stackT);
+					break;
+				case 2:
+					this.counts[3] = getStackFaces(this.stackT);
+					break;
+				case 3:
+					this.counts[4] = getEdgeVertices(this.stackT);
+					break;
+				case 4:
+					this.counts[5] = getFaceVertices(this.stackT);
+					break;
+				case 5:
+					this.counts[6] = getFaceEdges(this.stackT);
+					break;
+				}
+			}
+		}
+
+		/**
+		 * @return pixels of slice z, or null if z is outside the stack
+		 */
+		private byte[] getSlice(int z) {
+			if (z < 0 || z >= this.depth)
+				return null;
+			return (byte[]) this.stackT.getPixels(z + 1);
+		}
+	}
+
+	class LocalThread extends Thread {
+		final int thread, nThreads, width, height, depth, nX, nY;
+
+		final int[] octantLUT;
+
+		final int[][] xCells, yCells, zCells;
+
+		final long[] cellSums;
+
+		final AtomicInteger nextPlane;
+
+		final ImageStack stackT;
+
+		public LocalThread(int thread, int nThreads, ImagePlus imp,
+				int[] octantLUT, int[][] xCells, int[][] yCells,
+				int[][] zCells, int nX, int nY, long[] cellSums,
+				AtomicInteger nextPlane) {
+			this.stackT = imp.getStack();
+			this.width = imp.getWidth();
+			this.height = imp.getHeight();
+			this.depth = imp.getStackSize();
+			this.thread = thread;
+			this.nThreads = nThreads;
+			this.octantLUT = octantLUT;
+			this.xCells = xCells;
+			this.yCells = yCells;
+			this.zCells = zCells;
+			this.nX = nX;
+			this.nY = nY;
+			this.cellSums = cellSums;
+			this.nextPlane = nextPlane;
+		}
+
+		public void run() {
+			final int nPlanes = this.depth + 1;
+			final int nWords = (this.height + 2) * ((this.width + 63) >> 6);
+			long[] above = new long[nWords];
+			long[] below = new long[nWords];
+			final int[] values = new int[this.width + 1];
+			// sum of each row's values in each column of cells, counting
+			// vertices between two columns half in each
+			final long[] rowSums = new long[this.nX];
+			int[] range = new int[2];
+			while (claimPlanes(this.nextPlane, nPlanes, this.nThreads, range))
+				sumPlanes(range[0], range[1], above, below, values, rowSums);
+		}
+
+		private void sumPlanes(final int startZ, final int endZ,
+				long[] above, long[] below, final int[] values,
+				final long[] rowSums) {
+			packSlice(getSlice(startZ - 1), this.width, this.height, above);
+			for (int z = startZ; z < endZ; z++) {
+				if (this.thread == 0)
+					IJ.showProgress(z, this.depth + 1);
+				packSlice(getSlice(z), this.width, this.height, below);
 				for (int y = 0; y <= this.height; y++) {
+					if (!getRowValues(above, below, y, this.width,
+							this.octantLUT, values))
+						continue;
+					Arrays.fill(rowSums, 0);
 					for (int x = 0; x <= this.width; x++) {
-						final byte[] octant = getOctant(this.stackT, x, y, z);
-						if (octant[0] > 0) { // this octant is not empty
-							deltaEuler = getDeltaEuler(octant, this.eulerLUT);
-							this.sumEulerInt[this.thread] += deltaEuler;
+						final int v = values[x];
+						if (v == 0)
+							continue;
+						final int a = this.xCells[0][x];
+						final int b = this.xCells[1][x];
+						if (a >= 0)
+							rowSums[a] += v;
+						if (b >= 0)
+							rowSums[b] += v;
+					}
+					for (int m = 0; m < 2; m++) {
+						final int k = this.zCells[m][z];
+						if (k < 0)
+							continue;
+						for (int n = 0; n < 2; n++) {
+							final int j = this.yCells[n][y];
+							if (j < 0)
+								continue;
+							final int offset = (k * this.nY + j) * this.nX;
+							for (int i = 0; i < this.nX; i++)
+								this.cellSums[offset + i] += rowSums[i];
 						}
 					}
 				}
+				final long[] swap = above;
+				above = below;
+				below = swap;
 			}
 		}
+
+		/**
+		 * @return pixels of slice z, or null if z is outside the stack
+		 */
+		private byte[] getSlice(int z) {
+			if (z < 0 || z >= this.depth)
+				return null;
+			return (byte[]) this.stackT.getPixels(z + 1);
+		}
 	}
 }
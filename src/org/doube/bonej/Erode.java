@@ -2,6 +2,7 @@ package org.doube.bonej;
 
 import java.awt.image.ColorModel;
 
+import org.doube.util.BinaryVolume;
 import org.doube.util.ImageCheck;
 
 import ij.plugin.PlugIn;
@@ -30,8 +31,6 @@ import ij.IJ;
 public class Erode implements PlugIn {
 
 	private int w, h, d;
-	private byte[][] pixels_in;
-	private byte[][] pixels_out;
 
 	public void run(String arg) {
 		if (!ImageCheck.checkIJVersion())
@@ -51,6 +50,16 @@ public class Erode implements PlugIn {
 		return;
 	}
 
+	/**
+	 * Erode the pixels of an image that have the iso value. Pixels with any
+	 * other value are left as they are, and eroded pixels become 0.
+	 * 
+	 * @param image
+	 *            8-bit ImagePlus
+	 * @param threshold
+	 *            iso value
+	 * @return new ImagePlus holding the eroded stack
+	 */
 	public ImagePlus erode(ImagePlus image, int threshold) {
 
 		// Determine dimensions of the image
@@ -58,42 +67,26 @@ public class Erode implements PlugIn {
 		h = image.getHeight();
 		d = image.getStackSize();
 
-		this.pixels_in = new byte[d][];
-		this.pixels_out = new byte[d][];
-		for (int z = 0; z < d; z++) {
-			this.pixels_in[z] = (byte[]) image.getStack().getPixels(z + 1);
-			this.pixels_out[z] = new byte[w * h];
-		}
-
-		// iterate
-		for (int z = 0; z < d; z++) {
-			IJ.showProgress(z, d - 1);
-			for (int y = 0; y < h; y++) {
-				for (int x = 0; x < w; x++) {
-					if (get(x, y, z) != threshold)
-						set(x, y, z, get(x, y, z));
-					else if (get(x - 1, y, z) == threshold
-							&& get(x + 1, y, z) == threshold
-							&& get(x, y - 1, z) == threshold
-							&& get(x, y + 1, z) == threshold
-							&& get(x, y, z - 1) == threshold
-							&& get(x, y, z + 1) == threshold)
-
-						set(x, y, z, threshold);
-					else
-						set(x, y, z, 0);
-
-				}
-			}
-		}
+		BinaryVolume in = new BinaryVolume(image.getStack(), threshold,
+				threshold);
+		BinaryVolume out = erode(in);
 
 		ColorModel cm = image.getStack().getColorModel();
 
 		// create output image
 		ImageStack stack = new ImageStack(w, h);
 		for (int z = 0; z < d; z++) {
+			byte[] pixels = ((byte[]) image.getStack().getPixels(z + 1))
+					.clone();
+			for (int y = 0; y < h; y++) {
+				for (int x = in.nextForeground(0, y, z); x >= 0; x = in
+						.nextForeground(x + 1, y, z)) {
+					if (!out.get(x, y, z))
+						pixels[y * w + x] = 0;
+				}
+			}
 			stack.addSlice(image.getImageStack().getSliceLabel(z + 1),
-					new ByteProcessor(w, h, this.pixels_out[z], cm));
+					new ByteProcessor(w, h, pixels, cm));
 		}
 		ImagePlus imp = new ImagePlus();
 		imp.setCalibration(image.getCalibration());
@@ -101,18 +94,49 @@ public class Erode implements PlugIn {
 		return imp;
 	}
 
-	public int get(int x, int y, int z) {
-		x = x < 0 ? 0 : x;
-		x = x >= w ? w - 1 : x;
-		y = y < 0 ? 0 : y;
-		y = y >= h ? h - 1 : y;
-		z = z < 0 ? 0 : z;
-		z = z >= d ? d - 1 : z;
-		return (int) (this.pixels_in[z][y * w + x] & 0xff);
-	}
-
-	public void set(int x, int y, int z, int v) {
-		this.pixels_out[z][y * w + x] = (byte) v;
-		return;
+	/**
+	 * Erode a binary volume, 64 voxels at a time. A voxel stays foreground
+	 * only if it and its 6 face neighbours are foreground; neighbours outside
+	 * the volume take the value of the nearest voxel inside it.
+	 * 
+	 * @param volume
+	 *            volume to erode
+	 * @return new, eroded volume
+	 */
+	public BinaryVolume erode(BinaryVolume volume) {
+		final int width = volume.getWidth();
+		final int height = volume.getHeight();
+		final int depth = volume.getDepth();
+		final int wordsPerRow = volume.getWordsPerRow();
+		final long lastBit = (volume.getLastWordMask() >>> 1) + 1;
+		BinaryVolume eroded = new BinaryVolume(width, height, depth);
+		for (int z = 0; z < depth; z++) {
+			IJ.showProgress(z, depth - 1);
+			final long[] self = volume.getSlice(z);
+			final long[] up = volume.getSlice(Math.min(z + 1, depth - 1));
+			final long[] down = volume.getSlice(Math.max(z - 1, 0));
+			final long[] out = eroded.getSlice(z);
+			for (int y = 0; y < height; y++) {
+				final int row = volume.getRowWord(y);
+				final int north = volume.getRowWord(Math.max(y - 1, 0));
+				final int south = volume.getRowWord(Math.min(y + 1, height - 1));
+				for (int word = 0; word < wordsPerRow; word++) {
+					final long v = self[row + word];
+					if (v == 0)
+						continue;
+					long west = v << 1;
+					west |= word > 0 ? self[row + word - 1] >>> 63 : v & 1;
+					long east = v >>> 1;
+					if (word < wordsPerRow - 1)
+						east |= self[row + word + 1] << 63;
+					else
+						east |= v & lastBit;
+					out[row + word] = v & west & east & self[north + word]
+							& self[south + word] & up[row + word]
+							& down[row + word];
+				}
+			}
+		}
+		return eroded;
 	}
-}
\ No newline at end of file
+}
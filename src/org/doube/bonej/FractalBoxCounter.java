@@ -9,6 +9,7 @@ import ij.util.Tools;
 
 import java.util.ArrayList;
 
+import org.doube.util.BinaryVolume;
 import org.doube.util.ImageCheck;
 import org.doube.util.ResultInserter;
 
@@ -81,7 +82,6 @@ public class FractalBoxCounter implements PlugIn {
 			long count = 0; // current count
 			ArrayList<Double> xList = new ArrayList<Double>();
 			ArrayList<Double> yList = new ArrayList<Double>();
-			int xPos, yPos, zPos, yPart;
 			int xGrid, yGrid, zGrid;
 			int xStart, yStart, zStart;
 			int xEnd, yEnd, zEnd;
@@ -89,6 +89,11 @@ public class FractalBoxCounter implements PlugIn {
 			// Start timer
 			long startTime = System.currentTimeMillis();
 
+			// pack the pixels at or above threshold, so that each box can be
+			// tested a row of 64 pixels at a time
+			BinaryVolume volume = new BinaryVolume(imp.getStack(), threshold,
+					255);
+
 			for (int boxSize = maxBox; boxSize >= minBox; boxSize /= divBox) {
 				if (verboseOutput) {
 					IJ.showStatus("Estimating dimension, box size: " + boxSize);
@@ -154,30 +159,13 @@ public class FractalBoxCounter implements PlugIn {
 											zEnd = boxSize;
 										}
 
-										for (int x = xStart; x < xEnd; x++) {
-											xPos = x + xGrid;
-
-											for (int y = yStart; y < yEnd; y++) {
-												yPos = (y + yGrid);
-												yPart = yPos * width;
-
-												for (int z = zStart; z < zEnd; z++) {
-													zPos = z + zGrid;
-
-													// If pixel inside region,
-													// count it
-
-													if ((0xff & ((byte[]) imp
-															.getStack()
-															.getPixels(zPos + 1))[xPos
-															+ yPart]) >= threshold) {
-														count++;
-														z = x = y = boxSize; // stops
-														// things
-													}
-												}
-											}
-										}
+										// If any pixel inside region,
+										// count it
+										if (volume.containsForeground(xGrid
+												+ xStart, xGrid + xEnd, yGrid
+												+ yStart, yGrid + yEnd, zGrid
+												+ zStart, zGrid + zEnd))
+											count++;
 									}
 								}
 							}
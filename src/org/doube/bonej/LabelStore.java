@@ -0,0 +1,423 @@
+package org.doube.bonej;
+
+/**
+ * LabelStore Copyright 2026 agent
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * <p>
+ * Compact storage for particle labels. The stack is divided into slabs of
+ * contiguous slices and each slab keeps its labels in byte, short or int
+ * arrays, whichever is the narrowest that holds the largest label written to
+ * it. Slabs start out as bytes and are promoted when a label overflows them,
+ * so a stack with few particles per slab costs 1 byte per voxel instead of 4.
+ * </p>
+ * <p>
+ * Labels are non-negative; 0 means 'not in any particle'. Different slabs may
+ * be written concurrently, but a single slab must only be written by one
+ * thread at a time.
+ * </p>
+ *
+ * @author agent
+ *
+ */
+public class LabelStore {
+
+	/** Largest label that fits in a byte slab */
+	private static final int MAX_BYTE = 0xFF;
+
+	/** Largest label that fits in a short slab */
+	private static final int MAX_SHORT = 0xFFFF;
+
+	private final int width, height, depth, sliceSize, slabSize, nSlabs;
+
+	/** Slice arrays; exactly one of the three is non-null for each slice */
+	private final byte[][] byteSlices;
+
+	private final short[][] shortSlices;
+
+	private final int[][] intSlices;
+
+	/** Largest label each slab can currently hold */
+	private final int[] slabCapacity;
+
+	/**
+	 * Create an empty label store, with all slabs in byte storage
+	 *
+	 * @param width
+	 *            stack width
+	 * @param height
+	 *            stack height
+	 * @param depth
+	 *            number of slices
+	 * @param slabSize
+	 *            number of slices per slab
+	 */
+	public LabelStore(int width, int height, int depth, int slabSize) {
+		this(width, height, depth, slabSize, true);
+	}
+
+	/**
+	 * Create a label store, optionally without any slice storage for
+	 * subclasses that keep labels elsewhere
+	 *
+	 * @param width
+	 *            stack width
+	 * @param height
+	 *            stack height
+	 * @param depth
+	 *            number of slices
+	 * @param slabSize
+	 *            number of slices per slab
+	 * @param allocate
+	 *            true to allocate byte storage for every slice
+	 */
+	protected LabelStore(int width, int height, int depth, int slabSize,
+			boolean allocate) {
+		if (slabSize < 1)
+			throw new IllegalArgumentException();
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.sliceSize = width * height;
+		this.slabSize = slabSize;
+		this.nSlabs = (depth + slabSize - 1) / slabSize;
+		this.byteSlices = new byte[depth][];
+		this.shortSlices = new short[depth][];
+		this.intSlices = new int[depth][];
+		this.slabCapacity = new int[nSlabs];
+		if (allocate)
+			for (int z = 0; z < depth; z++)
+				byteSlices[z] = new byte[sliceSize];
+		for (int s = 0; s < nSlabs; s++)
+			slabCapacity[s] = MAX_BYTE;
+	}
+
+	/**
+	 * Copy an int label array into a new store, using the narrowest storage
+	 * for each slab
+	 *
+	 * @param particleLabels
+	 *            int[z][y * width + x] label array
+	 * @param width
+	 *            stack width
+	 * @param height
+	 *            stack height
+	 * @param slabSize
+	 *            number of slices per slab
+	 * @return LabelStore holding the same labels
+	 */
+	public static LabelStore fromIntArray(int[][] particleLabels, int width,
+			int height, int slabSize) {
+		LabelStore store = new LabelStore(width, height,
+				particleLabels.length, slabSize);
+		for (int z = 0; z < store.depth; z++)
+			store.setSlice(z, particleLabels[z]);
+		return store;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getSlabSize() {
+		return slabSize;
+	}
+
+	public int getNSlabs() {
+		return nSlabs;
+	}
+
+	/**
+	 * @param z
+	 *            slice index, starting at 0
+	 * @return index of the slab containing slice z
+	 */
+	public int getSlab(int z) {
+		return z / slabSize;
+	}
+
+	/**
+	 * @param slab
+	 * @return number of bytes used per voxel by the slab: 1, 2 or 4
+	 */
+	public int getBytesPerVoxel(int slab) {
+		final int capacity = slabCapacity[slab];
+		if (capacity == MAX_BYTE)
+			return 1;
+		else if (capacity == MAX_SHORT)
+			return 2;
+		return 4;
+	}
+
+	/**
+	 * @return total number of bytes used for label storage
+	 */
+	public long getMemoryUsage() {
+		long bytes = 0;
+		for (int s = 0; s < nSlabs; s++) {
+			final int slices = Math.min(depth, (s + 1) * slabSize) - s
+					* slabSize;
+			bytes += (long) slices * sliceSize * getBytesPerVoxel(s);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Get a label
+	 *
+	 * @param z
+	 *            slice index, starting at 0
+	 * @param i
+	 *            pixel index within the slice, y * width + x
+	 * @return label
+	 */
+	public int get(int z, int i) {
+		final byte[] b = byteSlices[z];
+		if (b != null)
+			return b[i] & 0xFF;
+		final short[] s = shortSlices[z];
+		if (s != null)
+			return s[i] & 0xFFFF;
+		return intSlices[z][i];
+	}
+
+	/**
+	 * Set a label, promoting the slab if the label doesn't fit
+	 *
+	 * @param z
+	 *            slice index, starting at 0
+	 * @param i
+	 *            pixel index within the slice, y * width + x
+	 * @param label
+	 *            non-negative label
+	 */
+	public void set(int z, int i, int label) {
+		if (label > slabCapacity[z / slabSize])
+			promote(z / slabSize, label);
+		final byte[] b = byteSlices[z];
+		if (b != null) {
+			b[i] = (byte) label;
+			return;
+		}
+		final short[] s = shortSlices[z];
+		if (s != null) {
+			s[i] = (short) label;
+			return;
+		}
+		intSlices[z][i] = label;
+	}
+
+	/**
+	 * Copy a slice of labels into an int array
+	 *
+	 * @param z
+	 *            slice index, starting at 0
+	 * @param labels
+	 *            array of at least width * height to copy into
+	 */
+	public void getSlice(int z, int[] labels) {
+		final int n = sliceSize;
+		final byte[] b = byteSlices[z];
+		if (b != null) {
+			for (int i = 0; i < n; i++)
+				labels[i] = b[i] & 0xFF;
+			return;
+		}
+		final short[] s = shortSlices[z];
+		if (s != null) {
+			for (int i = 0; i < n; i++)
+				labels[i] = s[i] & 0xFFFF;
+			return;
+		}
+		System.arraycopy(intSlices[z], 0, labels, 0, n);
+	}
+
+	/**
+	 * Copy a run of labels from within a slice into an int array, e.g. one
+	 * row of a particle's bounding box
+	 *
+	 * @param z
+	 *            slice index, starting at 0
+	 * @param from
+	 *            pixel index within the slice of the first label to copy
+	 * @param labels
+	 *            array of at least length to copy into, from index 0
+	 * @param length
+	 *            number of labels to copy
+	 */
+	public void getRange(int z, int from, int[] labels, int length) {
+		final byte[] b = byteSlices[z];
+		if (b != null) {
+			for (int i = 0; i < length; i++)
+				labels[i] = b[from + i] & 0xFF;
+			return;
+		}
+		final short[] s = shortSlices[z];
+		if (s != null) {
+			for (int i = 0; i < length; i++)
+				labels[i] = s[from + i] & 0xFFFF;
+			return;
+		}
+		System.arraycopy(intSlices[z], from, labels, 0, length);
+	}
+
+	/**
+	 * Replace a slice of labels, promoting the slab if any label doesn't fit
+	 *
+	 * @param z
+	 *            slice index, starting at 0
+	 * @param labels
+	 *            width * height labels to copy from
+	 */
+	public void setSlice(int z, int[] labels) {
+		final int n = sliceSize;
+		int max = 0;
+		for (int i = 0; i < n; i++)
+			max = Math.max(max, labels[i]);
+		if (max > slabCapacity[z / slabSize])
+			promote(z / slabSize, max);
+		final byte[] b = byteSlices[z];
+		if (b != null) {
+			for (int i = 0; i < n; i++)
+				b[i] = (byte) labels[i];
+			return;
+		}
+		final short[] s = shortSlices[z];
+		if (s != null) {
+			for (int i = 0; i < n; i++)
+				s[i] = (short) labels[i];
+			return;
+		}
+		System.arraycopy(labels, 0, intSlices[z], 0, n);
+	}
+
+	/**
+	 * Find the largest label in a slab
+	 *
+	 * @param slab
+	 * @return largest label
+	 */
+	public int getMaxLabel(int slab) {
+		final int start = slab * slabSize;
+		final int end = Math.min(depth, start + slabSize);
+		int max = 0;
+		for (int z = start; z < end; z++) {
+			final byte[] b = byteSlices[z];
+			final short[] s = shortSlices[z];
+			final int[] n = intSlices[z];
+			for (int i = 0; i < sliceSize; i++) {
+				final int label;
+				if (b != null)
+					label = b[i] & 0xFF;
+				else if (s != null)
+					label = s[i] & 0xFFFF;
+				else
+					label = n[i];
+				max = Math.max(max, label);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Convert every slab that is wider than its largest label requires to the
+	 * narrowest storage that fits, e.g. after provisional labels have been
+	 * replaced by final ones
+	 */
+	public void pack() {
+		for (int s = 0; s < nSlabs; s++) {
+			if (slabCapacity[s] == MAX_BYTE)
+				continue;
+			final int capacity = capacityFor(getMaxLabel(s));
+			if (capacity < slabCapacity[s])
+				convert(s, capacity);
+		}
+	}
+
+	/**
+	 * Copy all labels into a new int array
+	 *
+	 * @return int[z][y * width + x] label array
+	 */
+	public int[][] toIntArray() {
+		int[][] labels = new int[depth][sliceSize];
+		for (int z = 0; z < depth; z++)
+			getSlice(z, labels[z]);
+		return labels;
+	}
+
+	/**
+	 * Widen a slab's storage so that it can hold label
+	 *
+	 * @param slab
+	 * @param label
+	 */
+	private void promote(int slab, int label) {
+		convert(slab, capacityFor(label));
+	}
+
+	private int capacityFor(int label) {
+		if (label <= MAX_BYTE)
+			return MAX_BYTE;
+		else if (label <= MAX_SHORT)
+			return MAX_SHORT;
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Move a slab's labels into storage of the given capacity
+	 *
+	 * @param slab
+	 * @param capacity
+	 *            MAX_BYTE, MAX_SHORT or Integer.MAX_VALUE
+	 */
+	private void convert(int slab, int capacity) {
+		final int start = slab * slabSize;
+		final int end = Math.min(depth, start + slabSize);
+		int[] buffer = new int[sliceSize];
+		for (int z = start; z < end; z++) {
+			getSlice(z, buffer);
+			byteSlices[z] = null;
+			shortSlices[z] = null;
+			intSlices[z] = null;
+			if (capacity == MAX_BYTE) {
+				byte[] b = new byte[sliceSize];
+				for (int i = 0; i < sliceSize; i++)
+					b[i] = (byte) buffer[i];
+				byteSlices[z] = b;
+			} else if (capacity == MAX_SHORT) {
+				short[] s = new short[sliceSize];
+				for (int i = 0; i < sliceSize; i++)
+					s[i] = (short) buffer[i];
+				shortSlices[z] = s;
+			} else {
+				int[] n = new int[sliceSize];
+				System.arraycopy(buffer, 0, n, 0, sliceSize);
+				intSlices[z] = n;
+			}
+		}
+		slabCapacity[slab] = capacity;
+	}
+}
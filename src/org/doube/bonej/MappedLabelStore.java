@@ -0,0 +1,218 @@
+package org.doube.bonej;
+
+/**
+ * MappedLabelStore Copyright 2026 agent
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * Label storage for stacks too large for the heap. Labels are kept as ints
+ * in a temporary file and each slab is memory-mapped the first time it is
+ * used, so the operating system pages slabs in and out as they are worked on
+ * and none of the labels count against the Java heap. Each slab is mapped
+ * separately, so the file may be larger than 2 GB as long as each slab is
+ * not.
+ * </p>
+ * <p>
+ * As for LabelStore, different slabs may be written concurrently but a
+ * single slab must only be written by one thread at a time. Call
+ * {@link #close()} when the labels are no longer needed to delete the file.
+ * </p>
+ *
+ * @author agent
+ *
+ */
+public class MappedLabelStore extends LabelStore {
+
+	private final File file;
+
+	private final RandomAccessFile raf;
+
+	private final FileChannel channel;
+
+	/** Mapped labels of each slab; null until the slab is first used */
+	private final IntBuffer[] slabs;
+
+	private final MappedByteBuffer[] mapped;
+
+	/**
+	 * Create a label store of zeros in a new temporary file
+	 *
+	 * @param width
+	 *            stack width
+	 * @param height
+	 *            stack height
+	 * @param depth
+	 *            number of slices
+	 * @param slabSize
+	 *            number of slices per slab
+	 * @param directory
+	 *            directory to create the file in, or null for the system's
+	 *            temporary directory
+	 * @throws IOException
+	 *             if the file can't be created
+	 */
+	public MappedLabelStore(int width, int height, int depth, int slabSize,
+			File directory) throws IOException {
+		super(width, height, depth, slabSize, false);
+		if ((long) slabSize * width * height * 4 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Slabs must be under 2 GB");
+		this.file = File.createTempFile("labels", ".tmp", directory);
+		this.file.deleteOnExit();
+		this.raf = new RandomAccessFile(file, "rw");
+		this.raf.setLength((long) depth * width * height * 4);
+		this.channel = raf.getChannel();
+		this.slabs = new IntBuffer[getNSlabs()];
+		this.mapped = new MappedByteBuffer[getNSlabs()];
+	}
+
+	/**
+	 * Get a slab's labels, mapping the slab if it isn't already
+	 *
+	 * @param slab
+	 * @return IntBuffer holding the slab's labels from position 0
+	 */
+	private synchronized IntBuffer getSlabBuffer(int slab) {
+		IntBuffer buffer = slabs[slab];
+		if (buffer != null)
+			return buffer;
+		final long sliceBytes = (long) getWidth() * getHeight() * 4;
+		final int start = slab * getSlabSize();
+		final int end = Math.min(getDepth(), start + getSlabSize());
+		try {
+			mapped[slab] = channel.map(FileChannel.MapMode.READ_WRITE, start
+					* sliceBytes, (end - start) * sliceBytes);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not map label file "
+					+ file.getPath(), e);
+		}
+		buffer = mapped[slab].asIntBuffer();
+		slabs[slab] = buffer;
+		return buffer;
+	}
+
+	/**
+	 * @param z
+	 *            slice index, starting at 0
+	 * @return index of slice z's first label within its slab's buffer
+	 */
+	private int getSliceOffset(int z) {
+		return (z % getSlabSize()) * getWidth() * getHeight();
+	}
+
+	/**
+	 * @return the temporary file holding the labels
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return 4, as every slab stores ints
+	 */
+	public int getBytesPerVoxel(int slab) {
+		return 4;
+	}
+
+	/**
+	 * @return 0, as no labels are held in the Java heap
+	 */
+	public long getMemoryUsage() {
+		return 0;
+	}
+
+	public int get(int z, int i) {
+		return getSlabBuffer(getSlab(z)).get(getSliceOffset(z) + i);
+	}
+
+	public void set(int z, int i, int label) {
+		getSlabBuffer(getSlab(z)).put(getSliceOffset(z) + i, label);
+	}
+
+	public void getSlice(int z, int[] labels) {
+		// duplicate so that threads don't share the buffer's position
+		IntBuffer buffer = getSlabBuffer(getSlab(z)).duplicate();
+		buffer.position(getSliceOffset(z));
+		buffer.get(labels, 0, getWidth() * getHeight());
+	}
+
+	public void getRange(int z, int from, int[] labels, int length) {
+		IntBuffer buffer = getSlabBuffer(getSlab(z)).duplicate();
+		buffer.position(getSliceOffset(z) + from);
+		buffer.get(labels, 0, length);
+	}
+
+	public void setSlice(int z, int[] labels) {
+		IntBuffer buffer = getSlabBuffer(getSlab(z)).duplicate();
+		buffer.position(getSliceOffset(z));
+		buffer.put(labels, 0, getWidth() * getHeight());
+	}
+
+	public int getMaxLabel(int slab) {
+		IntBuffer buffer = getSlabBuffer(slab).duplicate();
+		buffer.rewind();
+		int max = 0;
+		while (buffer.hasRemaining())
+			max = Math.max(max, buffer.get());
+		return max;
+	}
+
+	/**
+	 * Does nothing, as slabs are always stored as ints
+	 */
+	public void pack() {
+		return;
+	}
+
+	/**
+	 * Write out and release a slab's mapping. The slab is mapped again if
+	 * it is used later.
+	 *
+	 * @param slab
+	 */
+	public synchronized void release(int slab) {
+		if (mapped[slab] == null)
+			return;
+		mapped[slab].force();
+		mapped[slab] = null;
+		slabs[slab] = null;
+	}
+
+	/**
+	 * Release all slabs, close the file and delete it. The store can't be
+	 * used afterwards.
+	 */
+	public synchronized void close() {
+		for (int s = 0; s < slabs.length; s++) {
+			mapped[s] = null;
+			slabs[s] = null;
+		}
+		try {
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			// the file is deleted on exit anyway
+		}
+		file.delete();
+	}
+}
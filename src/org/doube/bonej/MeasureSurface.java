@@ -138,4 +138,29 @@ public class MeasureSurface implements PlugIn {
 		}
 		return sumArea;
 	}
+
+	/**
+	 * Calculate surface area of a triangle mesh held in a packed array
+	 * 
+	 * @param vertices
+	 *            {x0, y0, z0, x1, y1, z1, ...} with 3 vertices per triangle
+	 * @return surface area
+	 */
+	public static double getSurfaceArea(float[] vertices) {
+		double sumArea = 0;
+		final int nCoords = vertices.length;
+		for (int n = 0; n < nCoords; n += 9) {
+			final double ax = vertices[n + 3] - vertices[n];
+			final double ay = vertices[n + 4] - vertices[n + 1];
+			final double az = vertices[n + 5] - vertices[n + 2];
+			final double bx = vertices[n + 6] - vertices[n];
+			final double by = vertices[n + 7] - vertices[n + 1];
+			final double bz = vertices[n + 8] - vertices[n + 2];
+			final double cx = ay * bz - az * by;
+			final double cy = az * bx - ax * bz;
+			final double cz = ax * by - ay * bx;
+			sumArea += 0.5 * Math.sqrt(cx * cx + cy * cy + cz * cz);
+		}
+		return sumArea;
+	}
 }
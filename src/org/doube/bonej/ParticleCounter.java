@@ -17,19 +17,27 @@ package org.doube.bonej;
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.vecmath.Color3f;
 import javax.vecmath.Point3f;
 
+import org.doube.geometry.ConvexHull3D;
 import org.doube.geometry.FitEllipsoid;
-import org.doube.jama.EigenvalueDecomposition;
-import org.doube.jama.Matrix;
+import org.doube.geometry.KDTree3D;
+import org.doube.geometry.SymmetricEigen3;
+import org.doube.geometry.Trig;
 import org.doube.util.ImageCheck;
+import org.doube.util.UnionFind;
 
 import customnode.CustomPointMesh;
 import customnode.CustomTriangleMesh;
@@ -82,6 +90,20 @@ import ij3d.Image3DUniverse;
  * if run linearly, and if multithreaded over <i>c</i> processors, speed
  * increase should be in the region of <i>n</i> * <i>c</i>, minus overhead.
  * </p>
+ * <p>
+ * Alternatively, particles can be labelled linearly: a single raster pass
+ * records label equivalences in a union-find table, which is resolved into
+ * consecutive labels in one final relabelling pass. This avoids the repeated
+ * whole-chunk scans of replaceLabel() and is the default. In parallel mode
+ * each chunk is labelled this way in its own thread, and only labels that
+ * meet across the first slice of each chunk are merged afterwards.
+ * </p>
+ * <p>
+ * For stacks larger than memory, the out-of-core mode labels one chunk at a
+ * time like the linear mode, with the binary work array and the labels kept
+ * in memory-mapped temporary files. Only the chunk being labelled and the
+ * union-find table are held in the heap.
+ * </p>
  * 
  * @author Michael Doube, Jonathan Jackson, Fabrice Cordelires
  * @see <p>
@@ -101,6 +123,38 @@ public class ParticleCounter implements PlugIn {
 	/** Background value */
 	public final static int BACK = 0;
 
+	/** Particle labelling by chunked, multithreaded replaceLabel() */
+	public final static int MULTI = 0;
+
+	/** Particle labelling by a single pass with a union-find table */
+	public final static int LINEAR = 1;
+
+	/** Particle labelling by union-find, one chunk per thread */
+	public final static int PARALLEL = 2;
+
+	/** Particle labelling by union-find, one chunk at a time, out of core */
+	public final static int MAPPED = 3;
+
+	/**
+	 * Labelling algorithm names, indexed by MULTI, LINEAR, PARALLEL and
+	 * MAPPED
+	 */
+	private final static String[] labelMethods = { "Multithreaded", "Linear",
+			"Parallel", "Out of core" };
+
+	/** Labelling algorithm used by getParticles() */
+	private int labelMethod = LINEAR;
+
+	/** Foreground connectivity choices */
+	private final static String[] connectivities = { "26", "18", "6" };
+
+	/**
+	 * Number of neighbours a foreground voxel is connected to: 6, 18 or 26.
+	 * The background takes the complementary connectivity: 26 if the
+	 * foreground is 6-connected and 6 otherwise.
+	 */
+	private int connectivity = 26;
+
 	private String sPhase = "";
 
 	private String chunkString = "";
@@ -131,6 +185,9 @@ public class ParticleCounter implements PlugIn {
 		gd.addCheckbox("Euler characteristic", true);
 		gd.addCheckbox("Thickness", true);
 		gd.addCheckbox("Ellipsoids", true);
+		gd.addCheckbox("Nearest_neighbours", false);
+		gd.addNumericField("Neighbours (k)", 3, 0);
+		gd.addNumericField("Neighbour_radius", 10, 3, 7, units);
 		gd.addMessage("Graphical Results");
 		gd.addCheckbox("Show_particle stack", true);
 		gd.addCheckbox("Show_size stack", false);
@@ -143,6 +200,10 @@ public class ParticleCounter implements PlugIn {
 		gd.addNumericField("Volume_resampling", 2, 0);
 		gd.addMessage("Slice size for particle counting");
 		gd.addNumericField("Slices per chunk", 2, 0);
+		gd.addChoice("Labelling algorithm", labelMethods,
+				labelMethods[labelMethod]);
+		gd.addChoice("Connectivity", connectivities, Integer
+				.toString(connectivity));
 		gd.showDialog();
 		if (gd.wasCanceled()) {
 			return;
@@ -157,6 +218,10 @@ public class ParticleCounter implements PlugIn {
 		final boolean doEulerCharacters = gd.getNextBoolean();
 		final boolean doThickness = gd.getNextBoolean();
 		final boolean doEllipsoids = gd.getNextBoolean();
+		final boolean doNeighbours = gd.getNextBoolean();
+		final int nNeighbours = Math.max(1, (int) Math.floor(gd
+				.getNextNumber()));
+		final double neighbourRadius = gd.getNextNumber();
 		final boolean doParticleImage = gd.getNextBoolean();
 		final boolean doParticleSizeImage = gd.getNextBoolean();
 		final boolean doThickImage = gd.getNextBoolean();
@@ -167,34 +232,51 @@ public class ParticleCounter implements PlugIn {
 		final boolean do3DOriginal = gd.getNextBoolean();
 		final int origResampling = (int) Math.floor(gd.getNextNumber());
 		final int slicesPerChunk = (int) Math.floor(gd.getNextNumber());
-
-		// get the particles and do the analysis
-		Object[] result = getParticles(imp, slicesPerChunk, minVol, maxVol,
-				FORE);
-		int[][] particleLabels = (int[][]) result[1];
-		long[] particleSizes = getParticleSizes(particleLabels);
+		labelMethod = gd.getNextChoiceIndex();
+		connectivity = Integer.parseInt(gd.getNextChoice());
+
+		// get the particles and do the analysis; out of core, the binary image
+		// is copied to disk for labelling instead of into a work array
+		byte[][] workArray = labelMethod == MAPPED ? null
+				: makeWorkArray(imp);
+		Object[] result = getLabelStore(imp, workArray, slicesPerChunk,
+				minVol, maxVol, FORE);
+		// the work array isn't needed for the analysis
+		workArray = null;
+		result[0] = null;
+		LabelStore particleLabels = (LabelStore) result[1];
+		long[] particleSizes = (long[]) result[2];
 		final int nParticles = particleSizes.length;
 		double[] volumes = getVolumes(imp, particleSizes);
-		double[][] centroids = getCentroids(imp, particleLabels, particleSizes);
-		int[][] limits = getParticleLimits(imp, particleLabels, nParticles);
+		ImagePlus thickImp = null;
+		if (doThickness) {
+			Thickness th = new Thickness();
+			thickImp = th.getLocalThickness(imp, false);
+		}
+		ParticleStats stats = getParticleStats(imp, particleLabels,
+				nParticles, thickImp, 0);
+		double[][] centroids = stats.getCentroids(imp.getCalibration());
+		int[][] limits = stats.getLimits();
 
 		// set up resources for analysis
-		ArrayList<List<Point3f>> surfacePoints = new ArrayList<List<Point3f>>();
+		float[][] surfacePoints = new float[nParticles][];
 		if (doSurfaceArea || doSurfaceVolume || doSurfaceImage || doEllipsoids
 				|| doFeret) {
 			surfacePoints = getSurfacePoints(imp, particleLabels, limits,
 					resampling, nParticles);
 		}
-		EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
+		double[] eigenValues = new double[nParticles * 3];
+		double[] eigenVectors = new double[nParticles * 9];
 		if (doMoments || doAxesImage) {
-			eigens = getEigens(imp, particleLabels, centroids);
+			getEigens(stats.getMomentTensors(imp.getCalibration()),
+					eigenValues, eigenVectors);
 		}
 		// calculate dimensions
 		double[] surfaceAreas = new double[nParticles];
 		if (doSurfaceArea) {
 			surfaceAreas = getSurfaceArea(surfacePoints);
 		}
-		double[] ferets = new double[nParticles];
+		double[][] ferets = new double[nParticles][7];
 		if (doFeret) {
 			ferets = getFerets(surfacePoints);
 		}
@@ -205,13 +287,11 @@ public class ParticleCounter implements PlugIn {
 		double[][] eulerCharacters = new double[nParticles][3];
 		if (doEulerCharacters) {
 			eulerCharacters = getEulerCharacter(imp, particleLabels, limits,
-					nParticles);
+					nParticles, slicesPerChunk);
 		}
 		double[][] thick = new double[nParticles][2];
 		if (doThickness) {
-			Thickness th = new Thickness();
-			ImagePlus thickImp = th.getLocalThickness(imp, false);
-			thick = getMeanStdDev(thickImp, particleLabels, particleSizes, 0);
+			thick = stats.getMeanStdDev();
 			if (doThickImage) {
 				double max = 0;
 				for (int i = 1; i < nParticles; i++) {
@@ -223,10 +303,15 @@ public class ParticleCounter implements PlugIn {
 				IJ.run("Fire");
 			}
 		}
-		Object[][] ellipsoids = new Object[nParticles][10];
+		double[][] ellipsoids = new double[nParticles][];
 		if (doEllipsoids || doEllipsoidImage) {
 			ellipsoids = getEllipsoids(surfacePoints);
 		}
+		double[][] neighbours = new double[nParticles][];
+		if (doNeighbours) {
+			neighbours = getNeighbours(imp, centroids, limits, volumes,
+					nNeighbours, neighbourRadius);
+		}
 
 		// Show numerical results
 		ResultsTable rt = new ResultsTable();
@@ -243,20 +328,25 @@ public class ParticleCounter implements PlugIn {
 					rt.addValue("SA (" + units + "²)", surfaceAreas[i]);
 				}
 				if (doFeret) {
-					rt.addValue("Feret (" + units + ")", ferets[i]);
+					rt.addValue("Feret (" + units + ")", ferets[i][0]);
+					rt.addValue("FeretAX (" + units + ")", ferets[i][1]);
+					rt.addValue("FeretAY (" + units + ")", ferets[i][2]);
+					rt.addValue("FeretAZ (" + units + ")", ferets[i][3]);
+					rt.addValue("FeretBX (" + units + ")", ferets[i][4]);
+					rt.addValue("FeretBY (" + units + ")", ferets[i][5]);
+					rt.addValue("FeretBZ (" + units + ")", ferets[i][6]);
 				}
 				if (doSurfaceVolume) {
 					rt.addValue("Encl. Vol. (" + units + "³)",
 							surfaceVolumes[i]);
 				}
 				if (doMoments) {
-					EigenvalueDecomposition E = eigens[i];
-					rt.addValue("I1", E.getD().get(2, 2));
-					rt.addValue("I2", E.getD().get(1, 1));
-					rt.addValue("I3", E.getD().get(0, 0));
-					rt.addValue("vX", E.getV().get(0, 2));
-					rt.addValue("vY", E.getV().get(1, 2));
-					rt.addValue("vZ", E.getV().get(2, 2));
+					rt.addValue("I1", eigenValues[i * 3 + 2]);
+					rt.addValue("I2", eigenValues[i * 3 + 1]);
+					rt.addValue("I3", eigenValues[i * 3]);
+					rt.addValue("vX", eigenVectors[i * 9 + 2]);
+					rt.addValue("vY", eigenVectors[i * 9 + 5]);
+					rt.addValue("vZ", eigenVectors[i * 9 + 8]);
 				}
 				if (doEulerCharacters) {
 					rt.addValue("Euler (χ)", eulerCharacters[i][0]);
@@ -274,15 +364,24 @@ public class ParticleCounter implements PlugIn {
 						double[] r = { Double.NaN, Double.NaN, Double.NaN };
 						rad = r;
 					} else {
-						Object[] el = ellipsoids[i];
-						double[] radii = (double[]) el[1];
-						rad = radii.clone();
+						double[] el = ellipsoids[i];
+						double[] radii = { el[3], el[4], el[5] };
+						rad = radii;
 						Arrays.sort(rad);
 					}
 					rt.addValue("Major radius (" + units + ")", rad[2]);
 					rt.addValue("Int. radius (" + units + ")", rad[1]);
 					rt.addValue("Minor radius (" + units + ")", rad[0]);
 				}
+				if (doNeighbours) {
+					rt.addValue("NN ID", neighbours[i][0]);
+					rt.addValue("NN dist (" + units + ")", neighbours[i][1]);
+					rt.addValue("Mean " + nNeighbours + "-NN dist (" + units
+							+ ")", neighbours[i][2]);
+					rt.addValue("Neighbours within r", neighbours[i][3]);
+					rt.addValue("Nearest gap ID", neighbours[i][4]);
+					rt.addValue("Gap (" + units + ")", neighbours[i][5]);
+				}
 				rt.updateResults();
 			}
 		}
@@ -311,8 +410,8 @@ public class ParticleCounter implements PlugIn {
 			}
 			if (doAxesImage) {
 				double[][] lengths = (double[][]) getMaxDistances(imp,
-						particleLabels, centroids, eigens)[1];
-				displayPrincipalAxes(eigens, centroids, lengths);
+						particleLabels, centroids, eigenVectors)[1];
+				displayPrincipalAxes(eigenVectors, centroids, lengths);
 			}
 			if (doEllipsoidImage) {
 				displayEllipsoids(ellipsoids);
@@ -329,21 +428,25 @@ public class ParticleCounter implements PlugIn {
 				IJ.log("3D Viewer was closed before rendering completed.");
 			}
 		}
+		if (particleLabels instanceof MappedLabelStore)
+			((MappedLabelStore) particleLabels).close();
 		IJ.showProgress(1.0);
 		IJ.showStatus("Particle Analysis Complete");
 		return;
 	}
 
-	private void displayEllipsoids(Object[][] ellipsoids) {
+	private void displayEllipsoids(double[][] ellipsoids) {
 		final int nEllipsoids = ellipsoids.length;
 		ellipsoidLoop: for (int el = 1; el < nEllipsoids; el++) {
 			IJ.showStatus("Rendering ellipsoids...");
 			IJ.showProgress(el, nEllipsoids);
 			if (ellipsoids[el] == null)
 				continue ellipsoidLoop;
-			final double[] centre = (double[]) ellipsoids[el][0];
-			final double[] radii = (double[]) ellipsoids[el][1];
-			final double[][] eV = (double[][]) ellipsoids[el][2];
+			final double[] fit = ellipsoids[el];
+			final double[] centre = { fit[0], fit[1], fit[2] };
+			final double[] radii = { fit[3], fit[4], fit[5] };
+			final double[][] eV = { { fit[6], fit[7], fit[8] },
+					{ fit[9], fit[10], fit[11] }, { fit[12], fit[13], fit[14] } };
 			for (int r = 0; r < 3; r++) {
 				Double s = radii[r];
 				if (s.equals(Double.NaN))
@@ -396,132 +499,312 @@ public class ParticleCounter implements PlugIn {
 		}
 	}
 
-	private Object[][] getEllipsoids(ArrayList<List<Point3f>> surfacePoints) {
-		Object[][] ellipsoids = new Object[surfacePoints.size()][];
-		int p = 0;
-		Iterator<List<Point3f>> partIter = surfacePoints.iterator();
-		while (partIter.hasNext()) {
-			List<Point3f> points = partIter.next();
-			if (points == null) {
-				p++;
-				continue;
-			}
-			Iterator<Point3f> pointIter = points.iterator();
-			double[][] coOrdinates = new double[points.size()][3];
-			int i = 0;
-			while (pointIter.hasNext()) {
-				Point3f point = pointIter.next();
-				coOrdinates[i][0] = point.x;
-				coOrdinates[i][1] = point.y;
-				coOrdinates[i][2] = point.z;
-				i++;
-			}
-			try {
-				ellipsoids[p] = FitEllipsoid.yuryPetrov(coOrdinates);
-			} catch (RuntimeException re) {
-				IJ.log("Could not fit ellipsoid to surface " + p);
-				ellipsoids[p] = null;
+	/**
+	 * Fit an ellipsoid to each particle's surface, in parallel. Particles are
+	 * handed out to threads one at a time as threads become free, because
+	 * surfaces differ greatly in size.
+	 *
+	 * @param surfacePoints
+	 *            packed surface vertices of each particle
+	 * @return ellipsoid of each particle, indexed by particle label, laid out
+	 *         as by FitEllipsoid.yuryPetrov(float[], double[], double[]), or
+	 *         null if no ellipsoid could be fitted
+	 */
+	private double[][] getEllipsoids(float[][] surfacePoints) {
+		IJ.showStatus("Fitting ellipsoids...");
+		final int nParticles = surfacePoints.length;
+		double[][] ellipsoids = new double[nParticles][];
+		final AtomicInteger next = new AtomicInteger(0);
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		EllipsoidThread[] et = new EllipsoidThread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			et[thread] = new EllipsoidThread(thread, surfacePoints,
+					ellipsoids, next);
+			et[thread].start();
+		}
+		try {
+			for (int thread = 0; thread < nThreads; thread++) {
+				et[thread].join();
 			}
-			p++;
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted.");
 		}
 		return ellipsoids;
 	}
 
 	/**
-	 * Get the mean and standard deviation of pixel values above a minimum value
-	 * for each particle in a particle label work array
-	 * 
+	 * Find each particle's neighbours using a kd-tree of the particles'
+	 * centroids and bounding boxes, so that large numbers of particles don't
+	 * need every pair to be compared.
+	 *
 	 * @param imp
-	 *            Input image containing pixel values
-	 * @param particleLabels
-	 *            workArray containing particle labels
-	 * @param particleSizes
-	 *            array of particle sizes as pixel counts
-	 * @param threshold
-	 *            restrict calculation to values > i
-	 * @return array containing mean, std dev and max pixel values for each
-	 *         particle
+	 * @param centroids
+	 *            calibrated centroid of each particle
+	 * @param limits
+	 *            bounding box of each particle in pixels, as from
+	 *            ParticleStats.getLimits()
+	 * @param volumes
+	 *            particle volumes; particles of zero volume are left out
+	 * @param k
+	 *            number of nearest neighbours to average the distance to
+	 * @param radius
+	 *            distance to count neighbouring centroids within
+	 * @return for each particle: the nearest particle's ID, its centroid
+	 *         distance, the mean distance to the k nearest centroids, the
+	 *         number of centroids within radius, the ID of the particle with
+	 *         the nearest bounding box and the gap between the two boxes,
+	 *         which is 0 if they touch or overlap. NaN where there are no
+	 *         other particles.
 	 */
-	private double[][] getMeanStdDev(ImagePlus imp, int[][] particleLabels,
-			long[] particleSizes, final int threshold) {
-		final int nParticles = particleSizes.length;
-		final int d = imp.getImageStackSize();
-		final int wh = imp.getWidth() * imp.getHeight();
-		ImageStack stack = imp.getImageStack();
-		double[] sums = new double[nParticles];
-		for (int z = 0; z < d; z++) {
-			float[] pixels = (float[]) stack.getPixels(z + 1);
-			int[] labelPixels = particleLabels[z];
-			for (int i = 0; i < wh; i++) {
-				final double value = pixels[i];
-				if (value > threshold) {
-					sums[labelPixels[i]] += value;
-				}
-			}
-		}
-		double[][] meanStdDev = new double[nParticles][3];
+	private double[][] getNeighbours(ImagePlus imp, double[][] centroids,
+			int[][] limits, double[] volumes, int k, double radius) {
+		IJ.showStatus("Finding neighbours...");
+		final Calibration cal = imp.getCalibration();
+		final double vW = cal.pixelWidth;
+		final double vH = cal.pixelHeight;
+		final double vD = cal.pixelDepth;
+		final int nParticles = centroids.length;
+		int nItems = 0;
+		for (int p = 1; p < nParticles; p++)
+			if (volumes[p] > 0)
+				nItems++;
+		// item i of the tree is particle ids[i]
+		int[] ids = new int[nItems];
+		double[] points = new double[3 * nItems];
+		double[] boxes = new double[6 * nItems];
+		int i = 0;
 		for (int p = 1; p < nParticles; p++) {
-			meanStdDev[p][0] = sums[p] / particleSizes[p];
+			if (volumes[p] == 0)
+				continue;
+			ids[i] = p;
+			points[3 * i] = centroids[p][0];
+			points[3 * i + 1] = centroids[p][1];
+			points[3 * i + 2] = centroids[p][2];
+			// boxes enclose whole voxels
+			boxes[6 * i] = limits[p][0] * vW;
+			boxes[6 * i + 1] = (limits[p][1] + 1) * vW;
+			boxes[6 * i + 2] = limits[p][2] * vH;
+			boxes[6 * i + 3] = (limits[p][3] + 1) * vH;
+			boxes[6 * i + 4] = limits[p][4] * vD;
+			boxes[6 * i + 5] = (limits[p][5] + 1) * vD;
+			i++;
 		}
-
-		double[] sumSquares = new double[nParticles];
-		for (int z = 0; z < d; z++) {
-			float[] pixels = (float[]) stack.getPixels(z + 1);
-			int[] labelPixels = particleLabels[z];
-			for (int i = 0; i < wh; i++) {
-				final double value = pixels[i];
-				if (value > threshold) {
-					final int p = labelPixels[i];
-					final double residual = value - meanStdDev[p][0];
-					sumSquares[p] += residual * residual;
-					meanStdDev[p][2] = Math.max(meanStdDev[p][2], value);
-				}
-			}
+		KDTree3D tree = new KDTree3D(points, boxes);
+		double[][] neighbours = new double[nParticles][];
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		NeighbourThread[] nt = new NeighbourThread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			nt[thread] = new NeighbourThread(thread, nThreads, tree, ids,
+					points, k, radius, neighbours);
+			nt[thread].start();
 		}
-		for (int p = 1; p < nParticles; p++) {
-			meanStdDev[p][1] = Math.sqrt(sumSquares[p] / particleSizes[p]);
+		try {
+			for (int thread = 0; thread < nThreads; thread++) {
+				nt[thread].join();
+			}
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted.");
 		}
-		return meanStdDev;
+		return neighbours;
 	}
 
 	/**
-	 * Get the Euler characteristic of each particle
-	 * 
+	 * Get the Euler characteristic, number of holes and number of cavities of
+	 * each particle.
+	 *
+	 * Euler characteristics are summed for all particles at once by a
+	 * multithreaded sweep over the voxel vertices of the label array. Each
+	 * vertex's octant contributes to the sum of every particle it contains
+	 * voxels of, so each particle's Euler characteristic is that of its own
+	 * voxels taken as 26-connected, whatever the labelling connectivity.
+	 *
+	 * Cavities are counted from a single labelling of the background of the
+	 * whole stack. A background particle that doesn't touch the stack sides
+	 * is a cavity of the particle that surrounds it, which is the only
+	 * neighbouring particle whose bounding box contains the background
+	 * particle's bounding box: any other neighbouring particle lies inside
+	 * the cavity.
+	 *
 	 * @param imp
 	 * @param particleLabels
 	 * @param limits
+	 *            bounding box of each particle
 	 * @param nParticles
-	 * @return
+	 * @param slicesPerChunk
+	 *            chunk size for background labelling
+	 * @return {Euler characteristic, holes, cavities} for each particle
 	 */
-	private double[][] getEulerCharacter(ImagePlus imp, int[][] particleLabels,
-			int[][] limits, int nParticles) {
-		Connectivity con = new Connectivity();
+	private double[][] getEulerCharacter(ImagePlus imp,
+			LabelStore particleLabels, int[][] limits, int nParticles,
+			int slicesPerChunk) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final int wh = w * h;
+
+		// Euler characteristic of every particle
+		IJ.showStatus("Calculating Euler characteristics...");
+		final int[] octantLUT = new Connectivity().getOctantEulerLUT();
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		EulerThread[] et = new EulerThread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			et[thread] = new EulerThread(thread, nThreads, w, h, d,
+					particleLabels, nParticles, octantLUT);
+			et[thread].start();
+		}
+		try {
+			for (int thread = 0; thread < nThreads; thread++) {
+				et[thread].join();
+			}
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted.");
+		}
+		long[] sumEuler = new long[nParticles];
+		for (int thread = 0; thread < nThreads; thread++) {
+			for (int p = 0; p < nParticles; p++)
+				sumEuler[p] += et[thread].sumEuler[p];
+		}
+
+		// label the background of all particles together, 6-connected to
+		// complement the Euler characteristic's 26
+		final String phase = this.sPhase;
+		final int fore = this.connectivity;
+		this.connectivity = 26;
+		LabelStore backLabels;
+		long[] backSizes;
+		if (labelMethod == MAPPED) {
+			// straight from the mapped labels, without a work array
+			this.sPhase = "background";
+			Object[] background = mappedLabel(imp, null, particleLabels,
+					slicesPerChunk, 0, Double.POSITIVE_INFINITY, BACK);
+			backLabels = (LabelStore) background[0];
+			backSizes = (long[]) background[1];
+		} else {
+			Object[] background = getLabelStore(imp,
+					makeWorkArray(particleLabels), slicesPerChunk, 0,
+					Double.POSITIVE_INFINITY, BACK);
+			backLabels = (LabelStore) background[1];
+			backSizes = (long[]) background[2];
+		}
+		this.sPhase = phase;
+		this.connectivity = fore;
+		final int nBack = backSizes.length;
+
+		// bounding box of each background particle and whether it touches
+		// the stack sides
+		IJ.showStatus("Counting cavities...");
+		int[][] backLimits = new int[nBack][6];
+		boolean[] touchesSides = new boolean[nBack];
+		int[] labels = new int[wh];
+		for (int b = 0; b < nBack; b++) {
+			backLimits[b][0] = Integer.MAX_VALUE;
+			backLimits[b][2] = Integer.MAX_VALUE;
+			backLimits[b][4] = Integer.MAX_VALUE;
+		}
+		for (int z = 0; z < d; z++) {
+			backLabels.getSlice(z, labels);
+			for (int y = 0; y < h; y++) {
+				final int index = y * w;
+				for (int x = 0; x < w; x++) {
+					final int b = labels[index + x];
+					if (b == 0)
+						continue;
+					final int[] limit = backLimits[b];
+					limit[0] = Math.min(limit[0], x);
+					limit[1] = Math.max(limit[1], x);
+					limit[2] = Math.min(limit[2], y);
+					limit[3] = Math.max(limit[3], y);
+					limit[4] = Math.min(limit[4], z);
+					limit[5] = Math.max(limit[5], z);
+					if (x == 0 || y == 0 || z == 0 || x == w - 1
+							|| y == h - 1 || z == d - 1)
+						touchesSides[b] = true;
+				}
+			}
+			IJ.showProgress(z, 2 * d);
+		}
+
+		// find the particle surrounding each enclosed background particle
+		// particle labels of slices z - 1, z and z + 1
+		int[] below = new int[wh];
+		int[] slice = new int[wh];
+		int[] above = new int[wh];
+		particleLabels.getSlice(0, above);
+		int[] surround = new int[nBack];
+		for (int z = 0; z < d; z++) {
+			final int[] spare = below;
+			below = slice;
+			slice = above;
+			above = spare;
+			if (z < d - 1)
+				particleLabels.getSlice(z + 1, above);
+			backLabels.getSlice(z, labels);
+			for (int y = 0; y < h; y++) {
+				final int index = y * w;
+				for (int x = 0; x < w; x++) {
+					final int b = labels[index + x];
+					if (b == 0 || touchesSides[b] || surround[b] != 0)
+						continue;
+					// enclosed, so all 6 neighbours are within the stack
+					final int i = index + x;
+					int q = slice[i - 1];
+					if (q == 0 || !contains(limits[q], backLimits[b]))
+						q = slice[i + 1];
+					if (q == 0 || !contains(limits[q], backLimits[b]))
+						q = slice[i - w];
+					if (q == 0 || !contains(limits[q], backLimits[b]))
+						q = slice[i + w];
+					if (q == 0 || !contains(limits[q], backLimits[b]))
+						q = below[i];
+					if (q == 0 || !contains(limits[q], backLimits[b]))
+						q = above[i];
+					if (q != 0 && contains(limits[q], backLimits[b]))
+						surround[b] = q;
+				}
+			}
+			IJ.showProgress(d + z, 2 * d);
+		}
+		if (backLabels instanceof MappedLabelStore)
+			((MappedLabelStore) backLabels).close();
+		int[] cavities = new int[nParticles];
+		for (int b = 1; b < nBack; b++)
+			if (surround[b] != 0)
+				cavities[surround[b]]++;
+
 		double[][] eulerCharacters = new double[nParticles][3];
 		for (int p = 1; p < nParticles; p++) {
-			ImagePlus particleImp = getBinaryParticle(p, imp, particleLabels,
-					limits, 1);
-			double euler = con.getSumEuler(particleImp);
-			double cavities = getNCavities(particleImp);
+			final double euler = sumEuler[p] / 8.0;
 			// Calculate number of holes and cavities using
 			// Euler = particles - holes + cavities
 			// where particles = 1
-			double holes = cavities - euler + 1;
-			double[] bettis = { euler, holes, cavities };
+			final double holes = cavities[p] - euler + 1;
+			double[] bettis = { euler, holes, cavities[p] };
 			eulerCharacters[p] = bettis;
 		}
 		return eulerCharacters;
 	}
 
-	private int getNCavities(ImagePlus imp) {
-		Object[] result = getParticles(imp, 4, BACK);
-		long[] particleSizes = (long[]) result[2];
-		final int nParticles = particleSizes.length;
-		final int nCavities = nParticles - 2; // 1 particle is the background
-		return nCavities;
+	/**
+	 * @param outer
+	 *            x, y and z minima and maxima of a bounding box
+	 * @param inner
+	 *            x, y and z minima and maxima of another bounding box
+	 * @return true if outer contains inner
+	 */
+	private static boolean contains(int[] outer, int[] inner) {
+		return outer[0] <= inner[0] && outer[1] >= inner[1]
+				&& outer[2] <= inner[2] && outer[3] >= inner[3]
+				&& outer[4] <= inner[4] && outer[5] >= inner[5];
 	}
 
 	/**
-	 * Get the minimum and maximum x, y and z coordinates of each particle
+	 * Collect voxel counts, bounding boxes, moments and optionally intensity
+	 * sums for all particles in a single multithreaded pass through the
+	 * labels. Each thread accumulates its own slices into its own
+	 * ParticleStats and the partial results are merged at the end. As every
+	 * thread's ParticleStats holds all the particles, fewer threads are used
+	 * when there are so many particles that their copies would take more than
+	 * an eighth of the maximum heap.
 	 * 
 	 * @param imp
 	 *            ImagePlus (used for stack size)
@@ -529,95 +812,72 @@ public class ParticleCounter implements PlugIn {
 	 *            work array containing labelled particles
 	 * @param nParticles
 	 *            number of particles in the stack
-	 * @return int[][] containing x, y and z minima and maxima.
+	 * @param valueImp
+	 *            32-bit image to take intensity sums from, or null
+	 * @param threshold
+	 *            restrict intensity sums to values > threshold
+	 * @return merged statistics for all particles
 	 */
-	private int[][] getParticleLimits(ImagePlus imp, int[][] particleLabels,
-			int nParticles) {
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		int[][] limits = new int[nParticles][6];
-		for (int i = 0; i < nParticles; i++) {
-			limits[i][0] = Integer.MAX_VALUE; // x min
-			limits[i][1] = 0; // x max
-			limits[i][2] = Integer.MAX_VALUE; // y min
-			limits[i][3] = 0; // y max
-			limits[i][4] = Integer.MAX_VALUE; // z min
-			limits[i][5] = 0; // z max
+	private ParticleStats getParticleStats(ImagePlus imp,
+			LabelStore particleLabels, int nParticles, ImagePlus valueImp,
+			double threshold) {
+		IJ.showStatus("Calculating particle statistics...");
+		final long perThread = ParticleStats.getMemoryUsage(nParticles,
+				valueImp != null);
+		final long budget = Runtime.getRuntime().maxMemory() / 8;
+		final int nThreads = (int) Math.max(1, Math.min(Runtime.getRuntime()
+				.availableProcessors(), budget / Math.max(1, perThread)));
+		StatsThread[] st = new StatsThread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			st[thread] = new StatsThread(thread, nThreads, imp,
+					particleLabels, nParticles, valueImp, threshold);
+			st[thread].start();
 		}
-		for (int z = 0; z < d; z++) {
-			for (int y = 0; y < h; y++) {
-				final int index = y * w;
-				for (int x = 0; x < w; x++) {
-					final int i = particleLabels[z][index + x];
-					limits[i][0] = Math.min(limits[i][0], x);
-					limits[i][1] = Math.max(limits[i][1], x);
-					limits[i][2] = Math.min(limits[i][2], y);
-					limits[i][3] = Math.max(limits[i][3], y);
-					limits[i][4] = Math.min(limits[i][4], z);
-					limits[i][5] = Math.max(limits[i][5], z);
-				}
+		try {
+			for (int thread = 0; thread < nThreads; thread++) {
+				st[thread].join();
 			}
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted.");
 		}
-		return limits;
+		ParticleStats stats = st[0].stats;
+		for (int thread = 1; thread < nThreads; thread++) {
+			stats.merge(st[thread].stats);
+		}
+		return stats;
 	}
 
-	private EigenvalueDecomposition[] getEigens(ImagePlus imp,
-			int[][] particleLabels, double[][] centroids) {
-		Calibration cal = imp.getCalibration();
-		final double vW = cal.pixelWidth;
-		final double vH = cal.pixelHeight;
-		final double vD = cal.pixelDepth;
-		final double voxVhVd = (vH * vH + vD * vD) / 12;
-		final double voxVwVd = (vW * vW + vD * vD) / 12;
-		final double voxVhVw = (vH * vH + vW * vW) / 12;
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int nParticles = centroids.length;
-		EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
-		double[][] momentTensors = new double[nParticles][6];
-		for (int z = 0; z < d; z++) {
-			IJ.showStatus("Calculating particle moments...");
-			IJ.showProgress(z, d);
-			final double zVd = z * vD;
-			for (int y = 0; y < h; y++) {
-				final double yVh = y * vH;
-				final int index = y * w;
-				for (int x = 0; x < w; x++) {
-					final int p = particleLabels[z][index + x];
-					if (p > 0) {
-						final double xVw = x * vW;
-						final double dx = xVw - centroids[p][0];
-						final double dy = yVh - centroids[p][1];
-						final double dz = zVd - centroids[p][2];
-						momentTensors[p][0] += dy * dy + dz * dz + voxVhVd; // Ixx
-						momentTensors[p][1] += dx * dx + dz * dz + voxVwVd; // Iyy
-						momentTensors[p][2] += dy * dy + dx * dx + voxVhVw; // Izz
-						momentTensors[p][3] += dx * dy; // Ixy
-						momentTensors[p][4] += dx * dz; // Ixz
-						momentTensors[p][5] += dy * dz; // Iyz
-					}
-				}
+	/**
+	 * Get the principal axes and moments of inertia of each particle. The
+	 * 3x3 tensors are solved by SymmetricEigen3 in a multithreaded pass over
+	 * the particles, with results packed into flat arrays.
+	 * 
+	 * @param momentTensors
+	 *            {Ixx, Iyy, Izz, Ixy, Ixz, Iyz} for each particle, from
+	 *            ParticleStats.getMomentTensors()
+	 * @param eigenValues
+	 *            receives 3 moments of inertia per particle, ascending
+	 * @param eigenVectors
+	 *            receives a row-major 3x3 matrix per particle whose columns
+	 *            are the principal axes, in the order of eigenValues
+	 */
+	private void getEigens(final double[][] momentTensors,
+			final double[] eigenValues, final double[] eigenVectors) {
+		IJ.showStatus("Calculating principal axes...");
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		EigenThread[] et = new EigenThread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			et[thread] = new EigenThread(thread, nThreads, momentTensors,
+					eigenValues, eigenVectors);
+			et[thread].start();
+		}
+		try {
+			for (int thread = 0; thread < nThreads; thread++) {
+				et[thread].join();
 			}
-			for (int p = 1; p < nParticles; p++) {
-				double[][] inertiaTensor = new double[3][3];
-				inertiaTensor[0][0] = momentTensors[p][0];
-				inertiaTensor[1][1] = momentTensors[p][1];
-				inertiaTensor[2][2] = momentTensors[p][2];
-				inertiaTensor[0][1] = -momentTensors[p][3];
-				inertiaTensor[0][2] = -momentTensors[p][4];
-				inertiaTensor[1][0] = -momentTensors[p][3];
-				inertiaTensor[1][2] = -momentTensors[p][5];
-				inertiaTensor[2][0] = -momentTensors[p][4];
-				inertiaTensor[2][1] = -momentTensors[p][5];
-				Matrix inertiaTensorMatrix = new Matrix(inertiaTensor);
-				EigenvalueDecomposition E = new EigenvalueDecomposition(
-						inertiaTensorMatrix);
-				eigens[p] = E;
-			}
-		}
-		return eigens;
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted.");
+		}
 	}
 
 	/**
@@ -627,13 +887,15 @@ public class ParticleCounter implements PlugIn {
 	 * @param imp
 	 * @param particleLabels
 	 * @param centroids
-	 * @param E
+	 * @param eigenVectors
+	 *            packed eigenvector matrices from getEigens()
 	 * @return array containing two nPoints * 3 arrays with max and max
 	 *         transformed distances respectively
 	 * 
 	 */
-	private Object[] getMaxDistances(ImagePlus imp, int[][] particleLabels,
-			double[][] centroids, EigenvalueDecomposition[] E) {
+	private Object[] getMaxDistances(ImagePlus imp,
+			LabelStore particleLabels, double[][] centroids,
+			double[] eigenVectors) {
 		Calibration cal = imp.getCalibration();
 		final double vW = cal.pixelWidth;
 		final double vH = cal.pixelHeight;
@@ -644,11 +906,13 @@ public class ParticleCounter implements PlugIn {
 		final int nParticles = centroids.length;
 		double[][] maxD = new double[nParticles][3];
 		double[][] maxDt = new double[nParticles][3];
+		int[] labels = new int[w * h];
 		for (int z = 0; z < d; z++) {
+			particleLabels.getSlice(z, labels);
 			for (int y = 0; y < h; y++) {
 				final int index = y * w;
 				for (int x = 0; x < w; x++) {
-					final int p = particleLabels[z][index + x];
+					final int p = labels[index + x];
 					if (p > 0) {
 						final double dX = x * vW - centroids[p][0];
 						final double dY = y * vH - centroids[p][1];
@@ -656,13 +920,13 @@ public class ParticleCounter implements PlugIn {
 						maxD[p][0] = Math.max(maxD[p][0], Math.abs(dX));
 						maxD[p][1] = Math.max(maxD[p][1], Math.abs(dY));
 						maxD[p][2] = Math.max(maxD[p][2], Math.abs(dZ));
-						final double[][] eV = E[p].getV().getArray();
-						final double dXt = dX * eV[0][0] + dY * eV[0][1] + dZ
-								* eV[0][2];
-						final double dYt = dX * eV[1][0] + dY * eV[1][1] + dZ
-								* eV[1][2];
-						final double dZt = dX * eV[2][0] + dY * eV[2][1] + dZ
-								* eV[2][2];
+						final int e = p * 9;
+						final double dXt = dX * eigenVectors[e] + dY
+								* eigenVectors[e + 1] + dZ * eigenVectors[e + 2];
+						final double dYt = dX * eigenVectors[e + 3] + dY
+								* eigenVectors[e + 4] + dZ * eigenVectors[e + 5];
+						final double dZt = dX * eigenVectors[e + 6] + dY
+								* eigenVectors[e + 7] + dZ * eigenVectors[e + 8];
 						maxDt[p][0] = Math.max(maxDt[p][0], Math.abs(dXt));
 						maxDt[p][1] = Math.max(maxDt[p][1], Math.abs(dYt));
 						maxDt[p][2] = Math.max(maxDt[p][2], Math.abs(dZt));
@@ -695,14 +959,16 @@ public class ParticleCounter implements PlugIn {
 		return;
 	}
 
-	private void displayPrincipalAxes(EigenvalueDecomposition[] eigens,
+	private void displayPrincipalAxes(double[] eigenVectors,
 			double[][] centroids, double[][] lengths) {
-		final int nEigens = eigens.length;
+		final int nEigens = eigenVectors.length / 9;
 		for (int p = 1; p < nEigens; p++) {
 			IJ.showStatus("Rendering principal axes...");
 			IJ.showProgress(p, nEigens);
-			final Matrix eVec = eigens[p].getV();
-			displayAxes(centroids[p], eVec.getArray(), lengths[p], 1.0f, 0.0f,
+			double[][] eVec = new double[3][3];
+			for (int i = 0; i < 3; i++)
+				System.arraycopy(eigenVectors, p * 9 + i * 3, eVec[i], 0, 3);
+			displayAxes(centroids[p], eVec, lengths[p], 1.0f, 0.0f,
 					0.0f, "Principal Axes " + p);
 		}
 		return;
@@ -822,22 +1088,13 @@ public class ParticleCounter implements PlugIn {
 	 * 
 	 * @param surfacePoints
 	 */
-	private void displayParticleSurfaces(ArrayList<List<Point3f>> surfacePoints) {
-		int p = 0;
-		int drawnParticles = 0;
-		final int nParticles = surfacePoints.size();
-		Iterator<List<Point3f>> i = surfacePoints.iterator();
-		while (i.hasNext()) {
-			List<Point3f> points = i.next();
-			if (p > 0 && points.size() > 0)
-				drawnParticles++;
-		}
-		Iterator<List<Point3f>> iter = surfacePoints.iterator();
-		while (iter.hasNext()) {
+	private void displayParticleSurfaces(float[][] surfacePoints) {
+		final int nParticles = surfacePoints.length;
+		for (int p = 1; p < nParticles; p++) {
 			IJ.showStatus("Rendering surfaces...");
 			IJ.showProgress(p, nParticles);
-			List<Point3f> points = iter.next();
-			if (p > 0 && points.size() > 0) {
+			if (surfacePoints[p].length > 0) {
+				List<Point3f> points = getPointList(surfacePoints[p]);
 				float red = 1.0f - (float) p / (float) nParticles;
 				float green = 1.0f - red;
 				float blue = (float) p / (2.0f * (float) nParticles);
@@ -851,118 +1108,289 @@ public class ParticleCounter implements PlugIn {
 					return;
 				}
 			}
-			p++;
 		}
 	}
 
-	private double[] getSurfaceArea(ArrayList<List<Point3f>> surfacePoints) {
-		Iterator<List<Point3f>> iter = surfacePoints.iterator();
-		double[] surfaceAreas = new double[surfacePoints.size()];
-		int p = 0;
-		while (iter.hasNext()) {
-			List<Point3f> points = iter.next();
-			if (null != points) {
-				double surfaceArea = MeasureSurface.getSurfaceArea(points);
-				surfaceAreas[p] = surfaceArea;
+	private double[] getSurfaceArea(float[][] surfacePoints) {
+		double[] surfaceAreas = new double[surfacePoints.length];
+		for (int p = 0; p < surfacePoints.length; p++) {
+			if (null != surfacePoints[p]) {
+				surfaceAreas[p] = MeasureSurface
+						.getSurfaceArea(surfacePoints[p]);
 			}
-			p++;
 		}
 		return surfaceAreas;
 	}
 
-	private double[] getSurfaceVolume(ArrayList<List<Point3f>> surfacePoints) {
-		Iterator<List<Point3f>> iter = surfacePoints.iterator();
-		double[] surfaceVolumes = new double[surfacePoints.size()];
+	private double[] getSurfaceVolume(float[][] surfacePoints) {
+		double[] surfaceVolumes = new double[surfacePoints.length];
 		final Color3f colour = new Color3f(0.0f, 0.0f, 0.0f);
-		int p = 0;
-		while (iter.hasNext()) {
+		for (int p = 0; p < surfacePoints.length; p++) {
 			IJ.showStatus("Calculating enclosed volume...");
-			List<Point3f> points = iter.next();
-			if (null != points) {
-				CustomTriangleMesh surface = new CustomTriangleMesh(points,
-						colour, 0.0f);
+			if (null != surfacePoints[p]) {
+				CustomTriangleMesh surface = new CustomTriangleMesh(
+						getPointList(surfacePoints[p]), colour, 0.0f);
 				surfaceVolumes[p] = surface.getVolume();
 			}
-			p++;
 		}
 		return surfaceVolumes;
 	}
 
-	@SuppressWarnings("unchecked")
-	private ArrayList<List<Point3f>> getSurfacePoints(ImagePlus imp,
-			int[][] particleLabels, int[][] limits, int resampling,
+	/**
+	 * Convert a packed mesh into the list of points needed by the 3D Viewer
+	 * 
+	 * @param vertices
+	 *            {x0, y0, z0, x1, y1, z1, ...}
+	 * @return list of points
+	 */
+	private static List<Point3f> getPointList(float[] vertices) {
+		final int nPoints = vertices.length / 3;
+		List<Point3f> points = new ArrayList<Point3f>(nPoints);
+		for (int i = 0; i < nPoints; i++)
+			points.add(new Point3f(vertices[i * 3], vertices[i * 3 + 1],
+					vertices[i * 3 + 2]));
+		return points;
+	}
+
+	/**
+	 * Get the surface mesh of every particle. Particles are meshed
+	 * concurrently by a pool of MeshThreads, which claim the next unmeshed
+	 * particle as they finish the last. The binary sub-volumes being meshed
+	 * at any one time are limited to a quarter of the maximum heap, so that
+	 * large particles don't exhaust memory by being meshed all at once.
+	 * 
+	 * @param imp
+	 * @param particleLabels
+	 * @param limits
+	 * @param resampling
+	 * @param nParticles
+	 * @return packed {x0, y0, z0, x1, y1, z1, ...} triangle vertices for each
+	 *         particle, in calibrated stack coordinates; null for particle 0
+	 */
+	private float[][] getSurfacePoints(ImagePlus imp,
+			LabelStore particleLabels, int[][] limits, int resampling,
 			int nParticles) {
-		Calibration cal = imp.getCalibration();
-		ArrayList<List<Point3f>> surfacePoints = new ArrayList<List<Point3f>>();
-		final boolean[] channels = { true, false, false };
-		for (int p = 0; p < nParticles; p++) {
-			IJ.showStatus("Getting surface meshes...");
-			IJ.showProgress(p, nParticles);
-			if (p > 0) {
-				ImagePlus binaryImp = getBinaryParticle(p, imp, particleLabels,
-						limits, resampling);
-				MCTriangulator mct = new MCTriangulator();
-				List<Point3f> points = mct.getTriangles(binaryImp, 128,
-						channels, resampling);
-				final double xOffset = (limits[p][0] - 1) * cal.pixelWidth;
-				final double yOffset = (limits[p][2] - 1) * cal.pixelHeight;
-				final double zOffset = (limits[p][4] - 1) * cal.pixelDepth;
-				Iterator<Point3f> iter = points.iterator();
-				while (iter.hasNext()) {
-					Point3f point = iter.next();
-					point.x += xOffset;
-					point.y += yOffset;
-					point.z += zOffset;
-				}
-				surfacePoints.add(points);
-				if (points.size() == 0) {
-					IJ.log("Particle " + p + " resulted in 0 surface points");
-				}
-			} else {
-				surfacePoints.add(null);
+		IJ.showStatus("Getting surface meshes...");
+		float[][] surfacePoints = new float[nParticles][];
+		// memory budget in kilobytes
+		final int budget = (int) Math.max(1, Math.min(Runtime.getRuntime()
+				.maxMemory() / 4 / 1024, Integer.MAX_VALUE));
+		final Semaphore inFlight = new Semaphore(budget, true);
+		final AtomicInteger next = new AtomicInteger(1);
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		MeshThread[] mt = new MeshThread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			mt[thread] = new MeshThread(thread, imp, particleLabels, limits,
+					resampling, surfacePoints, next, inFlight, budget);
+			mt[thread].start();
+		}
+		try {
+			for (int thread = 0; thread < nThreads; thread++) {
+				mt[thread].join();
 			}
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted.");
 		}
 		return surfacePoints;
 	}
 
 	/**
-	 * Get the Feret diameter of a surface. Uses an inefficient brute-force
-	 * algorithm.
+	 * Mesh a single particle
 	 * 
-	 * @param particleSurfaces
-	 * @return
+	 * @param p
+	 *            particle label
+	 * @param imp
+	 * @param particleLabels
+	 * @param limits
+	 * @param resampling
+	 * @return packed triangle vertices in calibrated stack coordinates
 	 */
-	private double[] getFerets(ArrayList<List<Point3f>> particleSurfaces) {
-		int nParticles = particleSurfaces.size();
-		double[] ferets = new double[nParticles];
-		ListIterator<List<Point3f>> it = particleSurfaces.listIterator();
+	@SuppressWarnings("unchecked")
+	private static float[] getSurface(int p, ImagePlus imp,
+			LabelStore particleLabels, int[][] limits, int resampling) {
+		Calibration cal = imp.getCalibration();
+		final boolean[] channels = { true, false, false };
+		ImagePlus binaryImp = getBinaryParticle(p, imp, particleLabels,
+				limits, resampling);
+		MCTriangulator mct = new MCTriangulator();
+		List<Point3f> points = mct.getTriangles(binaryImp, 128, channels,
+				resampling);
+		final float xOffset = (float) ((limits[p][0] - 1) * cal.pixelWidth);
+		final float yOffset = (float) ((limits[p][2] - 1) * cal.pixelHeight);
+		final float zOffset = (float) ((limits[p][4] - 1) * cal.pixelDepth);
+		final int nPoints = points.size();
+		float[] vertices = new float[nPoints * 3];
 		int i = 0;
-		Point3f a;
-		Point3f b;
-		List<Point3f> surface;
-		ListIterator<Point3f> ita;
-		ListIterator<Point3f> itb;
-		while (it.hasNext()) {
-			IJ.showStatus("Finding Feret diameter...");
-			IJ.showProgress(it.nextIndex(), nParticles);
-			surface = it.next();
-			if (surface == null) {
-				ferets[i] = Double.NaN;
-				i++;
-				continue;
+		for (Point3f point : points) {
+			vertices[i++] = point.x;
+			vertices[i++] = point.y;
+			vertices[i++] = point.z;
+		}
+		points.clear();
+		for (i = 0; i < vertices.length; i += 3) {
+			vertices[i] += xOffset;
+			vertices[i + 1] += yOffset;
+			vertices[i + 2] += zOffset;
+		}
+		if (nPoints == 0) {
+			IJ.log("Particle " + p + " resulted in 0 surface points");
+		}
+		return vertices;
+	}
+
+	/**
+	 * Estimate the memory needed to mesh a particle, in kilobytes
+	 * 
+	 * @param p
+	 * @param limits
+	 * @param padding
+	 * @return approximate peak memory use
+	 */
+	private static long getMeshingCost(int p, int[][] limits, int padding) {
+		final long w = limits[p][1] - limits[p][0] + 2 * padding + 3;
+		final long h = limits[p][3] - limits[p][2] + 2 * padding + 3;
+		final long d = limits[p][5] - limits[p][4] + 2 * padding + 3;
+		// binary sub-volume plus the triangulator's padded copy of it
+		return Math.max(1, 2 * w * h * d / 1024);
+	}
+
+	/**
+	 * Get the Feret diameter of each particle's surface and the two points
+	 * that are farthest apart. Only the vertices of the surface's convex hull
+	 * are compared, and particles are shared among threads.
+	 * 
+	 * @param particleSurfaces
+	 * @return double[][] containing {Feret diameter, ax, ay, az, bx, by, bz}
+	 *         for each particle, where a and b are the ends of the diameter
+	 */
+	private double[][] getFerets(float[][] particleSurfaces) {
+		IJ.showStatus("Finding Feret diameter...");
+		final int nParticles = particleSurfaces.length;
+		double[][] ferets = new double[nParticles][7];
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		FeretThread[] ft = new FeretThread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			ft[thread] = new FeretThread(thread, nThreads, particleSurfaces,
+					ferets);
+			ft[thread].start();
+		}
+		try {
+			for (int thread = 0; thread < nThreads; thread++) {
+				ft[thread].join();
+			}
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted.");
+		}
+		return ferets;
+	}
+
+	/**
+	 * Find the Feret diameter of a surface from its convex hull vertices,
+	 * falling back to all the vertices if the hull can't be built
+	 * 
+	 * @param surface
+	 *            packed surface mesh points, or null
+	 * @return {Feret diameter, ax, ay, az, bx, by, bz}
+	 */
+	private static double[] getFeret(float[] surface) {
+		double[] feret = { Double.NaN, Double.NaN, Double.NaN, Double.NaN,
+				Double.NaN, Double.NaN, Double.NaN };
+		if (surface == null)
+			return feret;
+		feret[0] = 0;
+		final int nPoints = surface.length / 3;
+		if (nPoints == 0)
+			return feret;
+		double[] points = new double[surface.length];
+		for (int i = 0; i < surface.length; i++)
+			points[i] = surface[i];
+		int[] vertices;
+		try {
+			vertices = ConvexHull3D.getHullVertices(points);
+		} catch (RuntimeException re) {
+			vertices = new int[nPoints];
+			for (int v = 0; v < nPoints; v++)
+				vertices[v] = v;
+		}
+		final int nVertices = vertices.length;
+
+		// sort by distance from the centroid, farthest first, so that the
+		// search can stop when no remaining pair can beat the best so far
+		double cx = 0, cy = 0, cz = 0;
+		for (int v = 0; v < nVertices; v++) {
+			cx += points[vertices[v] * 3];
+			cy += points[vertices[v] * 3 + 1];
+			cz += points[vertices[v] * 3 + 2];
+		}
+		cx /= nVertices;
+		cy /= nVertices;
+		cz /= nVertices;
+		double[] radii = new double[nVertices];
+		for (int v = 0; v < nVertices; v++) {
+			radii[v] = Trig.distance3D(points[vertices[v] * 3],
+					points[vertices[v] * 3 + 1], points[vertices[v] * 3 + 2],
+					cx, cy, cz);
+		}
+		sortDescending(radii, vertices);
+
+		double max = 0;
+		double maxSq = 0;
+		int a = vertices[0];
+		int b = vertices[0];
+		for (int m = 0; m < nVertices; m++) {
+			if (2 * radii[m] <= max)
+				break;
+			final int u = vertices[m] * 3;
+			final double ux = points[u], uy = points[u + 1], uz = points[u + 2];
+			for (int n = m + 1; n < nVertices; n++) {
+				if (radii[m] + radii[n] <= max)
+					break;
+				final int v = vertices[n] * 3;
+				final double dx = points[v] - ux;
+				final double dy = points[v + 1] - uy;
+				final double dz = points[v + 2] - uz;
+				final double distSq = dx * dx + dy * dy + dz * dz;
+				if (distSq > maxSq) {
+					maxSq = distSq;
+					max = Math.sqrt(distSq);
+					a = vertices[m];
+					b = vertices[n];
+				}
 			}
-			ita = surface.listIterator();
-			while (ita.hasNext()) {
-				a = ita.next();
-				itb = surface.listIterator(ita.nextIndex());
-				while (itb.hasNext()) {
-					b = itb.next();
-					ferets[i] = Math.max(ferets[i], a.distance(b));
+		}
+		feret[0] = max;
+		for (int d = 0; d < 3; d++) {
+			feret[1 + d] = points[a * 3 + d];
+			feret[4 + d] = points[b * 3 + d];
+		}
+		return feret;
+	}
+
+	/**
+	 * Shell sort keys into descending order, applying the same swaps to
+	 * values
+	 * 
+	 * @param keys
+	 * @param values
+	 */
+	private static void sortDescending(double[] keys, int[] values) {
+		final int n = keys.length;
+		int gap = 1;
+		while (gap < n / 3)
+			gap = 3 * gap + 1;
+		for (; gap > 0; gap /= 3) {
+			for (int i = gap; i < n; i++) {
+				final double key = keys[i];
+				final int value = values[i];
+				int j = i;
+				for (; j >= gap && keys[j - gap] < key; j -= gap) {
+					keys[j] = keys[j - gap];
+					values[j] = values[j - gap];
 				}
+				keys[j] = key;
+				values[j] = value;
 			}
-			i++;
 		}
-		return ferets;
 	}
 
 	/**
@@ -982,7 +1410,7 @@ public class ParticleCounter implements PlugIn {
 	 * @return
 	 */
 	private static ImagePlus getBinaryParticle(int p, ImagePlus imp,
-			int[][] particleLabels, int[][] limits, int padding) {
+			LabelStore particleLabels, int[][] limits, int padding) {
 
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
@@ -997,13 +1425,14 @@ public class ParticleCounter implements PlugIn {
 		final int stackHeight = yMax - yMin + 1;
 		final int stackSize = stackWidth * stackHeight;
 		ImageStack stack = new ImageStack(stackWidth, stackHeight);
+		int[] row = new int[stackWidth];
 		for (int z = zMin; z <= zMax; z++) {
 			byte[] slice = new byte[stackSize];
 			int i = 0;
 			for (int y = yMin; y <= yMax; y++) {
-				final int sourceIndex = y * w;
-				for (int x = xMin; x <= xMax; x++) {
-					if (particleLabels[z][sourceIndex + x] == p) {
+				particleLabels.getRange(z, y * w + xMin, row, stackWidth);
+				for (int x = 0; x < stackWidth; x++) {
+					if (row[x] == p) {
 						slice[i] = (byte) (255 & 0xFF);
 					}
 					i++;
@@ -1030,7 +1459,7 @@ public class ParticleCounter implements PlugIn {
 	 * @return ImagePlus with particle labels substituted with some value
 	 */
 	private ImagePlus displayParticleValues(ImagePlus imp,
-			int[][] particleLabels, double[] values, String title) {
+			LabelStore particleLabels, double[] values, String title) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
 		final int d = imp.getImageStackSize();
@@ -1038,9 +1467,11 @@ public class ParticleCounter implements PlugIn {
 		float[][] pL = new float[d][wh];
 		values[0] = 0; // don't colour the background
 		ImageStack stack = new ImageStack(w, h);
+		int[] labels = new int[wh];
 		for (int z = 0; z < d; z++) {
+			particleLabels.getSlice(z, labels);
 			for (int i = 0; i < wh; i++) {
-				final int p = particleLabels[z][i];
+				final int p = labels[i];
 				pL[z][i] = (float) values[p];
 			}
 			stack.addSlice(imp.getImageStack().getSliceLabel(z + 1), pL[z]);
@@ -1057,56 +1488,20 @@ public class ParticleCounter implements PlugIn {
 		return impOut;
 	}
 
+	private double[] getVolumes(ImagePlus imp, long[] particleSizes) {
+		Calibration cal = imp.getCalibration();
+		final double voxelVolume = cal.pixelWidth * cal.pixelHeight
+				* cal.pixelDepth;
+		final int nLabels = particleSizes.length;
+		double[] particleVolumes = new double[nLabels];
+		for (int i = 0; i < nLabels; i++) {
+			particleVolumes[i] = voxelVolume * particleSizes[i];
+		}
+		return particleVolumes;
+	}
+
 	/**
-	 * Get the centroids of all the particles in real units
-	 * 
-	 * @param imp
-	 * @param particleLabels
-	 * @param particleSizes
-	 * @return double[][] containing all the particles' centroids
-	 */
-	private double[][] getCentroids(ImagePlus imp, int[][] particleLabels,
-			long[] particleSizes) {
-		final int nParticles = particleSizes.length;
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		double[][] sums = new double[nParticles][3];
-		for (int z = 0; z < d; z++) {
-			for (int y = 0; y < h; y++) {
-				final int index = y * w;
-				for (int x = 0; x < w; x++) {
-					final int particle = particleLabels[z][index + x];
-					sums[particle][0] += x;
-					sums[particle][1] += y;
-					sums[particle][2] += z;
-				}
-			}
-		}
-		Calibration cal = imp.getCalibration();
-		double[][] centroids = new double[nParticles][3];
-		for (int p = 0; p < nParticles; p++) {
-			centroids[p][0] = cal.pixelWidth * sums[p][0] / particleSizes[p];
-			centroids[p][1] = cal.pixelHeight * sums[p][1] / particleSizes[p];
-			centroids[p][2] = cal.pixelDepth * sums[p][2] / particleSizes[p];
-		}
-		return centroids;
-	}
-
-	private double[] getVolumes(ImagePlus imp, long[] particleSizes) {
-		Calibration cal = imp.getCalibration();
-		final double voxelVolume = cal.pixelWidth * cal.pixelHeight
-				* cal.pixelDepth;
-		final int nLabels = particleSizes.length;
-		double[] particleVolumes = new double[nLabels];
-		for (int i = 0; i < nLabels; i++) {
-			particleVolumes[i] = voxelVolume * particleSizes[i];
-		}
-		return particleVolumes;
-	}
-
-	/**
-	 * Get particles, particle labels and particle sizes from a 3D ImagePlus
+	 * Get particles, particle labels and particle sizes from a 3D ImagePlus
 	 * 
 	 * @param imp
 	 *            Binary input image
@@ -1165,6 +1560,67 @@ public class ParticleCounter implements PlugIn {
 	 */
 	public Object[] getParticles(ImagePlus imp, byte[][] workArray,
 			int slicesPerChunk, double minVol, double maxVol, int phase) {
+		Object[] particles = getLabelStore(imp, workArray, slicesPerChunk,
+				minVol, maxVol, phase);
+		LabelStore store = (LabelStore) particles[1];
+		Object[] result = { workArray, store.toIntArray(), particles[2] };
+		if (store instanceof MappedLabelStore)
+			((MappedLabelStore) store).close();
+		return result;
+	}
+
+	/**
+	 * Get particles, particle labels and particle sizes from a 3D ImagePlus,
+	 * with the labels kept in compact storage
+	 * 
+	 * @param imp
+	 *            Binary input image
+	 * @param slicesPerChunk
+	 *            number of slices per chunk
+	 * @param minVol
+	 *            minimum volume particle to include
+	 * @param maxVol
+	 *            maximum volume particle to include
+	 * @param phase
+	 *            foreground or background (FORE or BACK)
+	 * @return Object[] {byte[][], LabelStore, long[]} containing a binary
+	 *         workArray, particle labels and particle sizes
+	 */
+	public Object[] getLabelStore(ImagePlus imp, int slicesPerChunk,
+			double minVol, double maxVol, int phase) {
+		byte[][] workArray = makeWorkArray(imp);
+		return getLabelStore(imp, workArray, slicesPerChunk, minVol, maxVol,
+				phase);
+	}
+
+	/**
+	 * Get particles, particle labels and sizes from a workArray, with the
+	 * labels kept in a LabelStore that uses 1, 2 or 4 bytes per voxel in each
+	 * slab of slicesPerChunk slices depending on how many labels it contains.
+	 *
+	 * Out of core, the labels are in a MappedLabelStore, which should be
+	 * closed when it is no longer needed. A null workArray is labelled out of
+	 * core straight from imp, leaving result[0] null; the other labelling
+	 * methods need a work array, so one is made from imp.
+	 *
+	 * @param imp
+	 *            input binary image
+	 * @param workArray
+	 *            work array, or null to label out of core straight from imp
+	 *            if the labelling method is MAPPED, or to make one from imp
+	 * @param slicesPerChunk
+	 *            number of slices to use for each chunk and label slab
+	 * @param minVol
+	 *            minimum volume particle to include
+	 * @param maxVol
+	 *            maximum volume particle to include
+	 * @param phase
+	 *            FORE or BACK for foreground or background respectively
+	 * @return Object[] {byte[][], LabelStore, long[]} containing a binary
+	 *         workArray, particle labels and particle sizes
+	 */
+	public Object[] getLabelStore(ImagePlus imp, byte[][] workArray,
+			int slicesPerChunk, double minVol, double maxVol, int phase) {
 		if (phase == FORE) {
 			this.sPhase = "foreground";
 		} else if (phase == BACK) {
@@ -1175,6 +1631,291 @@ public class ParticleCounter implements PlugIn {
 		if (slicesPerChunk < 1) {
 			throw new IllegalArgumentException();
 		}
+		if (workArray == null && labelMethod != MAPPED)
+			workArray = makeWorkArray(imp);
+		LabelStore store;
+		long[] particleSizes;
+		if (labelMethod == MULTI) {
+			store = LabelStore.fromIntArray(multiLabel(imp, workArray,
+					slicesPerChunk, phase), imp.getWidth(), imp.getHeight(),
+					slicesPerChunk);
+			// multiLabel() leaves gaps in the label sequence
+			particleSizes = filterParticles(imp, workArray, store,
+					getParticleSizes(store), minVol, maxVol, phase);
+		} else {
+			// union-find labelling filters and sizes particles as it goes
+			Object[] labelled;
+			if (labelMethod == LINEAR) {
+				labelled = linearLabel(imp, workArray, slicesPerChunk, minVol,
+						maxVol, phase);
+			} else if (labelMethod == PARALLEL) {
+				labelled = parallelLabel(imp, workArray, slicesPerChunk,
+						minVol, maxVol, phase);
+			} else {
+				labelled = mappedLabel(imp, workArray, null, slicesPerChunk,
+						minVol, maxVol, phase);
+			}
+			store = (LabelStore) labelled[0];
+			particleSizes = (long[]) labelled[1];
+		}
+		Object[] result = { workArray, store, particleSizes };
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Update existing particle labels after part of the image has changed,
+	 * e.g. by editing an ROI or re-thresholding a small region, without
+	 * labelling the whole stack again.
+	 * </p>
+	 * <p>
+	 * The changed region plus a one voxel halo is checked for the particles
+	 * that touched it, and the region is grown to enclose all of those
+	 * particles, as they may have split, merged or grown. Only the grown
+	 * region is relabelled. New labels are joined to the unchanged labels just
+	 * outside it, so particles crossing its boundary keep their IDs. Wholly
+	 * relabelled particles take the ID of an old particle they overlap where
+	 * one is free, otherwise a new ID at the end of the sequence; IDs left
+	 * unused have a size of 0.
+	 * </p>
+	 * <p>
+	 * The labels must come from getParticles() with no volume limits, as
+	 * particles removed by size filtering can't be told apart from the other
+	 * phase.
+	 * </p>
+	 *
+	 * @param imp
+	 *            binary image, already changed
+	 * @param particleLabels
+	 *            labels of imp before the change, updated in place
+	 * @param particleSizes
+	 *            voxel count of each label before the change
+	 * @param limits
+	 *            bounding box of each label before the change, as from
+	 *            ParticleStats.getLimits(), or null to find them from the
+	 *            labels. They are not updated.
+	 * @param region
+	 *            bounding box of the change {x min, x max, y min, y max, z
+	 *            min, z max}, in pixels, inclusive
+	 * @param phase
+	 *            FORE or BACK
+	 * @return voxel count of each label after the change
+	 */
+	public long[] relabelRegion(ImagePlus imp, int[][] particleLabels,
+			long[] particleSizes, int[][] limits, int[] region, int phase) {
+		if (phase == FORE) {
+			this.sPhase = "foreground";
+		} else if (phase == BACK) {
+			this.sPhase = "background";
+		} else {
+			throw new IllegalArgumentException();
+		}
+		IJ.showStatus("Relabelling " + sPhase + " particles");
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final int nOld = particleSizes.length;
+		// changed region plus halo
+		final int[] halo = { Math.max(0, region[0] - 1),
+				Math.min(w - 1, region[1] + 1), Math.max(0, region[2] - 1),
+				Math.min(h - 1, region[3] + 1), Math.max(0, region[4] - 1),
+				Math.min(d - 1, region[5] + 1) };
+		boolean[] affected = new boolean[nOld];
+		for (int z = halo[4]; z <= halo[5]; z++) {
+			final int[] labels = particleLabels[z];
+			for (int y = halo[2]; y <= halo[3]; y++) {
+				final int rowIndex = y * w;
+				for (int x = halo[0]; x <= halo[1]; x++)
+					affected[labels[rowIndex + x]] = true;
+			}
+		}
+		affected[0] = false;
+		if (limits == null)
+			limits = getLimits(particleLabels, w, h, affected);
+		// grow the region to enclose every affected particle
+		final int[] box = halo.clone();
+		for (int p = 1; p < nOld; p++) {
+			if (!affected[p])
+				continue;
+			for (int i = 0; i < 6; i += 2) {
+				box[i] = Math.min(box[i], limits[p][i]);
+				box[i + 1] = Math.max(box[i + 1], limits[p][i + 1]);
+			}
+		}
+
+		// old labels keep their numbers in the table, so sets that reach an
+		// unchanged particle are rooted at its old label
+		UnionFind uf = new UnionFind(nOld + 1024);
+		for (int p = 1; p < nOld; p++)
+			uf.newLabel();
+		final int base = nOld - 1;
+		long[] sizes = particleSizes.clone();
+		// first old label found under each new label
+		int[] overlap = new int[1024];
+		final int[][] table = getNeighbourTable(getConnectivity(phase), false,
+				w);
+		final int[] dX = table[0];
+		final int[] dY = table[1];
+		final int[] dZ = table[2];
+		final int nNeighbours = dX.length;
+		final int nPreceding = nNeighbours / 2;
+		final int[] neighbours = new int[nNeighbours];
+		ImageStack stack = imp.getImageStack();
+		final int nSlices = box[5] - box[4] + 1;
+		for (int z = box[4]; z <= box[5]; z++) {
+			final byte[] pixels = (byte[]) stack.getPixels(z + 1);
+			final int[] labels = particleLabels[z];
+			for (int y = box[2]; y <= box[3]; y++) {
+				final int rowIndex = y * w;
+				for (int x = box[0]; x <= box[1]; x++) {
+					final int arrayIndex = rowIndex + x;
+					final int oldLabel = labels[arrayIndex];
+					sizes[oldLabel]--;
+					if (pixels[arrayIndex] != phase) {
+						labels[arrayIndex] = 0;
+						continue;
+					}
+					int n = 0;
+					for (int k = 0; k < nNeighbours; k++) {
+						final int vX = x + dX[k];
+						final int vY = y + dY[k];
+						final int vZ = z + dZ[k];
+						if (vX < 0 || vX >= w || vY < 0 || vY >= h || vZ < 0
+								|| vZ >= d)
+							continue;
+						final boolean inside = vX >= box[0] && vX <= box[1]
+								&& vY >= box[2] && vY <= box[3]
+								&& vZ >= box[4] && vZ <= box[5];
+						// later neighbours inside the box aren't labelled yet
+						if (inside && k >= nPreceding)
+							continue;
+						final int tagv = particleLabels[vZ][vY * w + vX];
+						if (tagv != 0)
+							neighbours[n++] = tagv;
+					}
+					final int label = resolveLabel(uf, neighbours, n, base);
+					uf.addSize(label, 1);
+					labels[arrayIndex] = label;
+					if (label - base >= overlap.length) {
+						int[] newOverlap = new int[overlap.length * 2];
+						System.arraycopy(overlap, 0, newOverlap, 0,
+								overlap.length);
+						overlap = newOverlap;
+					}
+					if (overlap[label - base] == 0)
+						overlap[label - base] = oldLabel;
+				}
+			}
+			IJ.showProgress(z - box[4], nSlices);
+		}
+
+		// reconcile new sets with the old IDs: sets joined to particles
+		// outside the box keep their IDs, then the rest take the first free
+		// ID they overlap
+		final int nLabels = uf.getNLabels();
+		int[] map = new int[nLabels];
+		boolean[] claimed = new boolean[nOld];
+		for (int label = nOld; label < nLabels; label++) {
+			final int root = uf.find(label);
+			if (root < nOld) {
+				map[root] = root;
+				claimed[root] = true;
+			}
+		}
+		for (int label = nOld; label < nLabels; label++) {
+			final int root = uf.find(label);
+			final int old = overlap[label - base];
+			if (root >= nOld && map[root] == 0 && old != 0 && !claimed[old]) {
+				map[root] = old;
+				claimed[old] = true;
+			}
+		}
+		int next = nOld;
+		for (int label = nOld; label < nLabels; label++) {
+			final int root = uf.find(label);
+			if (map[root] == 0)
+				map[root] = next++;
+			map[label] = map[root];
+		}
+		long[] newSizes = new long[next];
+		System.arraycopy(sizes, 0, newSizes, 0, nOld);
+		for (int label = nOld; label < nLabels; label++)
+			newSizes[map[label]] += uf.getSize(label);
+		newSizes[0] = 0;
+		for (int z = box[4]; z <= box[5]; z++) {
+			final int[] labels = particleLabels[z];
+			for (int y = box[2]; y <= box[3]; y++) {
+				final int rowIndex = y * w;
+				for (int x = box[0]; x <= box[1]; x++) {
+					final int arrayIndex = rowIndex + x;
+					labels[arrayIndex] = map[labels[arrayIndex]];
+				}
+			}
+		}
+		return newSizes;
+	}
+
+	/**
+	 * Find the bounding boxes of some of the particles
+	 *
+	 * @param particleLabels
+	 * @param w
+	 *            stack width
+	 * @param h
+	 *            stack height
+	 * @param wanted
+	 *            true for each label whose bounding box is needed
+	 * @return int[][] {x min, x max, y min, y max, z min, z max} of each
+	 *         wanted label
+	 */
+	private int[][] getLimits(int[][] particleLabels, int w, int h,
+			boolean[] wanted) {
+		final int nLabels = wanted.length;
+		int[][] limits = new int[nLabels][];
+		for (int p = 0; p < nLabels; p++) {
+			if (!wanted[p])
+				continue;
+			int[] l = { Integer.MAX_VALUE, -1, Integer.MAX_VALUE, -1,
+					Integer.MAX_VALUE, -1 };
+			limits[p] = l;
+		}
+		final int d = particleLabels.length;
+		for (int z = 0; z < d; z++) {
+			final int[] labels = particleLabels[z];
+			for (int y = 0; y < h; y++) {
+				final int rowIndex = y * w;
+				for (int x = 0; x < w; x++) {
+					final int p = labels[rowIndex + x];
+					if (p >= nLabels || !wanted[p])
+						continue;
+					final int[] l = limits[p];
+					l[0] = Math.min(l[0], x);
+					l[1] = Math.max(l[1], x);
+					l[2] = Math.min(l[2], y);
+					l[3] = Math.max(l[3], y);
+					l[4] = Math.min(l[4], z);
+					l[5] = Math.max(l[5], z);
+				}
+			}
+		}
+		return limits;
+	}
+
+	/**
+	 * Label particles by chunked firstIDAttribution() and connectStructures()
+	 * 
+	 * @param imp
+	 *            input binary image
+	 * @param workArray
+	 *            work array
+	 * @param slicesPerChunk
+	 *            number of slices to use for each chunk
+	 * @param phase
+	 *            FORE or BACK for foreground or background respectively
+	 * @return particleLabels
+	 */
+	private int[][] multiLabel(ImagePlus imp, byte[][] workArray,
+			int slicesPerChunk, int phase) {
 		// Set up the chunks
 		final int nChunks = getNChunks(imp, slicesPerChunk);
 		final int[][] chunkRanges = getChunkRanges(imp, nChunks, slicesPerChunk);
@@ -1205,95 +1946,721 @@ public class ParticleCounter implements PlugIn {
 			connectStructures(imp, workArray, particleLabels, phase,
 					stitchRanges);
 		}
-		filterParticles(imp, workArray, particleLabels, minVol, maxVol, phase);
-		minimiseLabels(particleLabels);
-		long[] particleSizes = getParticleSizes(particleLabels);
-		Object[] result = { workArray, particleLabels, particleSizes };
+		return particleLabels;
+	}
+
+	/**
+	 * <p>
+	 * Label particles in a single raster pass. Each voxel of phase takes a
+	 * label from its already-visited neighbours and any differing neighbour
+	 * labels are recorded as equivalent in a union-find table. Equivalences
+	 * are then resolved and the labels rewritten in one final pass, so the
+	 * stack is read twice no matter how many particles merge.
+	 * </p>
+	 * <p>
+	 * Each slab of the LabelStore only holds labels issued while it was being
+	 * scanned, stored relative to the number of labels issued before it, so
+	 * provisional labels stay small enough for byte or short storage.
+	 * </p>
+	 * Foreground and background connectivity are set by setConnectivity().
+	 * 
+	 * @param imp
+	 *            input image, used for dimensions
+	 * @param workArray
+	 *            binary work array
+	 * @param slabSize
+	 *            number of slices per LabelStore slab
+	 * @param minVol
+	 *            minimum volume particle to include
+	 * @param maxVol
+	 *            maximum volume particle to include
+	 * @param phase
+	 *            FORE or BACK for foreground or background respectively
+	 * @return Object[] {LabelStore, long[]} holding particle labels,
+	 *         consecutive and numbered in order of each particle's first
+	 *         voxel, and particle sizes
+	 */
+	private Object[] linearLabel(ImagePlus imp, final byte[][] workArray,
+			int slabSize, double minVol, double maxVol, final int phase) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		IJ.showStatus("Finding " + sPhase + " structures");
+		LabelStore store = new LabelStore(w, h, d, slabSize);
+		final int[] slabBase = new int[store.getNSlabs()];
+		UnionFind uf = new UnionFind();
+		labelChunk(w, h, workArray, store, slabBase, phase, 0, d, uf);
+
+		IJ.showStatus("Resolving " + sPhase + " labels");
+		final int[] map = uf.getCompactLabels();
+		final long[] particleSizes = filterLabels(imp, uf, map, minVol, maxVol);
+		relabelChunk(store, slabBase, map, workArray, phase, 0, d);
+		store.pack();
+		Object[] result = { store, particleSizes };
 		return result;
 	}
 
 	/**
-	 * Remove particles outside user-specified volume thresholds
+	 * <p>
+	 * Label particles with every chunk labelled in its own thread. Each chunk
+	 * is scanned as in linearLabel() but with its own union-find table, so it
+	 * does not look across its first slice. When all chunks are done, each
+	 * chunk's labels are offset into a range of their own in a single table
+	 * and only the voxels on the first slice of each chunk are stitched to
+	 * the last slice of the previous chunk. A final multithreaded pass writes
+	 * the resolved labels, which are identical to linearLabel()'s.
+	 * </p>
+	 * <p>
+	 * Chunks are a whole number of LabelStore slabs thick, and are made
+	 * thicker if needed so that there are no more chunks than processors.
+	 * </p>
 	 * 
 	 * @param imp
-	 *            ImagePlus, used for calibration
+	 *            input image, used for dimensions
 	 * @param workArray
-	 *            binary foreground and background information
-	 * @param particleLabels
-	 *            Packed 3D array of particle labels
+	 *            binary work array
+	 * @param slabSize
+	 *            number of slices per LabelStore slab
 	 * @param minVol
-	 *            minimum (inclusive) particle volume
+	 *            minimum volume particle to include
 	 * @param maxVol
-	 *            maximum (inclusive) particle volume
+	 *            maximum volume particle to include
 	 * @param phase
-	 *            phase we are interested in
+	 *            FORE or BACK for foreground or background respectively
+	 * @return Object[] {LabelStore, long[]} holding particle labels and sizes
 	 */
-	private void filterParticles(ImagePlus imp, byte[][] workArray,
-			int[][] particleLabels, double minVol, double maxVol, int phase) {
-		if (minVol == 0 && maxVol == Double.POSITIVE_INFINITY)
-			return;
+	private Object[] parallelLabel(ImagePlus imp, final byte[][] workArray,
+			int slabSize, double minVol, double maxVol, final int phase) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
 		final int d = imp.getImageStackSize();
-		final int wh = workArray[0].length;
-		long[] particleSizes = getParticleSizes(particleLabels);
-		double[] particleVolumes = getVolumes(imp, particleSizes);
-		byte flip = 0;
-		if (phase == FORE) {
-			flip = (byte) 0;
-		} else {
-			flip = (byte) 255;
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		final int minChunkSize = (d + nThreads - 1) / nThreads;
+		final int chunkSize = slabSize
+				* Math.max(1, (minChunkSize + slabSize - 1) / slabSize);
+		final int nChunks = getNChunks(imp, chunkSize);
+		final int[][] chunkRanges = getChunkRanges(imp, nChunks, chunkSize);
+		IJ.showStatus("Finding " + sPhase + " structures");
+		LabelStore store = new LabelStore(w, h, d, slabSize);
+		final int[] slabBase = new int[store.getNSlabs()];
+
+		// label each chunk independently
+		UnionFind[] chunkTables = new UnionFind[nChunks];
+		ChunkLabelThread[] clt = new ChunkLabelThread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			clt[thread] = new ChunkLabelThread(thread, nThreads, w, h,
+					workArray, store, slabBase, phase, chunkRanges,
+					chunkTables);
+			clt[thread].start();
 		}
-		for (int z = 0; z < d; z++) {
+		try {
+			for (int thread = 0; thread < nThreads; thread++) {
+				clt[thread].join();
+			}
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted.");
+		}
+
+		// give each chunk its own label range in a single table
+		IJ.showStatus("Stitching " + sPhase + " chunks");
+		int nLabels = 1;
+		for (int c = 0; c < nChunks; c++) {
+			final int offset = nLabels - 1;
+			for (int s = store.getSlab(chunkRanges[0][c]); s <= store
+					.getSlab(chunkRanges[1][c] - 1); s++) {
+				slabBase[s] += offset;
+			}
+			nLabels += chunkTables[c].getNLabels() - 1;
+		}
+		UnionFind uf = new UnionFind(nLabels);
+		for (int l = 1; l < nLabels; l++) {
+			uf.newLabel();
+		}
+		int offset = 0;
+		for (int c = 0; c < nChunks; c++) {
+			final UnionFind chunkTable = chunkTables[c];
+			final int nChunkLabels = chunkTable.getNLabels();
+			for (int l = 1; l < nChunkLabels; l++) {
+				final int root = chunkTable.find(l);
+				if (root != l)
+					uf.union(offset + l, offset + root);
+				uf.addSize(offset + l, chunkTable.getSize(l));
+			}
+			offset += nChunkLabels - 1;
+			chunkTables[c] = null;
+		}
+
+		// merge labels that meet across chunk boundaries
+		for (int c = 1; c < nChunks; c++) {
+			stitchChunk(w, h, workArray, store, slabBase, phase,
+					chunkRanges[0][c], uf);
+		}
+
+		// write the resolved labels
+		IJ.showStatus("Resolving " + sPhase + " labels");
+		final int[] map = uf.getCompactLabels();
+		final long[] particleSizes = filterLabels(imp, uf, map, minVol, maxVol);
+		RelabelThread[] rt = new RelabelThread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			rt[thread] = new RelabelThread(thread, nThreads, store, slabBase,
+					chunkRanges, map, workArray, phase);
+			rt[thread].start();
+		}
+		try {
+			for (int thread = 0; thread < nThreads; thread++) {
+				rt[thread].join();
+			}
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted.");
+		}
+		store.pack();
+		Object[] result = { store, particleSizes };
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Label particles out of core. Chunks of slabSize slices are labelled one
+	 * at a time as in linearLabel(), each chunk's first slice is stitched to
+	 * the last slice of the previous chunk and the labels are resolved chunk
+	 * by chunk. Provisional and final labels are written to a
+	 * MappedLabelStore. If workArray is null, the binary image is copied into
+	 * a memory-mapped temporary file and each chunk is read back from it when
+	 * it is labelled, so only one chunk, the slice before it and the
+	 * union-find table are held in the heap. Labels are identical to
+	 * linearLabel()'s. The binary image is imp, or the particles of an
+	 * earlier labelling if one is given.
+	 * </p>
+	 * <p>
+	 * If the temporary files can't be made, particles are labelled in memory
+	 * by linearLabel() instead.
+	 * </p>
+	 *
+	 * @param imp
+	 *            input image
+	 * @param workArray
+	 *            binary work array, or null to read chunks from imp or
+	 *            particles via a temporary file
+	 * @param particles
+	 *            labels whose non-zero voxels are the foreground of the
+	 *            binary image, or null to take the binary image from imp
+	 * @param slabSize
+	 *            number of slices per chunk and per LabelStore slab
+	 * @param minVol
+	 *            minimum volume particle to include
+	 * @param maxVol
+	 *            maximum volume particle to include
+	 * @param phase
+	 *            FORE or BACK for foreground or background respectively
+	 * @return Object[] {LabelStore, long[]} holding particle labels and sizes
+	 */
+	private Object[] mappedLabel(ImagePlus imp, byte[][] workArray,
+			LabelStore particles, int slabSize, double minVol, double maxVol,
+			final int phase) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final int wh = w * h;
+		final int nChunks = getNChunks(imp, slabSize);
+		final int[][] chunkRanges = getChunkRanges(imp, nChunks, slabSize);
+		MappedLabelStore store = null;
+		File workFile = null;
+		RandomAccessFile workRaf = null;
+		try {
+			store = new MappedLabelStore(w, h, d, slabSize, null);
+			FileChannel workChannel = null;
+			if (workArray == null) {
+				IJ.showStatus("Writing work array to disk");
+				workFile = File.createTempFile("work", ".tmp");
+				workFile.deleteOnExit();
+				workRaf = new RandomAccessFile(workFile, "rw");
+				workRaf.setLength((long) d * wh);
+				workChannel = workRaf.getChannel();
+				writeWorkFile(imp, particles, workChannel, chunkRanges);
+			}
+			final int[] slabBase = new int[store.getNSlabs()];
+			UnionFind uf = new UnionFind();
+			// the slices of the current chunk and the one before it
+			byte[][] window = new byte[d][];
+			for (int c = 0; c < nChunks; c++) {
+				final int startZ = chunkRanges[0][c];
+				final int endZ = chunkRanges[1][c];
+				IJ.showStatus("Finding " + sPhase + " structures: chunk "
+						+ (c + 1) + "/" + nChunks);
+				if (workChannel == null) {
+					for (int z = startZ; z < endZ; z++)
+						window[z] = workArray[z];
+				} else {
+					MappedByteBuffer chunk = workChannel.map(
+							FileChannel.MapMode.READ_ONLY, (long) startZ * wh,
+							(long) (endZ - startZ) * wh);
+					for (int z = startZ; z < endZ; z++) {
+						window[z] = new byte[wh];
+						chunk.get(window[z]);
+					}
+				}
+				labelChunk(w, h, window, store, slabBase, phase, startZ, endZ,
+						uf);
+				if (c > 0) {
+					stitchChunk(w, h, window, store, slabBase, phase, startZ,
+							uf);
+					window[startZ - 1] = null;
+					store.release(store.getSlab(startZ - 1));
+				}
+				for (int z = startZ; z < endZ - 1; z++)
+					window[z] = null;
+			}
+			window = null;
+
+			IJ.showStatus("Resolving " + sPhase + " labels");
+			final int[] map = uf.getCompactLabels();
+			final long[] particleSizes = filterLabels(imp, uf, map, minVol,
+					maxVol);
+			uf = null;
+			for (int c = 0; c < nChunks; c++) {
+				relabelChunk(store, slabBase, map, workArray, phase,
+						chunkRanges[0][c], chunkRanges[1][c]);
+				store.release(store.getSlab(chunkRanges[0][c]));
+			}
+			Object[] result = { store, particleSizes };
+			return result;
+		} catch (IOException e) {
+			IJ.log("Out-of-core labelling failed (" + e.getMessage()
+					+ "), labelling in memory instead.");
+			if (store != null)
+				store.close();
+			if (workArray == null && particles == null)
+				workArray = makeWorkArray(imp);
+			else if (workArray == null)
+				workArray = makeWorkArray(particles);
+			return linearLabel(imp, workArray, slabSize, minVol, maxVol, phase);
+		} finally {
+			try {
+				if (workRaf != null)
+					workRaf.close();
+			} catch (IOException e) {
+				// the file is deleted on exit anyway
+			}
+			if (workFile != null)
+				workFile.delete();
+		}
+	}
+
+	/**
+	 * Copy the binary image into a temporary file, one memory-mapped chunk at
+	 * a time, as makeWorkArray() does into the heap
+	 *
+	 * @param imp
+	 *            input binary image
+	 * @param particles
+	 *            labels to take the binary image from instead of imp, or null
+	 * @param channel
+	 *            channel of a file of width * height * depth bytes
+	 * @param chunkRanges
+	 *            chunks to map the file in
+	 * @throws IOException
+	 */
+	private void writeWorkFile(ImagePlus imp, LabelStore particles,
+			FileChannel channel, int[][] chunkRanges) throws IOException {
+		final int wh = imp.getWidth() * imp.getHeight();
+		final int d = imp.getImageStackSize();
+		ImageStack stack = imp.getStack();
+		byte[] slice = new byte[wh];
+		int[] labels = particles == null ? null : new int[wh];
+		for (int c = 0; c < chunkRanges[0].length; c++) {
+			final int startZ = chunkRanges[0][c];
+			final int endZ = chunkRanges[1][c];
+			MappedByteBuffer chunk = channel.map(
+					FileChannel.MapMode.READ_WRITE, (long) startZ * wh,
+					(long) (endZ - startZ) * wh);
+			for (int z = startZ; z < endZ; z++) {
+				if (particles == null) {
+					ImageProcessor ip = stack.getProcessor(z + 1);
+					for (int i = 0; i < wh; i++)
+						slice[i] = (byte) ip.get(i);
+				} else {
+					particles.getSlice(z, labels);
+					for (int i = 0; i < wh; i++)
+						slice[i] = labels[i] > 0 ? (byte) FORE : (byte) BACK;
+				}
+				chunk.put(slice);
+				IJ.showProgress(z, d);
+			}
+			chunk.force();
+		}
+	}
+
+	/**
+	 * Assign provisional labels to the voxels of phase in slices startZ to
+	 * endZ - 1, recording equivalences in uf. Voxels outside the chunk are
+	 * ignored, so chunks can be labelled concurrently.
+	 * 
+	 * A voxel only takes a neighbour's label if it was issued in the current
+	 * slab; otherwise it gets a new label that is joined to its neighbours'.
+	 * Labels are stored in the slab minus slabBase[slab], the number of
+	 * labels issued by uf before the slab was started.
+	 * 
+	 * @param w
+	 *            stack width
+	 * @param h
+	 *            stack height
+	 * @param workArray
+	 *            binary work array
+	 * @param store
+	 *            store to write provisional labels into
+	 * @param slabBase
+	 *            receives the label base of each slab in the chunk
+	 * @param phase
+	 *            FORE or BACK
+	 * @param startZ
+	 *            first slice of the chunk, which must start a slab
+	 * @param endZ
+	 *            last slice of the chunk + 1
+	 * @param uf
+	 *            the chunk's equivalence table
+	 */
+	private void labelChunk(final int w, final int h,
+			final byte[][] workArray, final LabelStore store,
+			final int[] slabBase, final int phase, final int startZ,
+			final int endZ, final UnionFind uf) {
+		final int d = endZ - startZ;
+		final int wh = w * h;
+		final int slabSize = store.getSlabSize();
+		// global labels of this and the previous slice, and stored labels
+		int[] labels = new int[wh];
+		int[] prevLabels = new int[wh];
+		final int[] stored = new int[wh];
+		// neighbours preceding a voxel in the scan; those in the previous
+		// slice come first
+		final int[][] table = getNeighbourTable(getConnectivity(phase), true,
+				w);
+		final int[] dX = table[0];
+		final int[] dY = table[1];
+		final int[] dZ = table[2];
+		final int[] offset = table[3];
+		final int nNeighbours = offset.length;
+		int nPrev = 0;
+		while (nPrev < nNeighbours && dZ[nPrev] < 0)
+			nPrev++;
+		final int[] neighbours = new int[nNeighbours];
+		int base = 0;
+		for (int z = startZ; z < endZ; z++) {
+			if (z % slabSize == 0) {
+				base = uf.getNLabels() - 1;
+				slabBase[store.getSlab(z)] = base;
+			}
+			final int[] swap = prevLabels;
+			prevLabels = labels;
+			labels = swap;
+			final byte[] slice = workArray[z];
+			final int first = z > startZ ? 0 : nPrev;
+			for (int y = 0; y < h; y++) {
+				final int rowIndex = y * w;
+				final boolean innerRow = y > 0 && y < h - 1;
+				for (int x = 0; x < w; x++) {
+					final int arrayIndex = rowIndex + x;
+					if (slice[arrayIndex] != phase) {
+						labels[arrayIndex] = 0;
+						stored[arrayIndex] = 0;
+						continue;
+					}
+					int n = 0;
+					if (innerRow && x > 0 && x < w - 1) {
+						for (int k = first; k < nPrev; k++) {
+							final int tagv = prevLabels[arrayIndex + offset[k]];
+							if (tagv != 0)
+								neighbours[n++] = tagv;
+						}
+						for (int k = nPrev; k < nNeighbours; k++) {
+							final int tagv = labels[arrayIndex + offset[k]];
+							if (tagv != 0)
+								neighbours[n++] = tagv;
+						}
+					} else {
+						for (int k = first; k < nNeighbours; k++) {
+							final int vX = x + dX[k];
+							final int vY = y + dY[k];
+							if (vX < 0 || vX >= w || vY < 0 || vY >= h)
+								continue;
+							final int tagv = k < nPrev ? prevLabels[arrayIndex
+									+ offset[k]] : labels[arrayIndex
+									+ offset[k]];
+							if (tagv != 0)
+								neighbours[n++] = tagv;
+						}
+					}
+					final int label = resolveLabel(uf, neighbours, n, base);
+					uf.addSize(label, 1);
+					labels[arrayIndex] = label;
+					stored[arrayIndex] = label - base;
+				}
+			}
+			store.setSlice(z, stored);
+			IJ.showProgress(z - startZ, d);
+		}
+	}
+
+	/**
+	 * Choose a voxel's provisional label and record its neighbours' labels
+	 * as equivalent
+	 * 
+	 * @param uf
+	 *            equivalence table
+	 * @param neighbours
+	 *            labels of the voxel's labelled neighbours
+	 * @param n
+	 *            number of neighbours
+	 * @param base
+	 *            labels greater than base were issued in the current slab
+	 * @return a label issued in the current slab
+	 */
+	private int resolveLabel(UnionFind uf, int[] neighbours, int n, int base) {
+		int label = 0;
+		int first = 0;
+		int last = 0;
+		for (int i = 0; i < n; i++) {
+			final int tagv = neighbours[i];
+			if (label == 0 && tagv > base)
+				label = tagv;
+			if (first == 0)
+				first = tagv;
+			else if (tagv != last && tagv != first)
+				uf.union(first, tagv);
+			last = tagv;
+		}
+		if (label == 0) {
+			label = uf.newLabel();
+			if (first != 0)
+				uf.union(label, first);
+		}
+		return label;
+	}
+
+	/**
+	 * Join the provisional labels on the first slice of a chunk to those on
+	 * the last slice of the previous chunk
+	 * 
+	 * @param w
+	 *            stack width
+	 * @param h
+	 *            stack height
+	 * @param workArray
+	 *            binary work array
+	 * @param store
+	 *            provisional labels
+	 * @param slabBase
+	 *            label base of each slab in the single table
+	 * @param phase
+	 *            FORE or BACK
+	 * @param z
+	 *            first slice of the chunk
+	 * @param uf
+	 *            table holding the offset labels of all chunks
+	 */
+	private void stitchChunk(final int w, final int h,
+			final byte[][] workArray, final LabelStore store,
+			final int[] slabBase, final int phase, final int z,
+			final UnionFind uf) {
+		final int wh = w * h;
+		final byte[] slice = workArray[z];
+		final byte[] prevSlice = workArray[z - 1];
+		final int[] labels = new int[wh];
+		final int[] prevLabels = new int[wh];
+		store.getSlice(z, labels);
+		store.getSlice(z - 1, prevLabels);
+		final int base = slabBase[store.getSlab(z)];
+		final int prevBase = slabBase[store.getSlab(z - 1)];
+		// the preceding neighbours in the previous slice come first
+		final int[][] table = getNeighbourTable(getConnectivity(phase), true,
+				w);
+		final int[] dX = table[0];
+		final int[] dY = table[1];
+		final int[] dZ = table[2];
+		final int[] offset = table[3];
+		int nPrev = 0;
+		while (nPrev < offset.length && dZ[nPrev] < 0)
+			nPrev++;
+		for (int y = 0; y < h; y++) {
+			final int rowIndex = y * w;
+			final boolean innerRow = y > 0 && y < h - 1;
+			for (int x = 0; x < w; x++) {
+				final int arrayIndex = rowIndex + x;
+				if (slice[arrayIndex] != phase)
+					continue;
+				final int label = base + labels[arrayIndex];
+				final boolean inner = innerRow && x > 0 && x < w - 1;
+				for (int k = 0; k < nPrev; k++) {
+					if (!inner) {
+						final int vX = x + dX[k];
+						final int vY = y + dY[k];
+						if (vX < 0 || vX >= w || vY < 0 || vY >= h)
+							continue;
+					}
+					final int o = arrayIndex + offset[k];
+					if (prevSlice[o] == phase)
+						uf.union(label, prevBase + prevLabels[o]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replace provisional labels in slices startZ to endZ - 1 with their
+	 * resolved labels. Voxels of removed particles, whose resolved label is
+	 * 0, are switched to the other phase in the work array.
+	 *
+	 * @param store
+	 *            provisional labels
+	 * @param slabBase
+	 *            label base of each slab
+	 * @param map
+	 *            resolved label for each provisional label
+	 * @param workArray
+	 *            binary work array, or null
+	 * @param phase
+	 *            FORE or BACK
+	 * @param startZ
+	 *            first slice
+	 * @param endZ
+	 *            last slice + 1
+	 */
+	private void relabelChunk(LabelStore store, int[] slabBase, int[] map,
+			byte[][] workArray, int phase, int startZ, int endZ) {
+		final int wh = store.getWidth() * store.getHeight();
+		final byte flip = phase == FORE ? (byte) 0 : (byte) 255;
+		int[] labels = new int[wh];
+		for (int z = startZ; z < endZ; z++) {
+			store.getSlice(z, labels);
+			final int base = slabBase[store.getSlab(z)];
+			final byte[] slice = workArray == null ? null : workArray[z];
 			for (int i = 0; i < wh; i++) {
-				final int p = particleLabels[z][i];
-				final double v = particleVolumes[p];
-				if (v < minVol || v > maxVol) {
-					workArray[z][i] = flip;
-					particleLabels[z][i] = 0;
+				final int label = labels[i];
+				if (label > 0) {
+					final int p = map[base + label];
+					if (p == 0 && slice != null)
+						slice[i] = flip;
+					labels[i] = p;
 				}
 			}
+			store.setSlice(z, labels);
+			IJ.showProgress(z - startZ, endZ - startZ);
+		}
+	}
+
+	/**
+	 * Get particle sizes from the voxel counts in a union-find table and
+	 * remove particles outside user-specified volume thresholds from the
+	 * table's lookup table, so that they are removed by the relabelling pass
+	 * that writes the final labels
+	 *
+	 * @param imp
+	 *            ImagePlus, used for calibration and dimensions
+	 * @param uf
+	 *            table holding every provisional label's voxel count
+	 * @param map
+	 *            lookup table from uf.getCompactLabels(); rejected particles'
+	 *            labels are set to 0 and the rest renumbered consecutively
+	 * @param minVol
+	 *            minimum (inclusive) particle volume
+	 * @param maxVol
+	 *            maximum (inclusive) particle volume
+	 * @return sizes of the remaining particles, indexed by their new labels,
+	 *         with the number of voxels in no particle at index 0
+	 */
+	private long[] filterLabels(ImagePlus imp, UnionFind uf, int[] map,
+			double minVol, double maxVol) {
+		final long[] particleSizes = uf.getCompactSizes(map);
+		final double[] particleVolumes = getVolumes(imp, particleSizes);
+		final int nLabels = particleSizes.length;
+		int[] newLabel = new int[nLabels];
+		int nParticles = 1;
+		long inParticles = 0;
+		for (int p = 1; p < nLabels; p++) {
+			final double v = particleVolumes[p];
+			if (v >= minVol && v <= maxVol) {
+				newLabel[p] = nParticles++;
+				inParticles += particleSizes[p];
+			}
 		}
+		long[] newSizes = new long[nParticles];
+		newSizes[0] = (long) imp.getWidth() * imp.getHeight()
+				* imp.getImageStackSize() - inParticles;
+		for (int p = 1; p < nLabels; p++)
+			if (newLabel[p] > 0)
+				newSizes[newLabel[p]] = particleSizes[p];
+		if (nParticles < nLabels)
+			for (int l = 1; l < map.length; l++)
+				map[l] = newLabel[map[l]];
+		return newSizes;
 	}
 
 	/**
-	 * Gets rid of redundant particle labels
+	 * Remove particles outside user-specified volume thresholds and number
+	 * the remaining particles consecutively
 	 * 
-	 * @param particleLabels
-	 * @return
+	 * @param imp
+	 *            ImagePlus, used for calibration
+	 * @param workArray
+	 *            binary foreground and background information, or null
+	 * @param store
+	 *            particle labels
+	 * @param particleSizes
+	 *            particle sizes, indexed by label
+	 * @param minVol
+	 *            minimum (inclusive) particle volume
+	 * @param maxVol
+	 *            maximum (inclusive) particle volume
+	 * @param phase
+	 *            phase we are interested in
+	 * @return sizes of the remaining particles, indexed by their new labels
 	 */
-	private void minimiseLabels(int[][] particleLabels) {
-		IJ.showStatus("Minimising labels...");
-		final int d = particleLabels.length;
-		long[] particleSizes = getParticleSizes(particleLabels);
+	private long[] filterParticles(ImagePlus imp, byte[][] workArray,
+			LabelStore store, long[] particleSizes, double minVol,
+			double maxVol, int phase) {
+		IJ.showStatus("Filtering " + sPhase + " particles...");
+		final int d = store.getDepth();
+		final int wh = store.getWidth() * store.getHeight();
+		double[] particleVolumes = getVolumes(imp, particleSizes);
 		final int nLabels = particleSizes.length;
 		int[] newLabel = new int[nLabels];
-		int minLabel = 0;
-		// find the minimised labels
-		for (int i = 0; i < nLabels; i++) {
-			if (particleSizes[i] > 0) {
-				if (i == minLabel) {
-					newLabel[i] = i;
-					minLabel++;
-					continue;
-				} else {
-					newLabel[i] = minLabel;
-					particleSizes[minLabel] = particleSizes[i];
-					particleSizes[i] = 0;
-					minLabel++;
-				}
-			}
+		int nParticles = 1;
+		for (int p = 1; p < nLabels; p++) {
+			final double v = particleVolumes[p];
+			if (particleSizes[p] > 0 && v >= minVol && v <= maxVol)
+				newLabel[p] = nParticles++;
+		}
+		long[] newSizes = new long[nParticles];
+		newSizes[0] = particleSizes[0];
+		for (int p = 1; p < nLabels; p++) {
+			if (newLabel[p] > 0)
+				newSizes[newLabel[p]] = particleSizes[p];
+			else
+				newSizes[0] += particleSizes[p];
 		}
-		// now replace labels
-		final int wh = particleLabels[0].length;
+		byte flip = 0;
+		if (phase == FORE) {
+			flip = (byte) 0;
+		} else {
+			flip = (byte) 255;
+		}
+		int[] labels = new int[wh];
 		for (int z = 0; z < d; z++) {
-			IJ.showProgress(z, d);
+			store.getSlice(z, labels);
+			final byte[] slice = workArray == null ? null : workArray[z];
 			for (int i = 0; i < wh; i++) {
-				final int p = particleLabels[z][i];
+				final int p = labels[i];
 				if (p > 0) {
-					particleLabels[z][i] = newLabel[p];
+					final int q = newLabel[p];
+					if (q == 0 && slice != null)
+						slice[i] = flip;
+					labels[i] = q;
 				}
 			}
+			store.setSlice(z, labels);
+			IJ.showProgress(z, d);
 		}
-		return;
+		store.pack();
+		return newSizes;
 	}
 
 	/**
@@ -1320,7 +2687,7 @@ public class ParticleCounter implements PlugIn {
 
 	/**
 	 * Go through all pixels and assign initial particle label
-	 * 
+	 *
 	 * @param workArray
 	 *            byte[] array containing pixel values
 	 * @param phase
@@ -1338,113 +2705,61 @@ public class ParticleCounter implements PlugIn {
 		int[][] particleLabels = new int[d][wh];
 		int ID = 1;
 
-		if (phase == FORE) {
-			for (int z = 0; z < d; z++) {
-				for (int y = 0; y < h; y++) {
-					final int rowIndex = y * w;
-					for (int x = 0; x < w; x++) {
-						final int arrayIndex = rowIndex + x;
-						if (workArray[z][arrayIndex] == phase) {
-							particleLabels[z][arrayIndex] = ID;
-							int minTag = ID;
-							// Find the minimum particleLabel in the
-							// neighbouring pixels
-							for (int vZ = z - 1; vZ <= z + 1; vZ++) {
-								for (int vY = y - 1; vY <= y + 1; vY++) {
-									for (int vX = x - 1; vX <= x + 1; vX++) {
-										if (withinBounds(vX, vY, vZ, w, h, 0, d)) {
-											final int offset = getOffset(vX,
-													vY, w);
-											if (workArray[vZ][offset] == phase) {
-												final int tagv = particleLabels[vZ][offset];
-												if (tagv != 0 && tagv < minTag) {
-													minTag = tagv;
-												}
-											}
-										}
-									}
-								}
-							}
-							// assign the smallest particle label from the
-							// neighbours to the pixel
-							particleLabels[z][arrayIndex] = minTag;
-							// increment the particle label
-							if (minTag == ID) {
-								ID++;
+		// only neighbours that precede a voxel can be labelled already
+		final int[][] table = getNeighbourTable(getConnectivity(phase), true,
+				w);
+		final int[] dX = table[0];
+		final int[] dY = table[1];
+		final int[] dZ = table[2];
+		final int[] offset = table[3];
+		final int nNeighbours = offset.length;
+		for (int z = 0; z < d; z++) {
+			final boolean innerSlice = z > 0;
+			for (int y = 0; y < h; y++) {
+				final int rowIndex = y * w;
+				final boolean innerRow = innerSlice && y > 0 && y < h - 1;
+				for (int x = 0; x < w; x++) {
+					final int arrayIndex = rowIndex + x;
+					if (workArray[z][arrayIndex] == phase) {
+						int minTag = ID;
+						// Find the minimum particleLabel in the
+						// neighbouring pixels
+						if (innerRow && x > 0 && x < w - 1) {
+							for (int k = 0; k < nNeighbours; k++) {
+								final int tagv = particleLabels[z + dZ[k]][arrayIndex
+										+ offset[k]];
+								if (tagv != 0 && tagv < minTag)
+									minTag = tagv;
 							}
-						}
-					}
-				}
-				IJ.showProgress(z, d);
-			}
-			ID++;
-		} else if (phase == BACK) {
-			for (int z = 0; z < d; z++) {
-				for (int y = 0; y < h; y++) {
-					final int rowIndex = y * w;
-					for (int x = 0; x < w; x++) {
-						final int arrayIndex = rowIndex + x;
-						if (workArray[z][arrayIndex] == phase) {
-							particleLabels[z][arrayIndex] = ID;
-							int minTag = ID;
-							// Find the minimum particleLabel in the
-							// neighbouring pixels
-							int nX = x, nY = y, nZ = z;
-							for (int n = 0; n < 7; n++) {
-								switch (n) {
-								case 0:
-									break;
-								case 1:
-									nX = x - 1;
-									break;
-								case 2:
-									nX = x + 1;
-									break;
-								case 3:
-									nY = y - 1;
-									nX = x;
-									break;
-								case 4:
-									nY = y + 1;
-									break;
-								case 5:
-									nZ = z - 1;
-									nY = y;
-									break;
-								case 6:
-									nZ = z + 1;
-									break;
-								}
-								if (withinBounds(nX, nY, nZ, w, h, 0, d)) {
-									final int offset = getOffset(nX, nY, w);
-									if (workArray[nZ][offset] == phase) {
-										final int tagv = particleLabels[nZ][offset];
-										if (tagv != 0 && tagv < minTag) {
-											minTag = tagv;
-										}
-									}
+						} else {
+							for (int k = 0; k < nNeighbours; k++) {
+								if (withinBounds(x + dX[k], y + dY[k], z
+										+ dZ[k], w, h, 0, d)) {
+									final int tagv = particleLabels[z + dZ[k]][arrayIndex
+											+ offset[k]];
+									if (tagv != 0 && tagv < minTag)
+										minTag = tagv;
 								}
 							}
-							// assign the smallest particle label from the
-							// neighbours to the pixel
-							particleLabels[z][arrayIndex] = minTag;
-							// increment the particle label
-							if (minTag == ID) {
-								ID++;
-							}
+						}
+						// assign the smallest particle label from the
+						// neighbours to the pixel
+						particleLabels[z][arrayIndex] = minTag;
+						// increment the particle label
+						if (minTag == ID) {
+							ID++;
 						}
 					}
 				}
-				IJ.showProgress(z, d);
 			}
-			ID++;
+			IJ.showProgress(z, d);
 		}
 		return particleLabels;
 	}
 
 	/**
 	 * Connect structures = minimisation of IDs
-	 * 
+	 *
 	 * @param workArray
 	 * @param particleLabels
 	 * @param phase
@@ -1459,163 +2774,65 @@ public class ParticleCounter implements PlugIn {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
 		final int d = imp.getImageStackSize();
+		final int[][] table = getNeighbourTable(getConnectivity(phase), false,
+				w);
+		final int[] dX = table[0];
+		final int[] dY = table[1];
+		final int[] dZ = table[2];
+		final int[] offset = table[3];
+		final int nNeighbours = offset.length;
 		for (int c = 0; c < scanRanges[0].length; c++) {
 			final int sR0 = scanRanges[0][c];
 			final int sR1 = scanRanges[1][c];
 			final int sR2 = scanRanges[2][c];
 			final int sR3 = scanRanges[3][c];
-			if (phase == FORE) {
-				for (int z = sR0; z < sR1; z++) {
-					for (int y = 0; y < h; y++) {
-						final int rowIndex = y * w;
-						for (int x = 0; x < w; x++) {
-							final int arrayIndex = rowIndex + x;
-							if (workArray[z][arrayIndex] == phase
-									&& particleLabels[z][arrayIndex] > 1) {
-								int minTag = particleLabels[z][arrayIndex];
-								// Find the minimum particleLabel in the
-								// neighbours' pixels
-								for (int vZ = z - 1; vZ <= z + 1; vZ++) {
-									for (int vY = y - 1; vY <= y + 1; vY++) {
-										for (int vX = x - 1; vX <= x + 1; vX++) {
-											if (withinBounds(vX, vY, vZ, w, h,
-													sR2, sR3)) {
-												final int offset = getOffset(
-														vX, vY, w);
-												if (workArray[vZ][offset] == phase) {
-													final int tagv = particleLabels[vZ][offset];
-													if (tagv != 0
-															&& tagv < minTag) {
-														minTag = tagv;
-													}
-												}
-											}
-										}
-									}
-								}
-								// Replacing particleLabel by the minimum
-								// particleLabel found
-								for (int vZ = z - 1; vZ <= z + 1; vZ++) {
-									for (int vY = y - 1; vY <= y + 1; vY++) {
-										for (int vX = x - 1; vX <= x + 1; vX++) {
-											if (withinBounds(vX, vY, vZ, w, h,
-													sR2, sR3)) {
-												final int offset = getOffset(
-														vX, vY, w);
-												if (workArray[vZ][offset] == phase) {
-													final int tagv = particleLabels[vZ][offset];
-													if (tagv != 0
-															&& tagv != minTag) {
-														replaceLabel(
-																particleLabels,
-																tagv, minTag,
-																sR2, sR3);
-													}
-												}
-											}
-										}
-									}
-								}
+			for (int z = sR0; z < sR1; z++) {
+				final boolean innerSlice = z > sR2 && z < sR3 - 1;
+				for (int y = 0; y < h; y++) {
+					final int rowIndex = y * w;
+					final boolean innerRow = innerSlice && y > 0 && y < h - 1;
+					for (int x = 0; x < w; x++) {
+						final int arrayIndex = rowIndex + x;
+						// label 1 is the minimum so can't be replaced
+						if (workArray[z][arrayIndex] != phase
+								|| particleLabels[z][arrayIndex] <= 1)
+							continue;
+						final boolean inner = innerRow && x > 0 && x < w - 1;
+						int minTag = particleLabels[z][arrayIndex];
+						// Find the minimum particleLabel in the
+						// neighbours' pixels
+						for (int k = 0; k < nNeighbours; k++) {
+							if (inner
+									|| withinBounds(x + dX[k], y + dY[k], z
+											+ dZ[k], w, h, sR2, sR3)) {
+								final int tagv = particleLabels[z + dZ[k]][arrayIndex
+										+ offset[k]];
+								if (tagv != 0 && tagv < minTag)
+									minTag = tagv;
 							}
 						}
-					}
-					IJ.showStatus("Connecting foreground structures"
-							+ chunkString);
-					IJ.showProgress(z, d);
-				}
-			} else if (phase == BACK) {
-				for (int z = sR0; z < sR1; z++) {
-					for (int y = 0; y < h; y++) {
-						final int rowIndex = y * w;
-						for (int x = 0; x < w; x++) {
-							final int arrayIndex = rowIndex + x;
-							if (workArray[z][arrayIndex] == phase) {
-								int minTag = particleLabels[z][arrayIndex];
-								// Find the minimum particleLabel in the
-								// neighbours' pixels
-								int nX = x, nY = y, nZ = z;
-								for (int n = 0; n < 7; n++) {
-									switch (n) {
-									case 0:
-										break;
-									case 1:
-										nX = x - 1;
-										break;
-									case 2:
-										nX = x + 1;
-										break;
-									case 3:
-										nY = y - 1;
-										nX = x;
-										break;
-									case 4:
-										nY = y + 1;
-										break;
-									case 5:
-										nZ = z - 1;
-										nY = y;
-										break;
-									case 6:
-										nZ = z + 1;
-										break;
-									}
-									if (withinBounds(nX, nY, nZ, w, h, sR2, sR3)) {
-										final int offset = getOffset(nX, nY, w);
-										if (workArray[nZ][offset] == phase) {
-											final int tagv = particleLabels[nZ][offset];
-											if (tagv != 0 && tagv < minTag) {
-												minTag = tagv;
-											}
-										}
-									}
-								}
-								// Replacing particleLabel by the minimum
-								// particleLabel found
-								for (int n = 0; n < 7; n++) {
-									switch (n) {
-									case 0:
-										nZ = z;
-										break; // last switch block left nZ = z
-									// + 1;
-									case 1:
-										nX = x - 1;
-										break;
-									case 2:
-										nX = x + 1;
-										break;
-									case 3:
-										nY = y - 1;
-										nX = x;
-										break;
-									case 4:
-										nY = y + 1;
-										break;
-									case 5:
-										nZ = z - 1;
-										nY = y;
-										break;
-									case 6:
-										nZ = z + 1;
-										break;
-									}
-									if (withinBounds(nX, nY, nZ, w, h, sR2, sR3)) {
-										final int offset = getOffset(nX, nY, w);
-										if (workArray[nZ][offset] == phase) {
-											final int tagv = particleLabels[nZ][offset];
-											if (tagv != 0 && tagv != minTag) {
-												replaceLabel(particleLabels,
-														tagv, minTag, sR2, sR3);
-											}
-										}
-									}
-								}
+						// Replacing particleLabel by the minimum
+						// particleLabel found
+						if (particleLabels[z][arrayIndex] != minTag)
+							replaceLabel(particleLabels,
+									particleLabels[z][arrayIndex], minTag,
+									sR2, sR3);
+						for (int k = 0; k < nNeighbours; k++) {
+							if (inner
+									|| withinBounds(x + dX[k], y + dY[k], z
+											+ dZ[k], w, h, sR2, sR3)) {
+								final int tagv = particleLabels[z + dZ[k]][arrayIndex
+										+ offset[k]];
+								if (tagv != 0 && tagv != minTag)
+									replaceLabel(particleLabels, tagv,
+											minTag, sR2, sR3);
 							}
 						}
 					}
-					IJ.showStatus("Connecting background structures"
-							+ chunkString);
-					IJ.showProgress(z, d + 1);
 				}
+				IJ.showStatus("Connecting " + sPhase + " structures"
+						+ chunkString);
+				IJ.showProgress(z, d);
 			}
 		}
 		return;
@@ -1659,6 +2876,502 @@ public class ParticleCounter implements PlugIn {
 		}
 	}// ConnectStructuresThread
 
+	class ChunkLabelThread extends Thread {
+		final int thread, nThreads, w, h, phase;
+
+		final byte[][] workArray;
+
+		final LabelStore store;
+
+		final int[] slabBase;
+
+		final int[][] chunkRanges;
+
+		final UnionFind[] chunkTables;
+
+		public ChunkLabelThread(int thread, int nThreads, int w, int h,
+				byte[][] workArray, LabelStore store, int[] slabBase,
+				int phase, int[][] chunkRanges, UnionFind[] chunkTables) {
+			this.thread = thread;
+			this.nThreads = nThreads;
+			this.w = w;
+			this.h = h;
+			this.workArray = workArray;
+			this.store = store;
+			this.slabBase = slabBase;
+			this.phase = phase;
+			this.chunkRanges = chunkRanges;
+			this.chunkTables = chunkTables;
+		}
+
+		public void run() {
+			final int nChunks = this.chunkRanges[0].length;
+			for (int k = this.thread; k < nChunks; k += this.nThreads) {
+				UnionFind uf = new UnionFind();
+				labelChunk(this.w, this.h, this.workArray, this.store,
+						this.slabBase, this.phase, this.chunkRanges[0][k],
+						this.chunkRanges[1][k], uf);
+				this.chunkTables[k] = uf;
+			}
+		}
+	}// ChunkLabelThread
+
+	class RelabelThread extends Thread {
+		final int thread, nThreads;
+
+		final LabelStore store;
+
+		final int[] slabBase, map;
+
+		final int[][] chunkRanges;
+
+		final byte[][] workArray;
+
+		final int phase;
+
+		public RelabelThread(int thread, int nThreads, LabelStore store,
+				int[] slabBase, int[][] chunkRanges, int[] map,
+				byte[][] workArray, int phase) {
+			this.thread = thread;
+			this.nThreads = nThreads;
+			this.store = store;
+			this.slabBase = slabBase;
+			this.chunkRanges = chunkRanges;
+			this.map = map;
+			this.workArray = workArray;
+			this.phase = phase;
+		}
+
+		public void run() {
+			final int nChunks = this.chunkRanges[0].length;
+			for (int k = this.thread; k < nChunks; k += this.nThreads) {
+				relabelChunk(this.store, this.slabBase, this.map,
+						this.workArray, this.phase, this.chunkRanges[0][k],
+						this.chunkRanges[1][k]);
+			}
+		}
+	}// RelabelThread
+
+	class StatsThread extends Thread {
+		final int thread, nThreads, w, d;
+
+		final LabelStore particleLabels;
+
+		/** one slice of labels at a time */
+		final int[] labels;
+
+		final ImageStack valueStack;
+
+		final double threshold;
+
+		final ParticleStats stats;
+
+		public StatsThread(int thread, int nThreads, ImagePlus imp,
+				LabelStore particleLabels, int nParticles, ImagePlus valueImp,
+				double threshold) {
+			this.thread = thread;
+			this.nThreads = nThreads;
+			this.w = imp.getWidth();
+			this.d = imp.getImageStackSize();
+			this.particleLabels = particleLabels;
+			this.labels = new int[this.w * imp.getHeight()];
+			if (valueImp != null)
+				this.valueStack = valueImp.getImageStack();
+			else
+				this.valueStack = null;
+			this.threshold = threshold;
+			this.stats = new ParticleStats(nParticles, valueImp != null);
+		}
+
+		public void run() {
+			for (int z = this.thread; z < this.d; z += this.nThreads) {
+				float[] values = null;
+				if (this.valueStack != null)
+					values = (float[]) this.valueStack.getPixels(z + 1);
+				this.particleLabels.getSlice(z, this.labels);
+				this.stats.addSlice(z, this.labels, this.w, values,
+						this.threshold);
+				if (this.thread == 0)
+					IJ.showProgress(z, this.d);
+			}
+		}
+	}// StatsThread
+
+	class EigenThread extends Thread {
+		final int thread, nThreads;
+
+		final double[][] momentTensors;
+
+		final double[] eigenValues, eigenVectors;
+
+		public EigenThread(int thread, int nThreads, double[][] momentTensors,
+				double[] eigenValues, double[] eigenVectors) {
+			this.thread = thread;
+			this.nThreads = nThreads;
+			this.momentTensors = momentTensors;
+			this.eigenValues = eigenValues;
+			this.eigenVectors = eigenVectors;
+		}
+
+		public void run() {
+			final int nParticles = this.momentTensors.length;
+			double[] inertiaTensor = new double[9];
+			for (int p = this.thread + 1; p < nParticles; p += this.nThreads) {
+				final double[] m = this.momentTensors[p];
+				inertiaTensor[0] = m[0];
+				inertiaTensor[4] = m[1];
+				inertiaTensor[8] = m[2];
+				inertiaTensor[1] = -m[3];
+				inertiaTensor[2] = -m[4];
+				inertiaTensor[5] = -m[5];
+				SymmetricEigen3.solve(inertiaTensor, 0, this.eigenValues,
+						p * 3, this.eigenVectors, p * 9);
+			}
+		}
+	}// EigenThread
+
+	class FeretThread extends Thread {
+		final int thread, nThreads;
+
+		final float[][] particleSurfaces;
+
+		final double[][] ferets;
+
+		public FeretThread(int thread, int nThreads,
+				float[][] particleSurfaces, double[][] ferets) {
+			this.thread = thread;
+			this.nThreads = nThreads;
+			this.particleSurfaces = particleSurfaces;
+			this.ferets = ferets;
+		}
+
+		public void run() {
+			final int nParticles = this.particleSurfaces.length;
+			for (int p = this.thread; p < nParticles; p += this.nThreads) {
+				if (this.thread == 0)
+					IJ.showProgress(p, nParticles);
+				this.ferets[p] = getFeret(this.particleSurfaces[p]);
+			}
+		}
+	}// FeretThread
+
+	class EllipsoidThread extends Thread {
+		final int thread;
+
+		final float[][] surfacePoints;
+
+		final double[][] ellipsoids;
+
+		final AtomicInteger next;
+
+		/** reused for every fit this thread makes */
+		final double[] workspace = new double[FitEllipsoid.WORKSPACE_LENGTH];
+
+		public EllipsoidThread(int thread, float[][] surfacePoints,
+				double[][] ellipsoids, AtomicInteger next) {
+			this.thread = thread;
+			this.surfacePoints = surfacePoints;
+			this.ellipsoids = ellipsoids;
+			this.next = next;
+		}
+
+		public void run() {
+			final int nParticles = this.surfacePoints.length;
+			int p;
+			while ((p = this.next.getAndIncrement()) < nParticles) {
+				if (this.thread == 0)
+					IJ.showProgress(p, nParticles);
+				final float[] points = this.surfacePoints[p];
+				if (points == null)
+					continue;
+				double[] ellipsoid = new double[FitEllipsoid.RESULT_LENGTH];
+				if (FitEllipsoid.yuryPetrov(points, this.workspace, ellipsoid))
+					this.ellipsoids[p] = ellipsoid;
+				else
+					IJ.log("Could not fit ellipsoid to surface " + p);
+			}
+		}
+	}// EllipsoidThread
+
+	class NeighbourThread extends Thread {
+		final int thread, nThreads, k;
+
+		final KDTree3D tree;
+
+		final int[] ids;
+
+		final double[] points;
+
+		final double radius;
+
+		final double[][] neighbours;
+
+		public NeighbourThread(int thread, int nThreads, KDTree3D tree,
+				int[] ids, double[] points, int k, double radius,
+				double[][] neighbours) {
+			this.thread = thread;
+			this.nThreads = nThreads;
+			this.tree = tree;
+			this.ids = ids;
+			this.points = points;
+			this.k = k;
+			this.radius = radius;
+			this.neighbours = neighbours;
+		}
+
+		public void run() {
+			final int nItems = this.ids.length;
+			int[] nearest = new int[this.k];
+			double[] distances = new double[this.k];
+			double[] gap = new double[1];
+			for (int i = this.thread; i < nItems; i += this.nThreads) {
+				if (this.thread == 0)
+					IJ.showProgress(i, nItems);
+				final double x = this.points[3 * i];
+				final double y = this.points[3 * i + 1];
+				final double z = this.points[3 * i + 2];
+				double[] n = { Double.NaN, Double.NaN, Double.NaN, 0,
+						Double.NaN, Double.NaN };
+				final int found = this.tree.getNearest(x, y, z, this.k, i,
+						nearest, distances);
+				if (found > 0) {
+					n[0] = this.ids[nearest[0]];
+					n[1] = distances[0];
+					double sum = 0;
+					for (int j = 0; j < found; j++)
+						sum += distances[j];
+					n[2] = sum / found;
+					n[3] = this.tree.countWithin(x, y, z, this.radius, i);
+					final int b = this.tree.getNearestBox(i, gap);
+					n[4] = this.ids[b];
+					n[5] = gap[0];
+				}
+				this.neighbours[this.ids[i]] = n;
+			}
+		}
+	}// NeighbourThread
+
+	class MeshThread extends Thread {
+		final int thread, resampling, budget;
+
+		final ImagePlus imp;
+
+		final LabelStore particleLabels;
+
+		final int[][] limits;
+
+		final float[][] surfacePoints;
+
+		final AtomicInteger next;
+
+		final Semaphore inFlight;
+
+		public MeshThread(int thread, ImagePlus imp,
+				LabelStore particleLabels, int[][] limits, int resampling, float[][] surfacePoints,
+				AtomicInteger next, Semaphore inFlight, int budget) {
+			this.thread = thread;
+			this.imp = imp;
+			this.particleLabels = particleLabels;
+			this.limits = limits;
+			this.resampling = resampling;
+			this.surfacePoints = surfacePoints;
+			this.next = next;
+			this.inFlight = inFlight;
+			this.budget = budget;
+		}
+
+		public void run() {
+			final int nParticles = this.surfacePoints.length;
+			for (int p = this.next.getAndIncrement(); p < nParticles; p = this.next
+					.getAndIncrement()) {
+				if (this.thread == 0)
+					IJ.showProgress(p, nParticles);
+				// particles too big for the budget are meshed on their own
+				final int cost = (int) Math.min(getMeshingCost(p, this.limits,
+						this.resampling), this.budget);
+				this.inFlight.acquireUninterruptibly(cost);
+				try {
+					this.surfacePoints[p] = getSurface(p, this.imp,
+							this.particleLabels, this.limits, this.resampling);
+				} finally {
+					this.inFlight.release(cost);
+				}
+			}
+		}
+	}// MeshThread
+
+	class EulerThread extends Thread {
+		final int thread, nThreads, w, h, d;
+
+		final LabelStore particleLabels;
+
+		/** labels of the slices behind and in front of a plane of vertices */
+		final int[] backSlice, frontSlice;
+
+		final int[] octantLUT;
+
+		final long[] sumEuler;
+
+		final int[] octant = new int[8];
+
+		public EulerThread(int thread, int nThreads, int w, int h, int d,
+				LabelStore particleLabels, int nParticles, int[] octantLUT) {
+			this.thread = thread;
+			this.nThreads = nThreads;
+			this.w = w;
+			this.h = h;
+			this.d = d;
+			this.particleLabels = particleLabels;
+			this.backSlice = new int[w * h];
+			this.frontSlice = new int[w * h];
+			this.octantLUT = octantLUT;
+			this.sumEuler = new long[nParticles];
+		}
+
+		public void run() {
+			final int w = this.w;
+			final int h = this.h;
+			// vertices run from 0 to w, h and d inclusive
+			for (int z = this.thread; z <= this.d; z += this.nThreads) {
+				int[] back = null;
+				int[] front = null;
+				if (z > 0) {
+					back = this.backSlice;
+					this.particleLabels.getSlice(z - 1, back);
+				}
+				if (z < this.d) {
+					front = this.frontSlice;
+					this.particleLabels.getSlice(z, front);
+				}
+				for (int y = 0; y <= h; y++) {
+					final boolean up = y > 0;
+					final boolean down = y < h;
+					for (int x = 0; x <= w; x++) {
+						final boolean left = x > 0;
+						final boolean right = x < w;
+						final int i = y * w + x;
+						// octant voxels 1 to 8 as in Connectivity.getOctant()
+						int v1 = 0, v2 = 0, v3 = 0, v4 = 0;
+						int v5 = 0, v6 = 0, v7 = 0, v8 = 0;
+						if (back != null) {
+							if (left && up)
+								v1 = back[i - w - 1];
+							if (left && down)
+								v2 = back[i - 1];
+							if (right && up)
+								v3 = back[i - w];
+							if (right && down)
+								v4 = back[i];
+						}
+						if (front != null) {
+							if (left && up)
+								v5 = front[i - w - 1];
+							if (left && down)
+								v6 = front[i - 1];
+							if (right && up)
+								v7 = front[i - w];
+							if (right && down)
+								v8 = front[i];
+						}
+						final int p = Math.max(Math.max(Math.max(v1, v2), Math
+								.max(v3, v4)), Math.max(Math.max(v5, v6), Math
+								.max(v7, v8)));
+						if (p == 0)
+							continue;
+						int config = 0;
+						int other = 0;
+						if (v1 != 0) {
+							config |= 1;
+							other |= v1 ^ p;
+						}
+						if (v2 != 0) {
+							config |= 2;
+							other |= v2 ^ p;
+						}
+						if (v3 != 0) {
+							config |= 4;
+							other |= v3 ^ p;
+						}
+						if (v4 != 0) {
+							config |= 8;
+							other |= v4 ^ p;
+						}
+						if (v5 != 0) {
+							config |= 16;
+							other |= v5 ^ p;
+						}
+						if (v6 != 0) {
+							config |= 32;
+							other |= v6 ^ p;
+						}
+						if (v7 != 0) {
+							config |= 64;
+							other |= v7 ^ p;
+						}
+						if (v8 != 0) {
+							config |= 128;
+							other |= v8 ^ p;
+						}
+						if (other == 0) {
+							this.sumEuler[p] += this.octantLUT[config];
+							continue;
+						}
+						// particles that are not 26-connected to each other
+						// meet in this octant: add each one's own octant
+						final int[] octant = this.octant;
+						octant[0] = v1;
+						octant[1] = v2;
+						octant[2] = v3;
+						octant[3] = v4;
+						octant[4] = v5;
+						octant[5] = v6;
+						octant[6] = v7;
+						octant[7] = v8;
+						for (int k = 0; k < 8; k++) {
+							final int q = octant[k];
+							if (q == 0)
+								continue;
+							int qConfig = 0;
+							for (int j = k; j < 8; j++) {
+								if (octant[j] == q) {
+									qConfig |= 1 << j;
+									if (j > k)
+										octant[j] = 0;
+								}
+							}
+							this.sumEuler[q] += this.octantLUT[qConfig];
+						}
+					}
+				}
+				if (this.thread == 0)
+					IJ.showProgress(z, this.d);
+			}
+		}
+	}// EulerThread
+
+	/**
+	 * Create a work array of particles, in which labelled voxels are
+	 * foreground and the rest background
+	 * 
+	 * @param particles
+	 *            particle labels
+	 * @return byte[] work array
+	 */
+	private byte[][] makeWorkArray(LabelStore particles) {
+		final int d = particles.getDepth();
+		final int wh = particles.getWidth() * particles.getHeight();
+		byte[][] workArray = new byte[d][wh];
+		int[] labels = new int[wh];
+		for (int z = 0; z < d; z++) {
+			particles.getSlice(z, labels);
+			final byte[] work = workArray[z];
+			for (int i = 0; i < wh; i++)
+				if (labels[i] > 0)
+					work[i] = (byte) FORE;
+		}
+		return workArray;
+	}
+
 	/**
 	 * Create a work array
 	 * 
@@ -1795,17 +3508,85 @@ public class ParticleCounter implements PlugIn {
 	}
 
 	/**
-	 * Find the offset within a 1D array given 2 (x, y) offset values
-	 * 
-	 * @param m
-	 *            x difference
-	 * @param n
-	 *            y difference
-	 * 
-	 * @return Integer offset for looking up pixel in work array
+	 * Set the connectivity of foreground particles. Background particles
+	 * are 26-connected if the foreground is 6-connected and 6-connected
+	 * otherwise, so that foreground and background can't cross each other.
+	 *
+	 * @param connectivity
+	 *            6, 18 or 26
+	 */
+	public void setConnectivity(int connectivity) {
+		if (connectivity != 6 && connectivity != 18 && connectivity != 26)
+			throw new IllegalArgumentException("Connectivity must be 6, 18 "
+					+ "or 26");
+		this.connectivity = connectivity;
+	}
+
+	/**
+	 * Set the algorithm that labels particles
+	 *
+	 * @param labelMethod
+	 *            MULTI, LINEAR, PARALLEL or MAPPED
+	 */
+	public void setLabelMethod(int labelMethod) {
+		if (labelMethod < MULTI || labelMethod > MAPPED)
+			throw new IllegalArgumentException("Unknown labelling algorithm");
+		this.labelMethod = labelMethod;
+	}
+
+	/**
+	 * @param phase
+	 *            FORE or BACK
+	 * @return connectivity of particles of phase: 6, 18 or 26
+	 */
+	public int getConnectivity(int phase) {
+		if (phase == FORE)
+			return connectivity;
+		return connectivity == 6 ? 26 : 6;
+	}
+
+	/**
+	 * Get the relative positions of a voxel's neighbours, in raster scan
+	 * order
+	 *
+	 * @param connectivity
+	 *            6, 18 or 26
+	 * @param preceding
+	 *            if true, only the neighbours that precede the voxel in a
+	 *            raster scan
+	 * @param w
+	 *            stack width
+	 * @return int[][] {dx, dy, dz, offset} where dx, dy and dz are the
+	 *         neighbours' x, y and z distances and offset is the index
+	 *         difference of each neighbour within its slice
 	 */
-	private int getOffset(int m, int n, int w) {
-		return m + n * w;
+	private static int[][] getNeighbourTable(int connectivity,
+			boolean preceding, int w) {
+		// maximum number of unit steps from the voxel to a neighbour
+		final int maxSteps = connectivity == 6 ? 1 : connectivity == 18 ? 2
+				: 3;
+		final int n = preceding ? connectivity / 2 : connectivity;
+		int[][] table = new int[4][n];
+		int k = 0;
+		for (int dz = -1; dz <= 1; dz++) {
+			for (int dy = -1; dy <= 1; dy++) {
+				for (int dx = -1; dx <= 1; dx++) {
+					final int steps = Math.abs(dx) + Math.abs(dy)
+							+ Math.abs(dz);
+					if (steps == 0 || steps > maxSteps)
+						continue;
+					if (preceding
+							&& (dz > 0 || (dz == 0 && (dy > 0 || (dy == 0 && dx > 0)))))
+						continue;
+					table[0][k] = dx;
+					table[1][k] = dy;
+					table[2][k] = dz;
+					table[3][k] = dx + dy * w;
+					k++;
+				}
+			}
+		}
+		return table;
 	}
 
 	/**
@@ -1859,6 +3640,42 @@ public class ParticleCounter implements PlugIn {
 		return particleSizes;
 	}
 
+	/**
+	 * Get the sizes of all the particles as a voxel count, in a single pass
+	 * through the labels
+	 * 
+	 * @param store
+	 *            particle labels
+	 * @return particleSizes
+	 */
+	public long[] getParticleSizes(final LabelStore store) {
+		IJ.showStatus("Getting " + sPhase + " particle sizes");
+		final int d = store.getDepth();
+		final int wh = store.getWidth() * store.getHeight();
+		int[] labels = new int[wh];
+		long[] particleSizes = new long[256];
+		int maxParticle = 0;
+		for (int z = 0; z < d; z++) {
+			store.getSlice(z, labels);
+			for (int i = 0; i < wh; i++) {
+				final int label = labels[i];
+				if (label >= particleSizes.length) {
+					long[] newSizes = new long[Math.max(label + 1,
+							particleSizes.length * 2)];
+					System.arraycopy(particleSizes, 0, newSizes, 0,
+							particleSizes.length);
+					particleSizes = newSizes;
+				}
+				particleSizes[label]++;
+				maxParticle = Math.max(maxParticle, label);
+			}
+			IJ.showProgress(z, d);
+		}
+		long[] sizes = new long[maxParticle + 1];
+		System.arraycopy(particleSizes, 0, sizes, 0, maxParticle + 1);
+		return sizes;
+	}
+
 	/**
 	 * Display the particle labels as an ImagePlus
 	 * 
@@ -1867,7 +3684,7 @@ public class ParticleCounter implements PlugIn {
 	 *            original image, used for image dimensions, calibration and
 	 *            titles
 	 */
-	private ImagePlus displayParticleLabels(int[][] particleLabels,
+	private ImagePlus displayParticleLabels(LabelStore particleLabels,
 			ImagePlus imp) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
@@ -1875,10 +3692,12 @@ public class ParticleCounter implements PlugIn {
 		final int wh = w * h;
 		ImageStack stack = new ImageStack(w, h);
 		double max = 0;
+		int[] labels = new int[wh];
 		for (int z = 0; z < d; z++) {
+			particleLabels.getSlice(z, labels);
 			float[] slicePixels = new float[wh];
 			for (int i = 0; i < wh; i++) {
-				slicePixels[i] = (float) particleLabels[z][i];
+				slicePixels[i] = (float) labels[i];
 				max = Math.max(max, slicePixels[i]);
 			}
 			stack.addSlice(imp.getImageStack().getSliceLabel(z + 1),
@@ -0,0 +1,328 @@
+package org.doube.bonej;
+
+/**
+ * ParticleStats Copyright 2026 agent
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import ij.measure.Calibration;
+
+/**
+ * <p>
+ * Per-particle statistics accumulated in a single pass through a label array:
+ * voxel count, bounding box, first and second moments of voxel position and,
+ * optionally, sums of the voxel values of an intensity image.
+ * </p>
+ * <p>
+ * Positions are accumulated as pixel coordinates in longs, so the sums are
+ * exact however large the particle. Second moments are shifted to the
+ * particle's bounding box corner before central moments are taken, which
+ * keeps the subtraction well conditioned for particles far from the origin.
+ * </p>
+ * <p>
+ * Each thread should fill its own ParticleStats from a subset of slices; the
+ * partial results are then combined with {@link #merge(ParticleStats)}.
+ * </p>
+ *
+ * @author agent
+ *
+ */
+public class ParticleStats {
+
+	private final int nParticles;
+
+	private final long[] count;
+
+	/**
+	 * x min, x max, y min, y max, z min, z max of each particle, packed 6
+	 * per particle
+	 */
+	private final int[] limits;
+
+	private final long[] sumX, sumY, sumZ;
+
+	private final long[] sumXX, sumYY, sumZZ, sumXY, sumXZ, sumYZ;
+
+	/** Intensity sums; null if no intensity image is sampled */
+	private final double[] sumV, sumVV, maxV;
+
+	private final long[] countV;
+
+	/**
+	 * @param nParticles
+	 *            number of particle labels, including 0
+	 * @param doValues
+	 *            true if intensity sums are to be accumulated
+	 */
+	public ParticleStats(int nParticles, boolean doValues) {
+		this.nParticles = nParticles;
+		this.count = new long[nParticles];
+		this.limits = new int[nParticles * 6];
+		for (int i = 0; i < nParticles * 6; i += 6) {
+			limits[i] = Integer.MAX_VALUE; // x min
+			limits[i + 2] = Integer.MAX_VALUE; // y min
+			limits[i + 4] = Integer.MAX_VALUE; // z min
+		}
+		this.sumX = new long[nParticles];
+		this.sumY = new long[nParticles];
+		this.sumZ = new long[nParticles];
+		this.sumXX = new long[nParticles];
+		this.sumYY = new long[nParticles];
+		this.sumZZ = new long[nParticles];
+		this.sumXY = new long[nParticles];
+		this.sumXZ = new long[nParticles];
+		this.sumYZ = new long[nParticles];
+		if (doValues) {
+			this.sumV = new double[nParticles];
+			this.sumVV = new double[nParticles];
+			this.maxV = new double[nParticles];
+			this.countV = new long[nParticles];
+		} else {
+			this.sumV = null;
+			this.sumVV = null;
+			this.maxV = null;
+			this.countV = null;
+		}
+	}
+
+	/**
+	 * Estimate the memory taken by the statistics of a number of particles,
+	 * e.g. to decide how many threads can each have their own
+	 *
+	 * @param nParticles
+	 *            number of particle labels, including 0
+	 * @param doValues
+	 *            true if intensity sums are to be accumulated
+	 * @return approximate size in bytes
+	 */
+	public static long getMemoryUsage(int nParticles, boolean doValues) {
+		// count and 9 moment sums, plus 6 limits
+		long perParticle = 10 * 8 + 6 * 4;
+		if (doValues)
+			perParticle += 4 * 8;
+		return perParticle * nParticles;
+	}
+
+	/**
+	 * Add all the voxels in a slice
+	 *
+	 * @param z
+	 *            slice index, starting at 0
+	 * @param labels
+	 *            particle labels for the slice
+	 * @param w
+	 *            slice width
+	 * @param values
+	 *            intensity values for the slice, or null
+	 * @param threshold
+	 *            only values greater than threshold are summed
+	 */
+	public void addSlice(final int z, final int[] labels, final int w,
+			final float[] values, final double threshold) {
+		final int wh = labels.length;
+		final int h = wh / w;
+		final long zz = (long) z * z;
+		final boolean doValues = values != null && sumV != null;
+		for (int y = 0; y < h; y++) {
+			final int index = y * w;
+			final long yy = (long) y * y;
+			final long yz = (long) y * z;
+			for (int x = 0; x < w; x++) {
+				final int p = labels[index + x];
+				count[p]++;
+				final int l = p * 6;
+				if (x < limits[l])
+					limits[l] = x;
+				if (x > limits[l + 1])
+					limits[l + 1] = x;
+				if (y < limits[l + 2])
+					limits[l + 2] = y;
+				if (y > limits[l + 3])
+					limits[l + 3] = y;
+				if (z < limits[l + 4])
+					limits[l + 4] = z;
+				if (z > limits[l + 5])
+					limits[l + 5] = z;
+				sumX[p] += x;
+				sumY[p] += y;
+				sumZ[p] += z;
+				sumXX[p] += (long) x * x;
+				sumYY[p] += yy;
+				sumZZ[p] += zz;
+				sumXY[p] += (long) x * y;
+				sumXZ[p] += (long) x * z;
+				sumYZ[p] += yz;
+				if (doValues) {
+					final double value = values[index + x];
+					if (value > threshold) {
+						sumV[p] += value;
+						sumVV[p] += value * value;
+						countV[p]++;
+						if (value > maxV[p])
+							maxV[p] = value;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add another set of partial results to this one
+	 *
+	 * @param other
+	 *            statistics for the same particles from other slices
+	 */
+	public void merge(ParticleStats other) {
+		if (other.nParticles != nParticles)
+			throw new IllegalArgumentException();
+		for (int p = 0; p < nParticles; p++) {
+			count[p] += other.count[p];
+			final int l = p * 6;
+			for (int i = l; i < l + 6; i += 2) {
+				limits[i] = Math.min(limits[i], other.limits[i]);
+				limits[i + 1] = Math.max(limits[i + 1], other.limits[i + 1]);
+			}
+			sumX[p] += other.sumX[p];
+			sumY[p] += other.sumY[p];
+			sumZ[p] += other.sumZ[p];
+			sumXX[p] += other.sumXX[p];
+			sumYY[p] += other.sumYY[p];
+			sumZZ[p] += other.sumZZ[p];
+			sumXY[p] += other.sumXY[p];
+			sumXZ[p] += other.sumXZ[p];
+			sumYZ[p] += other.sumYZ[p];
+			if (sumV != null && other.sumV != null) {
+				sumV[p] += other.sumV[p];
+				sumVV[p] += other.sumVV[p];
+				countV[p] += other.countV[p];
+				maxV[p] = Math.max(maxV[p], other.maxV[p]);
+			}
+		}
+	}
+
+	public int getNParticles() {
+		return nParticles;
+	}
+
+	/**
+	 * @return voxel count of each particle
+	 */
+	public long[] getParticleSizes() {
+		return count.clone();
+	}
+
+	/**
+	 * @return int[][] containing x, y and z minima and maxima of each particle
+	 */
+	public int[][] getLimits() {
+		int[][] limits = new int[nParticles][6];
+		for (int p = 0; p < nParticles; p++)
+			System.arraycopy(this.limits, p * 6, limits[p], 0, 6);
+		return limits;
+	}
+
+	/**
+	 * @param cal
+	 *            calibration to scale pixel coordinates by
+	 * @return double[][] containing all the particles' centroids
+	 */
+	public double[][] getCentroids(Calibration cal) {
+		double[][] centroids = new double[nParticles][3];
+		for (int p = 0; p < nParticles; p++) {
+			final double n = count[p];
+			centroids[p][0] = cal.pixelWidth * sumX[p] / n;
+			centroids[p][1] = cal.pixelHeight * sumY[p] / n;
+			centroids[p][2] = cal.pixelDepth * sumZ[p] / n;
+		}
+		return centroids;
+	}
+
+	/**
+	 * Get the moment of inertia tensor of each particle about its centroid,
+	 * treating each voxel as a cuboid of uniform density
+	 *
+	 * @param cal
+	 *            calibration to scale pixel coordinates by
+	 * @return double[][] of {Ixx, Iyy, Izz, Ixy, Ixz, Iyz} for each particle;
+	 *         the products of inertia are not negated
+	 */
+	public double[][] getMomentTensors(Calibration cal) {
+		final double vW = cal.pixelWidth;
+		final double vH = cal.pixelHeight;
+		final double vD = cal.pixelDepth;
+		final double voxVhVd = (vH * vH + vD * vD) / 12;
+		final double voxVwVd = (vW * vW + vD * vD) / 12;
+		final double voxVhVw = (vH * vH + vW * vW) / 12;
+		double[][] momentTensors = new double[nParticles][6];
+		for (int p = 1; p < nParticles; p++) {
+			final long n = count[p];
+			if (n == 0)
+				continue;
+			// shift the origin to the bounding box corner
+			final long a = limits[p * 6];
+			final long b = limits[p * 6 + 2];
+			final long c = limits[p * 6 + 4];
+			final long sx = sumX[p] - a * n;
+			final long sy = sumY[p] - b * n;
+			final long sz = sumZ[p] - c * n;
+			final long sxx = sumXX[p] - 2 * a * sumX[p] + a * a * n;
+			final long syy = sumYY[p] - 2 * b * sumY[p] + b * b * n;
+			final long szz = sumZZ[p] - 2 * c * sumZ[p] + c * c * n;
+			final long sxy = sumXY[p] - a * sumY[p] - b * sumX[p] + a * b * n;
+			final long sxz = sumXZ[p] - a * sumZ[p] - c * sumX[p] + a * c * n;
+			final long syz = sumYZ[p] - b * sumZ[p] - c * sumY[p] + b * c * n;
+			// central moments in pixel units
+			final double mx = (double) sx / n;
+			final double my = (double) sy / n;
+			final double mz = (double) sz / n;
+			final double cxx = (sxx - mx * sx) * vW * vW;
+			final double cyy = (syy - my * sy) * vH * vH;
+			final double czz = (szz - mz * sz) * vD * vD;
+			momentTensors[p][0] = cyy + czz + n * voxVhVd; // Ixx
+			momentTensors[p][1] = cxx + czz + n * voxVwVd; // Iyy
+			momentTensors[p][2] = cyy + cxx + n * voxVhVw; // Izz
+			momentTensors[p][3] = (sxy - mx * sy) * vW * vH; // Ixy
+			momentTensors[p][4] = (sxz - mx * sz) * vW * vD; // Ixz
+			momentTensors[p][5] = (syz - my * sz) * vH * vD; // Iyz
+		}
+		return momentTensors;
+	}
+
+	/**
+	 * Get the mean, standard deviation and maximum of the sampled values in
+	 * each particle. As in the original two-pass method, mean and standard
+	 * deviation are taken over all the particle's voxels, with values at or
+	 * below the threshold contributing nothing to the sums.
+	 *
+	 * @return array containing mean, std dev and max pixel values for each
+	 *         particle
+	 */
+	public double[][] getMeanStdDev() {
+		if (sumV == null)
+			throw new IllegalStateException("No values were sampled");
+		double[][] meanStdDev = new double[nParticles][3];
+		for (int p = 1; p < nParticles; p++) {
+			final double n = count[p];
+			final double mean = sumV[p] / n;
+			// sum of squared residuals of the sampled voxels only
+			final double ss = sumVV[p] - 2 * mean * sumV[p] + countV[p]
+					* mean * mean;
+			meanStdDev[p][0] = mean;
+			meanStdDev[p][1] = Math.sqrt(Math.max(0, ss) / n);
+			meanStdDev[p][2] = maxV[p];
+		}
+		return meanStdDev;
+	}
+}
@@ -56,6 +56,9 @@ import ij.gui.GenericDialog;
  */
 public class Purify implements PlugIn {
 
+	/** Labelling algorithm passed on to ParticleCounter */
+	private int labelMethod = ParticleCounter.LINEAR;
+
 	public void run(String arg) {
 		if (!ImageCheck.checkIJVersion())
 			return;
@@ -76,7 +79,8 @@ public class Purify implements PlugIn {
 		}
 		boolean showPerformance = gd.getNextBoolean();
 		boolean doCopy = gd.getNextBoolean();
-		Object[] result = purify(imp, slicesPerChunk, showPerformance);
+		Object[] result = purifyWithLabelStore(imp, slicesPerChunk,
+				showPerformance);
 		if (null != result) {
 			ImagePlus purified = (ImagePlus) result[1];
 
@@ -99,30 +103,49 @@ public class Purify implements PlugIn {
 	 * @param imp
 	 * @param slicesPerChunk
 	 * @param showPerformance
-	 * @return
+	 * @return Object[] {duration, purified ImagePlus, int[][] of background
+	 *         labels}
 	 */
 	public Object[] purify(ImagePlus imp, int slicesPerChunk,
 			boolean showPerformance) {
+		Object[] result = purifyWithLabelStore(imp, slicesPerChunk,
+				showPerformance);
+		result[2] = ((LabelStore) result[2]).toIntArray();
+		return result;
+	}
+
+	/**
+	 * Purify an image, keeping the background labels in a LabelStore rather
+	 * than an int array
+	 * 
+	 * @param imp
+	 * @param slicesPerChunk
+	 * @param showPerformance
+	 * @return Object[] {duration, purified ImagePlus, LabelStore of background
+	 *         labels}
+	 */
+	public Object[] purifyWithLabelStore(ImagePlus imp, int slicesPerChunk,
+			boolean showPerformance) {
 
 		long startTime = System.currentTimeMillis();
 		ParticleCounter pc = new ParticleCounter();
+		pc.setLabelMethod(labelMethod);
 
 		final int fg = ParticleCounter.FORE;
-		Object[] foregroundParticles = pc.getParticles(imp,
+		Object[] foregroundParticles = pc.getLabelStore(imp,
 				slicesPerChunk, 0, Double.POSITIVE_INFINITY, fg);
 		byte[][] workArray = (byte[][]) foregroundParticles[0];
-		int[][] particleLabels = (int[][]) foregroundParticles[1];
+		LabelStore particleLabels = (LabelStore) foregroundParticles[1];
 		//index 0 is background particle's size...
-		long[] particleSizes = pc.getParticleSizes(particleLabels);
+		long[] particleSizes = (long[]) foregroundParticles[2];
 		removeSmallParticles(workArray, particleLabels, particleSizes, fg);
 		
 		final int bg = ParticleCounter.BACK;
-		Object[] backgroundParticles = pc.getParticles(imp, workArray,
+		Object[] backgroundParticles = pc.getLabelStore(imp, workArray,
 				slicesPerChunk, 0, Double.POSITIVE_INFINITY, bg);
-		particleLabels = (int[][]) backgroundParticles[1];
-		particleSizes = pc.getParticleSizes(particleLabels);
+		particleLabels = (LabelStore) backgroundParticles[1];
+		particleSizes = (long[]) backgroundParticles[2];
 		touchEdges(imp, workArray, particleLabels, particleSizes, bg);
-		particleSizes = pc.getParticleSizes(particleLabels);
 		removeSmallParticles(workArray, particleLabels, particleSizes, bg);
 
 		double duration = ((double) System.currentTimeMillis() - (double) startTime)
@@ -144,6 +167,19 @@ public class Purify implements PlugIn {
 		return result;
 	}
 
+	/**
+	 * Set the algorithm that labels particles
+	 * 
+	 * @param labelMethod
+	 *            ParticleCounter.MULTI, LINEAR, PARALLEL or MAPPED
+	 */
+	public void setLabelMethod(int labelMethod) {
+		if (labelMethod < ParticleCounter.MULTI
+				|| labelMethod > ParticleCounter.MAPPED)
+			throw new IllegalArgumentException("Unknown labelling algorithm");
+		this.labelMethod = labelMethod;
+	}
+
 	/**
 	 * <p>
 	 * Find particles of phase that touch the stack sides and assign them the ID
@@ -152,15 +188,20 @@ public class Purify implements PlugIn {
 	 * isolated background particles touching the sides should be assigned to
 	 * the single background particle.
 	 * </p>
+	 * <p>
+	 * Particles touching the sides are collected first and then relabelled
+	 * in one pass through the stack, and their sizes are added to the biggest
+	 * particle's in particleSizes.
+	 * </p>
 	 * 
 	 * @param workArray
 	 * @param particleLabels
 	 * @param particleSizes
 	 * @param phase
-	 * @return particleLabels
 	 */
 	private void touchEdges(ImagePlus imp, final byte[][] workArray,
-			int[][] particleLabels, final long[] particleSizes, final int phase) {
+			LabelStore particleLabels, final long[] particleSizes,
+			final int phase) {
 		String status = "Background particles touching ";
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
@@ -178,102 +219,69 @@ public class Purify implements PlugIn {
 		}
 		final int biggestParticle = bigP;
 		// check each face of the stack for pixels that are touching edges and
-		// replace that particle's label in particleLabels with
-		// the label of the biggest particle
+		// mark that particle for replacement with the biggest particle
+		boolean[] touches = new boolean[nPartSizes];
 		int x, y, z;
 
-		ParticleCounter pc = new ParticleCounter();
-		// up
-		z = 0;
-		for (y = 0; y < h; y++) {
-			IJ.showStatus(status + "top");
-			IJ.showProgress(y, h);
-			final int rowOffset = y * w;
-			for (x = 0; x < w; x++) {
-				final int offset = rowOffset + x;
-				if (workArray[z][offset] == phase
-						&& particleLabels[z][offset] != biggestParticle) {
-					pc.replaceLabel(particleLabels, particleLabels[z][offset],
-							biggestParticle, 0, d);
-				}
-			}
-		}
-
-		// down
-		z = d - 1;
-		for (y = 0; y < h; y++) {
-			IJ.showStatus(status + "bottom");
-			IJ.showProgress(y, h);
-			final int rowOffset = y * w;
-			for (x = 0; x < w; x++) {
-				final int offset = rowOffset + x;
-				if (workArray[z][offset] == phase
-						&& particleLabels[z][offset] != biggestParticle) {
-					pc.replaceLabel(particleLabels, particleLabels[z][offset],
-							biggestParticle, 0, d);
-				}
+		// up and down
+		IJ.showStatus(status + "top and bottom");
+		for (z = 0; z < d; z += Math.max(1, d - 1)) {
+			for (int i = 0; i < w * h; i++) {
+				if (workArray[z][i] == phase)
+					touches[particleLabels.get(z, i)] = true;
 			}
 		}
 
-		// left
-		x = 0;
+		// left and right, front and back
+		IJ.showStatus(status + "sides");
 		for (z = 0; z < d; z++) {
-			IJ.showStatus(status + "left");
 			IJ.showProgress(z, d);
 			for (y = 0; y < h; y++) {
-				final int offset = y * w;
-				if (workArray[z][offset] == phase
-						&& particleLabels[z][offset] != biggestParticle) {
-					pc.replaceLabel(particleLabels, particleLabels[z][offset],
-							biggestParticle, 0, d);
-				}
+				final int rowOffset = y * w;
+				if (workArray[z][rowOffset] == phase)
+					touches[particleLabels.get(z, rowOffset)] = true;
+				final int offset = rowOffset + w - 1;
+				if (workArray[z][offset] == phase)
+					touches[particleLabels.get(z, offset)] = true;
 			}
-		}
-
-		// right
-		x = w - 1;
-		for (z = 0; z < d; z++) {
-			IJ.showStatus(status + "right");
-			IJ.showProgress(z, d);
-			for (y = 0; y < h; y++) {
-				final int offset = y * w + x;
-				if (workArray[z][offset] == phase
-						&& particleLabels[z][offset] != biggestParticle) {
-					pc.replaceLabel(particleLabels, particleLabels[z][offset],
-							biggestParticle, 0, d);
-				}
+			final int rowOffset = (h - 1) * w;
+			for (x = 0; x < w; x++) {
+				if (workArray[z][x] == phase)
+					touches[particleLabels.get(z, x)] = true;
+				final int offset = rowOffset + x;
+				if (workArray[z][offset] == phase)
+					touches[particleLabels.get(z, offset)] = true;
 			}
 		}
+		touches[biggestParticle] = false;
 
-		// front
-		y = h - 1;
-		int rowOffset = y * w;
-		for (z = 0; z < d; z++) {
-			IJ.showStatus(status + "front");
-			IJ.showProgress(z, d);
-			for (x = 0; x < w; x++) {
-				final int offset = rowOffset + x;
-				if (workArray[z][offset] == phase
-						&& particleLabels[z][offset] != biggestParticle) {
-					pc.replaceLabel(particleLabels, particleLabels[z][offset],
-							biggestParticle, 0, d);
-				}
+		boolean any = false;
+		for (int i = 0; i < nPartSizes; i++) {
+			if (touches[i]) {
+				particleSizes[biggestParticle] += particleSizes[i];
+				particleSizes[i] = 0;
+				any = true;
 			}
 		}
+		if (!any)
+			return;
 
-		// back
-		y = 0;
+		// replace the labels of all the touching particles
+		IJ.showStatus(status + "relabelling");
+		final int wh = w * h;
+		int[] labels = new int[wh];
 		for (z = 0; z < d; z++) {
-			IJ.showStatus(status + "back");
 			IJ.showProgress(z, d);
-			for (x = 0; x < w; x++) {
-				final int offset = x;
-				if (workArray[z][offset] == phase
-						&& particleLabels[z][offset] != biggestParticle) {
-					pc.replaceLabel(particleLabels, particleLabels[z][offset],
-							biggestParticle, 0, d);
+			particleLabels.getSlice(z, labels);
+			boolean changed = false;
+			for (int i = 0; i < wh; i++) {
+				if (workArray[z][i] == phase && touches[labels[i]]) {
+					labels[i] = biggestParticle;
+					changed = true;
 				}
 			}
+			if (changed)
+				particleLabels.setSlice(z, labels);
 		}
 		return;
 	}
@@ -285,10 +293,9 @@ public class Purify implements PlugIn {
 	 * @param particleLabels
 	 * @param particleSizes
 	 * @param phase
-	 * @return workArray
 	 */
 	private void removeSmallParticles(byte[][] workArray,
-			final int[][] particleLabels, final long[] particleSizes,
+			final LabelStore particleLabels, final long[] particleSizes,
 			final int phase) {
 		final int d = workArray.length;
 		final int wh = workArray[0].length;
@@ -302,13 +309,15 @@ public class Purify implements PlugIn {
 			}
 		}
 		final long maxVoxCount = maxVC;
+		int[] labels = new int[wh];
 		if (phase == fg) {
 			// go through work array and turn all
 			// smaller foreground particles into background (0)
 			for (int z = 0; z < d; z++) {
+				particleLabels.getSlice(z, labels);
 				for (int i = 0; i < wh; i++) {
 					if (workArray[z][i] == fg) {
-						if (particleSizes[particleLabels[z][i]] < maxVoxCount) {
+						if (particleSizes[labels[i]] < maxVoxCount) {
 							workArray[z][i] = bg;
 						}
 					}
@@ -320,9 +329,10 @@ public class Purify implements PlugIn {
 			// go through work array and turn all
 			// smaller background particles into foreground
 			for (int z = 0; z < d; z++) {
+				particleLabels.getSlice(z, labels);
 				for (int i = 0; i < wh; i++) {
 					if (workArray[z][i] == bg) {
-						if (particleSizes[particleLabels[z][i]] < maxVoxCount) {
+						if (particleSizes[labels[i]] < maxVoxCount) {
 							workArray[z][i] = fg;
 						}
 					}
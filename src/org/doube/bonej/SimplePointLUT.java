@@ -0,0 +1,276 @@
+package org.doube.bonej;
+
+/**
+ * SimplePointLUT
+ * Copyright 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import ij.IJ;
+
+/**
+ * <p>
+ * Topology tests of a voxel's 26-neighbourhood, answered from tables instead
+ * of by labelling the neighbourhood every time.
+ * </p>
+ * <p>
+ * A neighbourhood is packed into a 26-bit key, holding the voxels of
+ * Skeletonize3D's 27-voxel neighbourhood in order with the centre voxel left
+ * out. Whether the centre voxel is simple, in the sense of
+ * {@link Skeletonize3D#isSimplePoint(byte[])}, is read from a table of
+ * 2<sup>26</sup> bits (8 MB), which is built the first time it is needed
+ * and kept for the rest of the session. Euler invariance only takes 8
+ * lookups in the 256-entry Euler LUT, so it is worked out directly from the
+ * key.
+ * </p>
+ *
+ * @author agent
+ *
+ */
+public class SimplePointLUT {
+
+	/** number of keys */
+	private static final int N_KEYS = 1 << 26;
+
+	/** bit key is set if the centre of neighbourhood key is simple */
+	private static volatile long[] simpleTable;
+
+	/** Euler LUT [Lee94], from Skeletonize3D.fillEulerLUT() */
+	private static final int[] EULER_LUT = new int[256];
+
+	/**
+	 * Neighbourhood indices of the voxels of each octant, in the order of
+	 * Skeletonize3D.isEulerInvariant(), which gives them the weights 128, 64,
+	 * 32, 16, 8, 4 and 2
+	 */
+	private static final int[][] OCTANTS = { { 24, 25, 15, 16, 21, 22, 12 },
+			{ 26, 23, 17, 14, 25, 22, 16 }, { 18, 21, 9, 12, 19, 22, 10 },
+			{ 20, 23, 19, 22, 11, 14, 10 }, { 6, 15, 7, 16, 3, 12, 4 },
+			{ 8, 7, 17, 16, 5, 4, 14 }, { 0, 9, 3, 12, 1, 10, 4 },
+			{ 2, 1, 11, 10, 5, 4, 14 } };
+
+	/** 27-bit mask of the whole neighbourhood */
+	private static final int CUBE = (1 << 27) - 1;
+
+	/**
+	 * 27-bit masks of the neighbourhood voxels that are not at x = 0, x = 2,
+	 * y = 0 or y = 2, for clearing bits that shifts carry into the next row
+	 * or slice
+	 */
+	private static final int NOT_X0, NOT_X2, NOT_Y0, NOT_Y2;
+
+	static {
+		new Skeletonize3D().fillEulerLUT(EULER_LUT);
+		int x0 = 0, x2 = 0, y0 = 0, y2 = 0;
+		for (int i = 0; i < 27; i++) {
+			if (i % 3 == 0)
+				x0 |= 1 << i;
+			if (i % 3 == 2)
+				x2 |= 1 << i;
+			if ((i / 3) % 3 == 0)
+				y0 |= 1 << i;
+			if ((i / 3) % 3 == 2)
+				y2 |= 1 << i;
+		}
+		NOT_X0 = CUBE & ~x0;
+		NOT_X2 = CUBE & ~x2;
+		NOT_Y0 = CUBE & ~y0;
+		NOT_Y2 = CUBE & ~y2;
+	}
+
+	/**
+	 * Get the key of a neighbourhood mask
+	 *
+	 * @param neighbourhood
+	 *            27-bit mask as from BinaryVolume.getNeighbourhood(), where
+	 *            bit i is neighbourhood voxel i
+	 * @return 26-bit key
+	 */
+	public static int getKey(int neighbourhood) {
+		return (neighbourhood & 0x1FFF) | ((neighbourhood >>> 14) << 13);
+	}
+
+	/**
+	 * Get the key of a neighbourhood array
+	 *
+	 * @param neighbors
+	 *            27-voxel neighbourhood as from Skeletonize3D, in which
+	 *            voxels &gt; 0 are foreground
+	 * @return 26-bit key
+	 */
+	public static int getKey(byte[] neighbors) {
+		int neighbourhood = 0;
+		for (int i = 0; i < 27; i++) {
+			if (neighbors[i] > 0)
+				neighbourhood |= 1 << i;
+		}
+		return getKey(neighbourhood);
+	}
+
+	/**
+	 * Get the 27-bit neighbourhood mask of a key, with the centre voxel
+	 * background
+	 *
+	 * @param key
+	 * @return neighbourhood mask
+	 */
+	private static int getNeighbourhood(int key) {
+		return (key & 0x1FFF) | ((key >>> 13) << 14);
+	}
+
+	/**
+	 * @param key
+	 * @return number of foreground voxels in the neighbourhood, not counting
+	 *         the centre
+	 */
+	public static int getNumberOfNeighbors(int key) {
+		return Integer.bitCount(key);
+	}
+
+	/**
+	 * Check whether deleting the centre voxel would leave its foreground
+	 * neighbours in a single 26-connected component, as
+	 * Skeletonize3D.isSimplePoint() does
+	 *
+	 * @param key
+	 *            neighbourhood key
+	 * @return true if the centre voxel is simple
+	 */
+	public static boolean isSimplePoint(int key) {
+		final long[] table = getTable();
+		return ((table[key >>> 6] >>> key) & 1) != 0;
+	}
+
+	/**
+	 * Check whether deleting the centre voxel leaves the Euler characteristic
+	 * unchanged, as Skeletonize3D.isEulerInvariant() does
+	 *
+	 * @param key
+	 *            neighbourhood key
+	 * @return true if the centre voxel is Euler invariant
+	 */
+	public static boolean isEulerInvariant(int key) {
+		final int neighbourhood = getNeighbourhood(key);
+		int eulerChar = 0;
+		for (int o = 0; o < 8; o++) {
+			final int[] octant = OCTANTS[o];
+			int n = 1;
+			for (int v = 0; v < 7; v++) {
+				if (((neighbourhood >> octant[v]) & 1) != 0)
+					n |= 128 >> v;
+			}
+			eulerChar += EULER_LUT[n];
+		}
+		return eulerChar == 0;
+	}
+
+	/**
+	 * Get the simple point table, building it if this is the first call.
+	 * Only the first call has to synchronize, so threads thinning in parallel
+	 * don't queue up on every lookup.
+	 *
+	 * @return table of 2<sup>26</sup> bits
+	 */
+	private static long[] getTable() {
+		long[] table = simpleTable;
+		if (table == null)
+			table = initTable();
+		return table;
+	}
+
+	private static synchronized long[] initTable() {
+		if (simpleTable == null)
+			simpleTable = buildTable();
+		return simpleTable;
+	}
+
+	/**
+	 * Work out whether the centre of every possible neighbourhood is simple,
+	 * sharing the keys between threads a word at a time
+	 *
+	 * @return table of 2<sup>26</sup> bits
+	 */
+	private static long[] buildTable() {
+		IJ.showStatus("Building simple point table...");
+		final long[] table = new long[N_KEYS >> 6];
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		TableThread[] tableThread = new TableThread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			tableThread[thread] = new TableThread(thread, nThreads, table);
+			tableThread[thread].start();
+		}
+		try {
+			for (int thread = 0; thread < nThreads; thread++) {
+				tableThread[thread].join();
+			}
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted.");
+		}
+		return table;
+	}
+
+	/**
+	 * Count the 26-connected components of a neighbourhood's foreground, by
+	 * growing the component that holds its first voxel
+	 *
+	 * @param key
+	 *            neighbourhood key
+	 * @return true if there are no more than 1
+	 */
+	private static boolean hasOneComponent(int key) {
+		final int foreground = getNeighbourhood(key);
+		if (foreground == 0)
+			return true;
+		int component = foreground & -foreground;
+		while (true) {
+			// dilate by the 3 x 3 x 3 cube, one axis at a time
+			int grown = component | ((component << 1) & NOT_X0)
+					| ((component >>> 1) & NOT_X2);
+			grown |= ((grown << 3) & NOT_Y0) | ((grown >>> 3) & NOT_Y2);
+			grown |= (grown << 9) | (grown >>> 9);
+			grown &= foreground;
+			if (grown == component)
+				return component == foreground;
+			component = grown;
+		}
+	}
+
+	static class TableThread extends Thread {
+		final int thread, nThreads;
+
+		final long[] table;
+
+		public TableThread(int thread, int nThreads, long[] table) {
+			this.thread = thread;
+			this.nThreads = nThreads;
+			this.table = table;
+		}
+
+		public void run() {
+			final int nWords = this.table.length;
+			for (int word = this.thread; word < nWords; word += this.nThreads) {
+				final int key0 = word << 6;
+				long bits = 0;
+				for (int b = 0; b < 64; b++) {
+					if (hasOneComponent(key0 + b))
+						bits |= 1L << b;
+				}
+				this.table[word] = bits;
+				if (this.thread == 0 && (word & 0xFFFF) == 0)
+					IJ.showProgress(word, nWords);
+			}
+		}
+	}
+}
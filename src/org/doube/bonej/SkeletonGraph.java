@@ -0,0 +1,508 @@
+package org.doube.bonej;
+
+/**
+ * SkeletonGraph
+ * Copyright 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Graph of a skeleton, as found by Analyze_Skeleton. Nodes are end points,
+ * clusters of neighbouring junction voxels and, for circular trees that have
+ * neither, the slab voxel the tree was entered at. Edges are branches, with
+ * their length and the slab voxels they run through.
+ * </p>
+ * <p>
+ * Everything is held in primitive arrays. Voxels are stored as indices (z *
+ * height + y) * width + x, and each node's voxels and each edge's slab voxels
+ * are consecutive runs of one shared array, with an offset array marking
+ * where each run starts. The edges at each node are kept the same way, in
+ * compressed adjacency arrays that are built the first time they are needed
+ * after an edge is added.
+ * </p>
+ *
+ * @author agent
+ *
+ */
+public class SkeletonGraph {
+
+	/** node types, the same as the tags in Analyze_Skeleton's tagged image */
+	public static final byte END_POINT = 30;
+
+	public static final byte JUNCTION = 70;
+
+	public static final byte SLAB = 127;
+
+	private final int width;
+
+	private final int height;
+
+	private final int depth;
+
+	private int nNodes = 0;
+
+	private byte[] nodeType = new byte[64];
+
+	private int[] nodeTree = new int[64];
+
+	/** sums of the node voxels' coordinates */
+	private long[] nodeSumX = new long[64];
+
+	private long[] nodeSumY = new long[64];
+
+	private long[] nodeSumZ = new long[64];
+
+	/** node n's voxels are nodeVoxels[nodeVoxelOffset[n]] onwards */
+	private int[] nodeVoxelOffset = new int[65];
+
+	private long[] nodeVoxels = new long[64];
+
+	private int nEdges = 0;
+
+	private int[] edgeSource = new int[64];
+
+	private int[] edgeTarget = new int[64];
+
+	private int[] edgeTree = new int[64];
+
+	private double[] edgeLength = new double[64];
+
+	/** edge e's slab voxels are slabs[slabOffset[e]] onwards */
+	private int[] slabOffset = new int[65];
+
+	private long[] slabs = new long[256];
+
+	/** number of slab voxels, including those not yet given to an edge */
+	private int nSlabs = 0;
+
+	/**
+	 * node voxels in order, and the node each belongs to; null until the first
+	 * findNode(), then kept up to date as voxels are added. The arrays may be
+	 * longer than the number of node voxels.
+	 */
+	private long[] sortedVoxels = null;
+
+	private int[] sortedNodes = null;
+
+	/** node n's edges are adjacency[adjacencyOffset[n]] onwards */
+	private int[] adjacencyOffset = null;
+
+	private int[] adjacency = null;
+
+	/**
+	 * Create an empty graph of a skeleton image
+	 *
+	 * @param width
+	 * @param height
+	 * @param depth
+	 */
+	public SkeletonGraph(int width, int height, int depth) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+	}
+
+	/**
+	 * Add a node with no voxels; voxels are added to the newest node with
+	 * addNodeVoxel()
+	 *
+	 * @param type
+	 *            END_POINT, JUNCTION or SLAB
+	 * @param tree
+	 *            index of the tree the node is in
+	 * @return the new node's index
+	 */
+	public int addNode(byte type, int tree) {
+		if (this.nNodes == this.nodeType.length) {
+			final int size = this.nNodes * 2;
+			this.nodeType = resize(this.nodeType, size);
+			this.nodeTree = resize(this.nodeTree, size);
+			this.nodeSumX = resize(this.nodeSumX, size);
+			this.nodeSumY = resize(this.nodeSumY, size);
+			this.nodeSumZ = resize(this.nodeSumZ, size);
+			this.nodeVoxelOffset = resize(this.nodeVoxelOffset, size + 1);
+		}
+		final int node = this.nNodes++;
+		this.nodeType[node] = type;
+		this.nodeTree[node] = tree;
+		this.nodeVoxelOffset[node + 1] = this.nodeVoxelOffset[node];
+		this.adjacency = null;
+		return node;
+	}
+
+	/**
+	 * Add a voxel to the newest node
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void addNodeVoxel(int x, int y, int z) {
+		final int node = this.nNodes - 1;
+		final int n = this.nodeVoxelOffset[node + 1];
+		if (n == this.nodeVoxels.length)
+			this.nodeVoxels = resize(this.nodeVoxels, n * 2);
+		this.nodeVoxels[n] = getIndex(x, y, z);
+		this.nodeVoxelOffset[node + 1] = n + 1;
+		this.nodeSumX[node] += x;
+		this.nodeSumY[node] += y;
+		this.nodeSumZ[node] += z;
+		if (this.sortedVoxels != null)
+			insertSortedVoxel(n, this.nodeVoxels[n], node);
+	}
+
+	/**
+	 * Add a slab voxel to the edge that will be added next
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void addSlab(int x, int y, int z) {
+		if (this.nSlabs == this.slabs.length)
+			this.slabs = resize(this.slabs, this.nSlabs * 2);
+		this.slabs[this.nSlabs++] = getIndex(x, y, z);
+	}
+
+	/**
+	 * Add an edge, taking the slab voxels added since the last edge
+	 *
+	 * @param source
+	 *            node the branch was walked from
+	 * @param target
+	 *            node the branch ends at, which is source for loops
+	 * @param tree
+	 *            index of the tree the edge is in
+	 * @param length
+	 *            branch length in calibrated units
+	 * @return the new edge's index
+	 */
+	public int addEdge(int source, int target, int tree, double length) {
+		if (this.nEdges == this.edgeSource.length) {
+			final int size = this.nEdges * 2;
+			this.edgeSource = resize(this.edgeSource, size);
+			this.edgeTarget = resize(this.edgeTarget, size);
+			this.edgeTree = resize(this.edgeTree, size);
+			this.edgeLength = resize(this.edgeLength, size);
+			this.slabOffset = resize(this.slabOffset, size + 1);
+		}
+		final int edge = this.nEdges++;
+		this.edgeSource[edge] = source;
+		this.edgeTarget[edge] = target;
+		this.edgeTree[edge] = tree;
+		this.edgeLength[edge] = length;
+		this.slabOffset[edge + 1] = this.nSlabs;
+		this.adjacency = null;
+		return edge;
+	}
+
+	/**
+	 * Find the node that a voxel belongs to
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return node index, or -1 if the voxel isn't in a node
+	 */
+	public int findNode(int x, int y, int z) {
+		if (x < 0 || x >= this.width || y < 0 || y >= this.height || z < 0
+				|| z >= this.depth)
+			return -1;
+		if (this.sortedVoxels == null)
+			sortNodeVoxels();
+		final int i = Arrays.binarySearch(this.sortedVoxels, 0,
+				this.nodeVoxelOffset[this.nNodes], getIndex(x, y, z));
+		return i < 0 ? -1 : this.sortedNodes[i];
+	}
+
+	public int getWidth() {
+		return this.width;
+	}
+
+	public int getHeight() {
+		return this.height;
+	}
+
+	public int getDepth() {
+		return this.depth;
+	}
+
+	public int getNumberOfNodes() {
+		return this.nNodes;
+	}
+
+	public int getNumberOfEdges() {
+		return this.nEdges;
+	}
+
+	/**
+	 * @param node
+	 * @return END_POINT, JUNCTION or SLAB
+	 */
+	public byte getNodeType(int node) {
+		return this.nodeType[node];
+	}
+
+	/**
+	 * @param node
+	 * @return index of the tree the node is in
+	 */
+	public int getNodeTree(int node) {
+		return this.nodeTree[node];
+	}
+
+	/**
+	 * @param node
+	 * @return x coordinate of the centroid of the node's voxels, in pixels
+	 */
+	public double getNodeX(int node) {
+		return (double) this.nodeSumX[node] / getNumberOfNodeVoxels(node);
+	}
+
+	/**
+	 * @param node
+	 * @return y coordinate of the centroid of the node's voxels, in pixels
+	 */
+	public double getNodeY(int node) {
+		return (double) this.nodeSumY[node] / getNumberOfNodeVoxels(node);
+	}
+
+	/**
+	 * @param node
+	 * @return z coordinate of the centroid of the node's voxels, in slices
+	 *         from 0
+	 */
+	public double getNodeZ(int node) {
+		return (double) this.nodeSumZ[node] / getNumberOfNodeVoxels(node);
+	}
+
+	public int getNumberOfNodeVoxels(int node) {
+		return this.nodeVoxelOffset[node + 1] - this.nodeVoxelOffset[node];
+	}
+
+	/**
+	 * @param node
+	 * @param i
+	 *            index from 0 to getNumberOfNodeVoxels(node) - 1
+	 * @return voxel index, as decoded by getVoxelX(), getVoxelY() and
+	 *         getVoxelZ()
+	 */
+	public long getNodeVoxel(int node, int i) {
+		return this.nodeVoxels[this.nodeVoxelOffset[node] + i];
+	}
+
+	/**
+	 * @param edge
+	 * @return node the branch was walked from
+	 */
+	public int getEdgeSource(int edge) {
+		return this.edgeSource[edge];
+	}
+
+	/**
+	 * @param edge
+	 * @return node the branch ends at
+	 */
+	public int getEdgeTarget(int edge) {
+		return this.edgeTarget[edge];
+	}
+
+	/**
+	 * @param edge
+	 * @param node
+	 *            one end of the edge
+	 * @return the edge's other end
+	 */
+	public int getOtherNode(int edge, int node) {
+		return this.edgeSource[edge] == node ? this.edgeTarget[edge]
+				: this.edgeSource[edge];
+	}
+
+	/**
+	 * @param edge
+	 * @return index of the tree the edge is in
+	 */
+	public int getEdgeTree(int edge) {
+		return this.edgeTree[edge];
+	}
+
+	/**
+	 * @param edge
+	 * @return branch length in calibrated units
+	 */
+	public double getEdgeLength(int edge) {
+		return this.edgeLength[edge];
+	}
+
+	public int getNumberOfSlabs(int edge) {
+		return this.slabOffset[edge + 1] - this.slabOffset[edge];
+	}
+
+	/**
+	 * @param edge
+	 * @param i
+	 *            index from 0 to getNumberOfSlabs(edge) - 1, in the order the
+	 *            branch was walked
+	 * @return voxel index, as decoded by getVoxelX(), getVoxelY() and
+	 *         getVoxelZ()
+	 */
+	public long getSlab(int edge, int i) {
+		return this.slabs[this.slabOffset[edge] + i];
+	}
+
+	/**
+	 * Get the number of edge ends at a node. A loop from a node back to
+	 * itself counts twice.
+	 *
+	 * @param node
+	 * @return node degree
+	 */
+	public int getDegree(int node) {
+		if (this.adjacency == null)
+			buildAdjacency();
+		return this.adjacencyOffset[node + 1] - this.adjacencyOffset[node];
+	}
+
+	/**
+	 * @param node
+	 * @param i
+	 *            index from 0 to getDegree(node) - 1
+	 * @return index of the node's i<sup>th</sup> edge
+	 */
+	public int getEdge(int node, int i) {
+		if (this.adjacency == null)
+			buildAdjacency();
+		return this.adjacency[this.adjacencyOffset[node] + i];
+	}
+
+	public int getVoxelX(long voxel) {
+		return (int) (voxel % this.width);
+	}
+
+	public int getVoxelY(long voxel) {
+		return (int) ((voxel / this.width) % this.height);
+	}
+
+	public int getVoxelZ(long voxel) {
+		return (int) (voxel / ((long) this.width * this.height));
+	}
+
+	private long getIndex(int x, int y, int z) {
+		return ((long) z * this.height + y) * this.width + x;
+	}
+
+	/**
+	 * Sort the node voxels, carrying their nodes with them, by sorting keys
+	 * that hold the voxel index in the high bits and the position in
+	 * nodeVoxels in the low bits
+	 */
+	private void sortNodeVoxels() {
+		final int n = this.nodeVoxelOffset[this.nNodes];
+		final int[] owner = new int[n];
+		for (int node = 0; node < this.nNodes; node++)
+			Arrays.fill(owner, this.nodeVoxelOffset[node],
+					this.nodeVoxelOffset[node + 1], node);
+		final int shift = 64 - Long.numberOfLeadingZeros(Math.max(1, n - 1));
+		final long[] keys = new long[n];
+		for (int i = 0; i < n; i++)
+			keys[i] = (this.nodeVoxels[i] << shift) | i;
+		Arrays.sort(keys);
+		final long[] voxels = new long[n];
+		final int[] nodes = new int[n];
+		final long mask = (1L << shift) - 1;
+		for (int i = 0; i < n; i++) {
+			voxels[i] = keys[i] >>> shift;
+			nodes[i] = owner[(int) (keys[i] & mask)];
+		}
+		this.sortedNodes = nodes;
+		this.sortedVoxels = voxels;
+	}
+
+	/**
+	 * Insert a voxel into the sorted node voxels, so that adding a node after
+	 * the first findNode() doesn't mean sorting them all again
+	 *
+	 * @param n
+	 *            number of node voxels already in the sorted arrays
+	 * @param voxel
+	 *            index of the voxel
+	 * @param node
+	 *            node the voxel belongs to
+	 */
+	private void insertSortedVoxel(int n, long voxel, int node) {
+		if (n == this.sortedVoxels.length) {
+			final int size = Math.max(64, n * 2);
+			this.sortedVoxels = resize(this.sortedVoxels, size);
+			this.sortedNodes = resize(this.sortedNodes, size);
+		}
+		int i = Arrays.binarySearch(this.sortedVoxels, 0, n, voxel);
+		if (i < 0)
+			i = -i - 1;
+		System.arraycopy(this.sortedVoxels, i, this.sortedVoxels, i + 1, n - i);
+		System.arraycopy(this.sortedNodes, i, this.sortedNodes, i + 1, n - i);
+		this.sortedVoxels[i] = voxel;
+		this.sortedNodes[i] = node;
+	}
+
+	/**
+	 * Build the compressed adjacency arrays by counting each node's edge ends
+	 * and then filling them in
+	 */
+	private void buildAdjacency() {
+		final int[] offset = new int[this.nNodes + 1];
+		for (int e = 0; e < this.nEdges; e++) {
+			offset[this.edgeSource[e] + 1]++;
+			offset[this.edgeTarget[e] + 1]++;
+		}
+		for (int node = 0; node < this.nNodes; node++)
+			offset[node + 1] += offset[node];
+		final int[] edges = new int[2 * this.nEdges];
+		final int[] next = new int[this.nNodes];
+		System.arraycopy(offset, 0, next, 0, this.nNodes);
+		for (int e = 0; e < this.nEdges; e++) {
+			edges[next[this.edgeSource[e]]++] = e;
+			edges[next[this.edgeTarget[e]]++] = e;
+		}
+		this.adjacencyOffset = offset;
+		this.adjacency = edges;
+	}
+
+	private static byte[] resize(byte[] array, int size) {
+		byte[] resized = new byte[size];
+		System.arraycopy(array, 0, resized, 0, Math.min(size, array.length));
+		return resized;
+	}
+
+	private static int[] resize(int[] array, int size) {
+		int[] resized = new int[size];
+		System.arraycopy(array, 0, resized, 0, Math.min(size, array.length));
+		return resized;
+	}
+
+	private static long[] resize(long[] array, int size) {
+		long[] resized = new long[size];
+		System.arraycopy(array, 0, resized, 0, Math.min(size, array.length));
+		return resized;
+	}
+
+	private static double[] resize(double[] array, int size) {
+		double[] resized = new double[size];
+		System.arraycopy(array, 0, resized, 0, Math.min(size, array.length));
+		return resized;
+	}
+}
@@ -20,13 +20,22 @@ package org.doube.bonej;
  * 
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.doube.util.BinaryVolume;
 import org.doube.util.ImageCheck;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.gui.GenericDialog;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 
@@ -51,6 +60,12 @@ import ij.process.ImageProcessor;
  */
 public class Skeletonize3D implements PlugInFilter 
 {
+	/** neighborhood mask bit of the center point */
+	private static final int CENTER = 1 << 13;
+	/** neighborhood mask bits of the 6-neighbor on the N, S, E, W, U and B side */
+	private static final int[] BORDER_NEIGHBOR = { 1 << 10, 1 << 16, 1 << 14, 
+		1 << 12, 1 << 22, 1 << 4 };
+	
 	/** working image plus */
 	private ImagePlus imRef;
 
@@ -62,6 +77,16 @@ public class Skeletonize3D implements PlugInFilter
 	private int depth = 0;
 	/** working image stack*/
 	private ImageStack inputImage = null;
+	/** thin the subfields in parallel instead of sequentially */
+	private boolean doParallel = false;
+	/** thin the image in overlapping blocks of slices */
+	private boolean doTiled = false;
+	/** number of slices in each block's interior */
+	private int blockDepth = 64;
+	/** number of slices each block overlaps its neighbors by */
+	private int halo = 16;
+	/** write the tiled skeleton to a raw file instead of to the image */
+	private boolean doFile = false;
 	
 	/* -----------------------------------------------------------------------*/
 	/**
@@ -79,6 +104,12 @@ public class Skeletonize3D implements PlugInFilter
 			showAbout();
 			return DONE;
 		}
+		
+		if (arg.equals("parallel"))
+			this.doParallel = true;
+		
+		if (arg.equals("tiled"))
+			this.doTiled = true;
 
 		return DOES_8G;
 	} /* end setup */
@@ -98,46 +129,100 @@ public class Skeletonize3D implements PlugInFilter
 		this.height = this.imRef.getHeight();
 		this.depth = this.imRef.getStackSize();
 		this.inputImage = this.imRef.getStack();
+		
+		if (this.doTiled)
+		{
+			runTiled(ip);
+			return;
+		}
 							
 		// Prepare data
-		prepareData(this.inputImage);
+		BinaryVolume volume = prepareData(this.inputImage);
 		
 		// Compute Thinning	
-		computeThinImage(this.inputImage);
+		if (this.doParallel)
+			computeThinImageParallel(volume);
+		else
+			computeThinImage(volume);
 		
 		// Convert image to binary 0-255
-		for(int i = 1; i <= this.inputImage.getSize(); i++)
-			this.inputImage.getProcessor(i).multiply(255);
+		volume.toStack(this.inputImage, 255);
 		
 		this.inputImage.update(ip);
 		
 
 	} /* end run */
 
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Ask for the block size and thin the image block by block. Virtual 
+	 * stacks are not overwritten: their skeleton goes to a raw file or 
+	 * to a new image.
+	 * 
+	 * @param ip current image processor
+	 */
+	private void runTiled(ImageProcessor ip) 
+	{
+		GenericDialog gd = new GenericDialog("Tiled Skeletonise");
+		gd.addNumericField("Block depth", this.blockDepth, 0, 5, "slices");
+		gd.addNumericField("Halo", this.halo, 0, 5, "slices");
+		gd.addCheckbox("Write to raw file", this.inputImage.isVirtual());
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		this.blockDepth = Math.max(1, (int) gd.getNextNumber());
+		this.halo = Math.max(0, (int) gd.getNextNumber());
+		this.doFile = gd.getNextBoolean();
+		
+		if (this.doFile)
+		{
+			File file = new File(IJ.getDirectory("temp"), 
+					this.imRef.getTitle() + "_skeleton.raw");
+			try 
+			{
+				computeThinImageTiled(this.inputImage, this.blockDepth, 
+						this.halo, file);
+				IJ.log("Skeleton written to " + file.getPath() 
+						+ " as 8-bit raw, " + this.width + " x " + this.height 
+						+ " x " + this.depth + ", foreground 255");
+				return;
+			} 
+			catch (IOException e) 
+			{
+				IJ.log("Writing the skeleton to file failed (" + e.getMessage() 
+						+ "), thinning in memory instead.");
+			}
+		}
+		
+		BinaryVolume skeleton = computeThinImageTiled(this.inputImage, 
+				this.blockDepth, this.halo);
+		if (this.inputImage.isVirtual())
+		{
+			new ImagePlus(this.imRef.getTitle() + "_skeleton", 
+					skeleton.toStack(255)).show();
+			return;
+		}
+		skeleton.toStack(this.inputImage, 255);
+		this.inputImage.update(ip);
+	} /* end runTiled */
+
 	/* -----------------------------------------------------------------------*/
 	/**
 	 * Prepare data for computation.
-	 * Copy the input image to the output image, changing from the input
-	 * type to the output type.
+	 * Pack the input image into a binary volume, one bit per voxel,
+	 * with all non-zero pixels as foreground.
 	 * 
-	 * @param outputImage output image stack
+	 * @param inputImage input image stack
+	 * @return binary volume holding the foreground
 	 */
-	private void prepareData(ImageStack outputImage) 
+	private BinaryVolume prepareData(ImageStack inputImage) 
 	{
-	
-		//IJ.write("Prepare Data: Copy input to output");
-		IJ.showStatus("Prepare Data: Copy input to output ...");
+		IJ.showStatus("Prepare Data: Pack input ...");
 		
-		// Copy the input to the output, changing all foreground pixels to
-        // have value 1 in the process.
-		for (int z = 0; z < depth; z++) 
-			for (int x = 0; x < width; x++) 
-				for (int y = 0; y < height; y++)
-					if ( ((byte[]) this.inputImage.getPixels(z + 1))[x + y * width] != 0 )
-						((byte[]) outputImage.getPixels(z + 1))[x + y * width] = 1;
+		BinaryVolume volume = new BinaryVolume(inputImage);
 				
-		//IJ.write("Prepare Data End");
 		IJ.showStatus("Prepare Data End.");
+		return volume;
 	} /* end prepareData */
 	
 	
@@ -146,102 +231,134 @@ public class Skeletonize3D implements PlugInFilter
 	/**
 	 * Post processing for computing thinning.
 	 * 
-	 * @param outputImage output image stack
+	 * @param outputImage output image stack, with foreground 1 and 
+	 * background 0
 	 */
 	public void computeThinImage(ImageStack outputImage) 
 	{
+		BinaryVolume volume = new BinaryVolume(outputImage, 1, 1);
+		computeThinImage(volume);
+		volume.toStack(outputImage, 1);
+	} /* end computeThinImage */
+	
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Compute thinning on a binary volume, in place.
+	 * 
+	 * <p>Instead of rescanning the whole volume for every border type,
+	 * each border type keeps a queue of candidate points. The queues start 
+	 * with the initial boundary, and a point leaves a queue once it has been 
+	 * checked against that border type. Whether a point can be deleted 
+	 * only depends on its 26-neighborhood, so a point that was kept can only 
+	 * become deletable after one of its neighbors is deleted, and only the 
+	 * 26 neighbors of each deleted point are queued again. Queues are visited 
+	 * in raster order, so the result is the same as a full scan's while the 
+	 * cost follows the size of the surface rather than of the volume.</p>
+	 * 
+	 * @param volume binary volume to thin
+	 */
+	public void computeThinImage(BinaryVolume volume) 
+	{
+		final int width = volume.getWidth();
+		final int height = volume.getHeight();
+		final int depth = volume.getDepth();
+		
 		//IJ.write("Compute Thin Image Start");
 		IJ.showStatus("Computing thin image ...");
 		
 		ArrayList <int[]> simpleBorderPoints = new ArrayList<int[]>();
 		
-		// Prepare Euler LUT [Lee94]
-		int eulerLUT[] = new int[256]; 
-		fillEulerLUT( eulerLUT );
+		// candidate queue of each border type, and which points are in it
+		CandidateQueue[] queues = new CandidateQueue[6];
+		BinaryVolume[] queued = new BinaryVolume[6];
+		for( int b = 0; b < 6; b++ )
+		{
+			queues[b] = new CandidateQueue();
+			queued[b] = new BinaryVolume(width, height, depth);
+		}
+		
+		// start with the initial boundary: foreground points with at least
+		// one background 6-neighbor
+		for (int z = 0; z < depth; z++)
+		{
+			for (int y = 0; y < height; y++)
+			{
+				for (int x = volume.nextForeground(0, y, z); x >= 0; 
+						x = volume.nextForeground(x + 1, y, z))
+				{
+					if( volume.getFaceNeighbours(x, y, z) != 0x3F )
+						enqueue(queues, queued, width, height, x, y, z);
+				}
+			}
+			IJ.showProgress(z, depth);
+		}
 		
 		int iter = 1;
 		
-		// Loop through the image several times until there is no change.
+		// Loop through the candidates several times until there is no change.
 		int unchangedBorders = 0;
 		while( unchangedBorders < 6 )  // loop until no change for all the six border types
 		{						
 			unchangedBorders = 0;
 			for( int currentBorder = 1; currentBorder <= 6; currentBorder++)
 			{
-				IJ.showStatus("Thinning iteration " + iter + " (" + currentBorder +"/6 borders) ...");
+				final CandidateQueue queue = queues[currentBorder - 1];
+				final BinaryVolume inQueue = queued[currentBorder - 1];
+				IJ.showStatus("Thinning iteration " + iter + " (" + currentBorder +"/6 borders, " 
+						+ queue.size() + " candidates) ...");
 				
-				// Loop through the image.				 
-				for (int z = 0; z < depth; z++)
+				// Loop through the candidates in raster order
+				queue.sort();
+				final int nCandidates = queue.size();
+				for( int c = 0; c < nCandidates; c++ )
 				{
-					for (int y = 0; y < height; y++)
-					{
-						for (int x = 0; x < width; x++)						
-						{
-							// check if point is foreground
-					        if ( getPixel(outputImage, x, y, z) != 1 )
-					        {
-					          continue;         // current point is already background 
-					        }
-					        // check 6-neighbors if point is a border point of type currentBorder
-					        boolean isBorderPoint = false;
-					        // North
-					        if( currentBorder == 1 && N(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // South
-					        if( currentBorder == 2 && S(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // East
-					        if( currentBorder == 3 && E(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // West
-					        if( currentBorder == 4 && W(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // Up
-					        if( currentBorder == 5 && U(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // Bottom
-					        if( currentBorder == 6 && B(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        
-					        if( !isBorderPoint )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        
-					        // check if point is the end of an arc
-					        int numberOfNeighbors = -1;   // -1 and not 0 because the center pixel will be counted as well
-					        byte[] neighbor = getNeighborhood(outputImage, x, y, z);
-					        for( int i = 0; i < 27; i++ ) // i =  0..26
-					        {					        	
-					          if( neighbor[i] == 1 )
-					            numberOfNeighbors++;
-					        }
-
-					        if( numberOfNeighbors == 1 )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        
-					        // Check if point is Euler invariant
-					        if( !isEulerInvariant( getNeighborhood(outputImage, x, y, z), eulerLUT ) )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        // Check if point is simple (deletion does not change connectivity in the 3x3x3 neighborhood)
-					        if( !isSimplePoint(getNeighborhood(outputImage, x, y, z) ) )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        // add all simple border points to a list for sequential re-checking
-					        int[] index = new int[3];
-					        index[0] = x;
-					        index[1] = y;
-					        index[2] = z;
-					        simpleBorderPoints.add(index);
-						}
-					}					
-					IJ.showProgress(z, this.depth);				
-				}							
+					final long candidate = queue.get(c);
+					final int x = (int) (candidate % width);
+					final int y = (int) ((candidate / width) % height);
+					final int z = (int) (candidate / ((long) width * height));
+					inQueue.clear(x, y, z);
+					
+					// read the whole neighborhood once, as a 27-bit mask
+					final int neighborhood = volume.getNeighbourhood(x, y, z);
+					
+					// check if point is foreground
+			        if( (neighborhood & CENTER) == 0 )
+			        {
+			          continue;         // current point has been deleted 
+			        }
+			        // check 6-neighbors if point is a border point of type currentBorder
+			        if( (neighborhood & BORDER_NEIGHBOR[currentBorder - 1]) != 0 )
+			        {
+			          continue;         // current point is not deletable
+			        }
+			        
+			        // pack the 26 neighbors into a key for the topology tables
+			        final int key = SimplePointLUT.getKey(neighborhood);
+			        
+			        // check if point is the end of an arc
+			        if( SimplePointLUT.getNumberOfNeighbors(key) == 1 )
+			        {
+			          continue;         // current point is not deletable
+			        }
+			        
+			        // Check if point is Euler invariant
+			        if( !SimplePointLUT.isEulerInvariant(key) )
+			        {
+			          continue;         // current point is not deletable
+			        }
+			        // Check if point is simple (deletion does not change connectivity in the 3x3x3 neighborhood)
+			        if( !SimplePointLUT.isSimplePoint(key) )
+			        {
+			          continue;         // current point is not deletable
+			        }
+			        // add all simple border points to a list for sequential re-checking
+			        int[] index = new int[3];
+			        index[0] = x;
+			        index[1] = y;
+			        index[2] = z;
+			        simpleBorderPoints.add(index);
+				}
+				queue.clear();
 				
 				// sequential re-checking to preserve connectivity when
 				// deleting in a parallel way
@@ -251,31 +368,26 @@ public class Skeletonize3D implements PlugInFilter
 				{
 					index = simpleBorderPoints.get(i);
 					// 1. Set simple border point to 0
-					setPixel( outputImage, index[0], index[1], index[2], (byte) 0);
+					volume.clear( index[0], index[1], index[2] );
 					
 					// 2. Check if neighborhood is still connected
-					if( !isSimplePoint( getNeighborhood(outputImage, index[0], index[1], index[2]) ) )
+					if( !SimplePointLUT.isSimplePoint( SimplePointLUT.getKey( 
+							volume.getNeighbourhood(index[0], index[1], index[2]) ) ) )
 					{
 						// we cannot delete current point, so reset
-						setPixel( outputImage, index[0], index[1], index[2], (byte) 1);
+						volume.set( index[0], index[1], index[2] );
 					}
 					else
 					{
 						noChange = false;
+						// the point's neighbors have to be checked again
+						queueNeighbors(volume, queues, queued, index[0], index[1], index[2]);
 					}
 				}
 				if( noChange )
 					unchangedBorders++;
 
-				//IJ.write("# simple border points = " + simpleBorderPoints.size());
-				/*
-				if(index != null)
-					IJ.write("# last point = [" + index[0] + ", " + index[1] + "," +  index[2]+ "]");
-				else 
-					IJ.write("# last point = [0, 0, 0]");
-					*/
 				simpleBorderPoints.clear();
-				//IJ.write("# simple border points = " + simpleBorderPoints.size() + "\n");
 							
 			} // end currentBorder for loop
 			
@@ -289,179 +401,275 @@ public class Skeletonize3D implements PlugInFilter
 	
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Get neighborhood of a pixel in a 3D image (0 border conditions) 
+	 * Add the foreground 26-neighbors of a point to the candidate queues
 	 * 
-	 * @param image 3D image (ImageStack)
+	 * @param volume binary volume being thinned
+	 * @param queues candidate queue of each border type
+	 * @param queued points in each queue
 	 * @param x x- coordinate
 	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding 27-pixels neighborhood (0 if out of image)
+	 * @param z z- coordinate (starting at 0)
 	 */
-	private byte[] getNeighborhood(ImageStack image, int x, int y, int z)
+	private void queueNeighbors(BinaryVolume volume, CandidateQueue[] queues, 
+			BinaryVolume[] queued, int x, int y, int z)
 	{
-		byte[] neighborhood = new byte[27];
-		
-		neighborhood[ 0] = getPixel(image, x-1, y-1, z-1);
-		neighborhood[ 1] = getPixel(image, x  , y-1, z-1);
-		neighborhood[ 2] = getPixel(image, x+1, y-1, z-1);
-		
-		neighborhood[ 3] = getPixel(image, x-1, y,   z-1);
-		neighborhood[ 4] = getPixel(image, x,   y,   z-1);
-		neighborhood[ 5] = getPixel(image, x+1, y,   z-1);
-		
-		neighborhood[ 6] = getPixel(image, x-1, y+1, z-1);
-		neighborhood[ 7] = getPixel(image, x,   y+1, z-1);
-		neighborhood[ 8] = getPixel(image, x+1, y+1, z-1);
-		
-		neighborhood[ 9] = getPixel(image, x-1, y-1, z  );
-		neighborhood[10] = getPixel(image, x,   y-1, z  );
-		neighborhood[11] = getPixel(image, x+1, y-1, z  );
-		
-		neighborhood[12] = getPixel(image, x-1, y,   z  );
-		neighborhood[13] = getPixel(image, x,   y,   z  );
-		neighborhood[14] = getPixel(image, x+1, y,   z  );
-		
-		neighborhood[15] = getPixel(image, x-1, y+1, z  );
-		neighborhood[16] = getPixel(image, x,   y+1, z  );
-		neighborhood[17] = getPixel(image, x+1, y+1, z  );
-		
-		neighborhood[18] = getPixel(image, x-1, y-1, z+1);
-		neighborhood[19] = getPixel(image, x,   y-1, z+1);
-		neighborhood[20] = getPixel(image, x+1, y-1, z+1);
-		
-		neighborhood[21] = getPixel(image, x-1, y,   z+1);
-		neighborhood[22] = getPixel(image, x,   y,   z+1);
-		neighborhood[23] = getPixel(image, x+1, y,   z+1);
-		
-		neighborhood[24] = getPixel(image, x-1, y+1, z+1);
-		neighborhood[25] = getPixel(image, x,   y+1, z+1);
-		neighborhood[26] = getPixel(image, x+1, y+1, z+1);
-		
-		return neighborhood;
-	} /* end getNeighborhood */
+		final int width = volume.getWidth();
+		final int height = volume.getHeight();
+		final int mask = volume.getNeighbourhood(x, y, z);
+		for( int i = 0; i < 27; i++ )
+		{
+			if( ((mask >> i) & 1) != 0 )
+				enqueue(queues, queued, width, height, 
+						x + i % 3 - 1, y + (i / 3) % 3 - 1, z + i / 9 - 1);
+		}
+	} /* end queueNeighbors */
 	
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Get pixel in 3D image (0 border conditions) 
+	 * Add a point to every candidate queue that does not hold it yet
 	 * 
-	 * @param image 3D image
+	 * @param queues candidate queue of each border type
+	 * @param queued points in each queue
+	 * @param width volume width
+	 * @param height volume height
 	 * @param x x- coordinate
 	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding pixel (0 if out of image)
+	 * @param z z- coordinate (starting at 0)
 	 */
-	private byte getPixel(ImageStack image, int x, int y, int z)
+	private void enqueue(CandidateQueue[] queues, BinaryVolume[] queued, 
+			int width, int height, int x, int y, int z)
 	{
-		if(x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0 && z < this.depth)
-			return ((byte[]) image.getPixels(z + 1))[x + y * this.width];
-		else return 0;
-	} /* end getPixel */
+		final long index = ((long) z * height + y) * width + x;
+		for( int b = 0; b < 6; b++ )
+		{
+			if( !queued[b].get(x, y, z) )
+			{
+				queued[b].set(x, y, z);
+				queues[b].add(index);
+			}
+		}
+	} /* end enqueue */
 	
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Set pixel in 3D image 
+	 * Compute thinning on a binary volume, in place, with several threads.
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @param value pixel value
-	 */
-	private void setPixel(ImageStack image, int x, int y, int z, byte value)
-	{
-		if(x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0 && z < this.depth)
-			((byte[]) image.getPixels(z + 1))[x + y * this.width] = value;
-	} /* end getPixel */
-	
-	/* -----------------------------------------------------------------------*/
-	/**
-	 * North neighborhood (0 border conditions) 
+	 * <p>The volume is split into 8 interleaved subfields by the parity of 
+	 * each point's x, y and z coordinates. Two points of the same subfield 
+	 * are never 26-neighbors, so deleting one cannot change whether the 
+	 * other is deletable, and all the deletable border points of a subfield 
+	 * can be deleted at once without the sequential re-check. Each pass 
+	 * thins one border type of one subfield, with threads taking the 
+	 * subfield's slices in turn.</p>
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding north pixel
-	 */
-	private byte N(ImageStack image, int x, int y, int z)
-	{
-		return getPixel(image, x, y-1, z);
-	} /* end N */
-	
-	/* -----------------------------------------------------------------------*/
-	/**
-	 * South neighborhood (0 border conditions) 
+	 * <p>As in the sequential version, border points, end points and 
+	 * deletable points are found in the volume as it was at the start of 
+	 * the border type's passes, and are only deleted if they are still 
+	 * deletable once the earlier subfields have been thinned. Testing end 
+	 * points against the volume as the subfields thin it would leave 
+	 * spurious branches.</p>
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding south pixel
+	 * <p>Only points that are still simple are deleted, so the skeleton 
+	 * keeps the input's numbers of foreground and background components. 
+	 * It is not always the same, voxel for voxel or in topology, as that of 
+	 * {@link #computeThinImage(BinaryVolume)}, which can lose a foreground 
+	 * component that this keeps.</p>
+	 * 
+	 * @param volume binary volume to thin
 	 */
-	private byte S(ImageStack image, int x, int y, int z)
+	public void computeThinImageParallel(BinaryVolume volume) 
 	{
-		return getPixel(image, x, y+1, z);
-	} /* end S */
+		IJ.showStatus("Computing thin image ...");
+		
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		final long[] deleted = new long[nThreads];
+		
+		int iter = 1;
+		
+		// Loop through the image several times until there is no change.
+		boolean changed = true;
+		while( changed )
+		{
+			changed = false;
+			for( int currentBorder = 1; currentBorder <= 6; currentBorder++ )
+			{
+				IJ.showStatus("Thinning iteration " + iter + " (" + currentBorder +"/6 borders) ...");
+				// candidates are found as at the start of the border pass, 
+				// as computeThinImage() finds them
+				final BinaryVolume snapshot = new BinaryVolume(volume);
+				for( int subfield = 0; subfield < 8; subfield++ )
+				{
+					final AtomicInteger nextSlice = new AtomicInteger(0);
+					SubfieldThread[] subfieldThread = new SubfieldThread[nThreads];
+					for (int thread = 0; thread < nThreads; thread++) 
+					{
+						subfieldThread[thread] = new SubfieldThread(thread, volume, 
+								snapshot, currentBorder, subfield, nextSlice, deleted);
+						subfieldThread[thread].start();
+					}
+					try 
+					{
+						for (int thread = 0; thread < nThreads; thread++) 
+							subfieldThread[thread].join();
+					} 
+					catch (InterruptedException ie) 
+					{
+						IJ.error("A thread was interrupted.");
+					}
+					for (int thread = 0; thread < nThreads; thread++) 
+					{
+						if( deleted[thread] > 0 )
+							changed = true;
+					}
+				}
+			}
+			iter++;
+		}
+		
+		IJ.showStatus("Computed thin image.");
+	} /* end computeThinImageParallel */
 	
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * East neighborhood (0 border conditions) 
+	 * Compute thinning block by block, into a new volume.
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding east pixel
+	 * <p>The stack is split into blocks of blockDepth slices. Each block is 
+	 * read with halo slices on either side, thinned on its own by 
+	 * {@link #computeThinImage(BinaryVolume)} and only its interior slices 
+	 * are kept, so only one block per thread and the packed result are held 
+	 * in memory at a time, and blocks are thinned on all cores. Slices are 
+	 * read one at a time with getPixels(), so the stack can be virtual.</p>
+	 * 
+	 * <p>A block's edges are treated as background, and thinning eats into 
+	 * the halo from there by about one slice per iteration. The interiors 
+	 * are the same as thinning the whole stack at once if the halo is 
+	 * deeper than that damage reaches, which needs a halo somewhat wider 
+	 * than the thickest structure measured along z. A thinner halo can 
+	 * leave breaks or stubs where the blocks meet.</p>
+	 * 
+	 * @param stack 8-bit input stack, with all non-zero pixels as foreground
+	 * @param blockDepth number of slices in each block's interior
+	 * @param halo number of slices to read either side of the interior
+	 * @return skeleton of the stack
 	 */
-	private byte E(ImageStack image, int x, int y, int z)
+	public BinaryVolume computeThinImageTiled(ImageStack stack, int blockDepth, int halo) 
 	{
-		return getPixel(image, x+1, y, z);
-	} /* end E */
+		BinaryVolume skeleton = new BinaryVolume(stack.getWidth(), 
+				stack.getHeight(), stack.getSize());
+		try
+		{
+			thinBlocks(stack, blockDepth, halo, skeleton, null);
+		}
+		catch (IOException e)
+		{
+			// nothing is written to a file
+		}
+		return skeleton;
+	} /* end computeThinImageTiled */
 	
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * West neighborhood (0 border conditions) 
+	 * Compute thinning block by block, as 
+	 * {@link #computeThinImageTiled(ImageStack, int, int)} does, into an 
+	 * 8-bit raw file of width * height * depth bytes with foreground 255 
+	 * and background 0. Each block's interior is memory-mapped and written 
+	 * as soon as it is thinned, so the skeleton does not need to fit in the 
+	 * heap.
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding west pixel
+	 * @param stack 8-bit input stack, with all non-zero pixels as foreground
+	 * @param blockDepth number of slices in each block's interior
+	 * @param halo number of slices to read either side of the interior
+	 * @param file file to write the skeleton to, which is overwritten
+	 * @throws IOException if the file can't be written
 	 */
-	private byte W(ImageStack image, int x, int y, int z)
+	public void computeThinImageTiled(ImageStack stack, int blockDepth, 
+			int halo, File file) throws IOException 
 	{
-		return getPixel(image, x-1, y, z);
-	} /* end W */
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength((long) stack.getWidth() * stack.getHeight() 
+					* stack.getSize());
+			thinBlocks(stack, blockDepth, halo, null, raf.getChannel());
+		}
+		finally
+		{
+			raf.close();
+		}
+	} /* end computeThinImageTiled */
 	
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Up neighborhood (0 border conditions) 
+	 * Thin the blocks of a stack with one BlockThread per processor.
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding up pixel
+	 * @param stack 8-bit input stack
+	 * @param blockDepth number of slices in each block's interior
+	 * @param halo number of slices to read either side of the interior
+	 * @param skeleton volume to copy the interiors into, or null
+	 * @param channel channel of the file to write the interiors to if 
+	 * skeleton is null
+	 * @throws IOException if a block can't be written to the file
 	 */
-	private byte U(ImageStack image, int x, int y, int z)
+	private void thinBlocks(ImageStack stack, int blockDepth, int halo, 
+			BinaryVolume skeleton, FileChannel channel) throws IOException 
 	{
-		return getPixel(image, x, y, z+1);
-	} /* end U */
+		final int depth = stack.getSize();
+		final int nBlocks = (depth + blockDepth - 1) / blockDepth;
+		final int nThreads = Math.min(nBlocks, 
+				Runtime.getRuntime().availableProcessors());
+		final AtomicInteger nextBlock = new AtomicInteger(0);
+		final AtomicInteger blocksDone = new AtomicInteger(0);
+		
+		BlockThread[] blockThread = new BlockThread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) 
+		{
+			blockThread[thread] = new BlockThread(stack, blockDepth, halo, 
+					nBlocks, nextBlock, blocksDone, skeleton, channel);
+			blockThread[thread].start();
+		}
+		try 
+		{
+			for (int thread = 0; thread < nThreads; thread++) 
+				blockThread[thread].join();
+		} 
+		catch (InterruptedException ie) 
+		{
+			IJ.error("A thread was interrupted.");
+		}
+		for (int thread = 0; thread < nThreads; thread++) 
+		{
+			if( blockThread[thread].exception != null )
+				throw blockThread[thread].exception;
+		}
+		IJ.showStatus("Computed thin image.");
+	} /* end thinBlocks */
 	
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Bottom neighborhood (0 border conditions) 
+	 * Write slices z0 to z1 - 1 of a block to a file, through one mapping.
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding bottom pixel
+	 * @param channel channel of a file of width * height * depth bytes
+	 * @param block thinned block
+	 * @param z0 first slice to write
+	 * @param z1 slice after the last slice to write
+	 * @param offset stack slice number of the block's first slice
+	 * @throws IOException
 	 */
-	private byte B(ImageStack image, int x, int y, int z)
+	private static void writeBlock(FileChannel channel, BinaryVolume block, 
+			int z0, int z1, int offset) throws IOException 
 	{
-		return getPixel(image, x, y, z-1);
-	} /* end N */
+		final int wh = block.getWidth() * block.getHeight();
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 
+				(long) z0 * wh, (long) (z1 - z0) * wh);
+		byte[] pixels = new byte[wh];
+		for (int z = z0; z < z1; z++)
+		{
+			block.getPixels(z - offset, 255, pixels);
+			buffer.put(pixels);
+		}
+		buffer.force();
+	} /* end writeBlock */
+	
 	
 	/* -----------------------------------------------------------------------*/
 	/**
@@ -1201,4 +1409,248 @@ public class Skeletonize3D implements PlugInFilter
 	} /* end showAbout */
 	/* -----------------------------------------------------------------------*/
 
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Growable list of candidate points, each stored as its index
+	 * (z * height + y) * width + x so that sorting puts them in raster order.
+	 */
+	private static class CandidateQueue
+	{
+		private long[] items = new long[1024];
+		
+		private int size = 0;
+		
+		void add(long item)
+		{
+			if( size == items.length )
+			{
+				long[] bigger = new long[size * 2];
+				System.arraycopy(items, 0, bigger, 0, size);
+				items = bigger;
+			}
+			items[size++] = item;
+		}
+		
+		long get(int i)
+		{
+			return items[i];
+		}
+		
+		int size()
+		{
+			return size;
+		}
+		
+		void sort()
+		{
+			Arrays.sort(items, 0, size);
+		}
+		
+		void clear()
+		{
+			size = 0;
+		}
+	} /* end CandidateQueue */
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Deletes the deletable border points of one border type in one 
+	 * subfield. Threads share the subfield's slices, so each thread only 
+	 * writes to its own slices, and only reads slices of the other z parity,
+	 * which no thread writes to during the pass, and the snapshot, which
+	 * is not written to at all.
+	 */
+	class SubfieldThread extends Thread 
+	{
+		final int thread, border, sx, sy, sz;
+		
+		final BinaryVolume volume, snapshot;
+		
+		final AtomicInteger nextSlice;
+		
+		final long[] deleted;
+		
+		public SubfieldThread(int thread, BinaryVolume volume, 
+				BinaryVolume snapshot, int border, int subfield, 
+				AtomicInteger nextSlice, long[] deleted) 
+		{
+			this.thread = thread;
+			this.volume = volume;
+			this.snapshot = snapshot;
+			this.border = border;
+			this.sx = subfield & 1;
+			this.sy = (subfield >> 1) & 1;
+			this.sz = (subfield >> 2) & 1;
+			this.nextSlice = nextSlice;
+			this.deleted = deleted;
+		}
+		
+		public void run() 
+		{
+			final int height = this.volume.getHeight();
+			final int depth = this.volume.getDepth();
+			final int wordsPerRow = this.volume.getWordsPerRow();
+			// the subfield's columns
+			final long columns = this.sx == 0 ? 0x5555555555555555L : 0xAAAAAAAAAAAAAAAAL;
+			long nDeleted = 0;
+			int z;
+			while( (z = 2 * this.nextSlice.getAndIncrement() + this.sz) < depth )
+			{
+				// points of this subfield are the same in both volumes
+				final long[] slice = this.snapshot.getSlice(z);
+				final long[] up = z + 1 < depth ? this.snapshot.getSlice(z + 1) : null;
+				final long[] down = z > 0 ? this.snapshot.getSlice(z - 1) : null;
+				for( int y = this.sy; y < height; y += 2 )
+				{
+					final int row = this.volume.getRowWord(y);
+					for( int word = 0; word < wordsPerRow; word++ )
+					{
+						final long points = slice[row + word] & columns;
+						if( points == 0 )
+							continue;
+						// neighbors on the side of the current border type
+						long side;
+						switch( this.border )
+						{
+						case 1: // North
+							side = slice[row - wordsPerRow + word];
+							break;
+						case 2: // South
+							side = slice[row + wordsPerRow + word];
+							break;
+						case 3: // East
+							side = slice[row + word] >>> 1;
+							if( word + 1 < wordsPerRow )
+								side |= slice[row + word + 1] << 63;
+							break;
+						case 4: // West
+							side = slice[row + word] << 1;
+							if( word > 0 )
+								side |= slice[row + word - 1] >>> 63;
+							break;
+						case 5: // Up
+							side = up == null ? 0 : up[row + word];
+							break;
+						default: // Bottom
+							side = down == null ? 0 : down[row + word];
+							break;
+						}
+						// border points of the current type
+						long borderPoints = points & ~side;
+						while( borderPoints != 0 )
+						{
+							final int bit = Long.numberOfTrailingZeros(borderPoints);
+							borderPoints &= borderPoints - 1;
+							final int x = (word << 6) + bit;
+							// keep end points, and points whose deletion would 
+							// change the topology, at the start of the pass...
+							int key = SimplePointLUT.getKey(this.snapshot.getNeighbourhood(x, y, z));
+							if( SimplePointLUT.getNumberOfNeighbors(key) == 1 
+									|| !SimplePointLUT.isEulerInvariant(key) 
+									|| !SimplePointLUT.isSimplePoint(key) )
+								continue;
+							// ...or now
+							key = SimplePointLUT.getKey(this.volume.getNeighbourhood(x, y, z));
+							if( !SimplePointLUT.isEulerInvariant(key) 
+									|| !SimplePointLUT.isSimplePoint(key) )
+								continue;
+							this.volume.clear(x, y, z);
+							nDeleted++;
+						}
+					}
+				}
+			}
+			this.deleted[this.thread] = nDeleted;
+		}
+	} /* end SubfieldThread */
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Thins blocks of slices until there are none left. The input stack is 
+	 * only read, one slice at a time and synchronized on the stack, as 
+	 * virtual stacks load slices from disk. Blocks' interiors don't overlap, 
+	 * so threads write to different slices of the output.
+	 */
+	class BlockThread extends Thread 
+	{
+		final ImageStack stack;
+		
+		final int blockDepth, halo, nBlocks;
+		
+		final AtomicInteger nextBlock, blocksDone;
+		
+		final BinaryVolume skeleton;
+		
+		final FileChannel channel;
+		
+		/** exception that stopped the thread, if any */
+		IOException exception = null;
+		
+		public BlockThread(ImageStack stack, int blockDepth, int halo, 
+				int nBlocks, AtomicInteger nextBlock, AtomicInteger blocksDone, 
+				BinaryVolume skeleton, FileChannel channel) 
+		{
+			this.stack = stack;
+			this.blockDepth = blockDepth;
+			this.halo = halo;
+			this.nBlocks = nBlocks;
+			this.nextBlock = nextBlock;
+			this.blocksDone = blocksDone;
+			this.skeleton = skeleton;
+			this.channel = channel;
+		}
+		
+		public void run() 
+		{
+			final int width = this.stack.getWidth();
+			final int height = this.stack.getHeight();
+			final int depth = this.stack.getSize();
+			int b;
+			while( (b = this.nextBlock.getAndIncrement()) < this.nBlocks )
+			{
+				// interior and halo slices of the block
+				final int z0 = b * this.blockDepth;
+				final int z1 = Math.min(depth, z0 + this.blockDepth);
+				final int start = Math.max(0, z0 - this.halo);
+				final int end = Math.min(depth, z1 + this.halo);
+				
+				BinaryVolume block = new BinaryVolume(width, height, end - start);
+				for( int z = start; z < end; z++ )
+				{
+					byte[] pixels;
+					synchronized( this.stack )
+					{
+						pixels = (byte[]) this.stack.getPixels(z + 1);
+					}
+					block.setPixels(z - start, pixels);
+				}
+				
+				computeThinImage(block);
+				
+				if( this.skeleton != null )
+				{
+					for( int z = z0; z < z1; z++ )
+					{
+						final long[] slice = block.getSlice(z - start);
+						System.arraycopy(slice, 0, this.skeleton.getSlice(z), 0, 
+								slice.length);
+					}
+				}
+				else
+				{
+					try 
+					{
+						writeBlock(this.channel, block, z0, z1, start);
+					} 
+					catch (IOException e) 
+					{
+						this.exception = e;
+						return;
+					}
+				}
+				IJ.showProgress(this.blocksDone.incrementAndGet(), this.nBlocks);
+			}
+		}
+	} /* end BlockThread */
+
 } /* end Skeletonize3D_ */
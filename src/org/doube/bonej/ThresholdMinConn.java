@@ -31,6 +31,12 @@ public class ThresholdMinConn implements PlugIn {
 	 */
 	private boolean thresholdOnly = false;
 
+	/**
+	 * Get the connectivity of every test threshold in one sweep of the raw
+	 * thresholded subvolume, without purifying, eroding and dilating
+	 */
+	private boolean fastSweep = false;
+
 	public void run(String arg) {
 		if (!ImageCheck.checkIJVersion())
 			return;
@@ -44,6 +50,20 @@ public class ThresholdMinConn implements PlugIn {
 		if (!showDialog()) {
 			return;
 		}
+		if (!thresholdOnly && fastSweep) {
+			if (imp.getBitDepth() != 8 && imp.getBitDepth() != 16) {
+				IJ.error("Fast sweep requires an 8- or 16-bit image");
+				return;
+			}
+			// the sweep numbers every voxel vertex of the subvolume
+			final long w = Math.min(imp.getWidth(), subVolume) + 1;
+			final long h = Math.min(imp.getHeight(), subVolume) + 1;
+			final long d = Math.min(imp.getStackSize(), subVolume) + 1;
+			if (w * h * d > Integer.MAX_VALUE) {
+				IJ.error("Subvolume is too large for a fast sweep");
+				return;
+			}
+		}
 
 		if (!ic.isVoxelIsotropic(imp, 0.05)) {
 			if (!Interpreter.isBatchMode())
@@ -212,6 +232,8 @@ public class ThresholdMinConn implements PlugIn {
 	 * @return array containing connectivity resulting from each test threshold
 	 */
 	private double[] getConns(ImagePlus imp2, int[] testThreshold, int subVolume) {
+		if (fastSweep)
+			return getSweepConns(imp2, testThreshold, subVolume);
 		int nTests = testThreshold.length;
 		double[] conns = new double[nTests];
 
@@ -267,10 +289,10 @@ public class ThresholdMinConn implements PlugIn {
 			Purify p = new Purify();
 			Erode e = new Erode();
 			Dilate d = new Dilate();
-			Object[] result = p.purify(imp3, 4, false);
+			Object[] result = p.purifyWithLabelStore(imp3, 4, false);
 			replaceImage(imp3, (ImagePlus) result[1]);
 			e.erode(imp3, 255).show();
-			result = p.purify(imp3, 4, false);
+			result = p.purifyWithLabelStore(imp3, 4, false);
 			replaceImage(imp3, (ImagePlus) result[1]);
 			d.dilate(imp3, 255).show();
 
@@ -286,6 +308,39 @@ public class ThresholdMinConn implements PlugIn {
 		return conns;
 	}
 
+	/**
+	 * Calculate connectivity of the raw thresholded subvolume for several
+	 * threshold values, in a single sweep through the subvolume's grey values
+	 * 
+	 * @param imp2
+	 * @param testThreshold
+	 *            array of test threshold values (from getTestThreshold)
+	 * @return array containing connectivity resulting from each test threshold
+	 */
+	private double[] getSweepConns(ImagePlus imp2, int[] testThreshold,
+			int subVolume) {
+		ImageStack stack = imp2.getImageStack();
+		final int width = (int) Math.min(imp2.getWidth(), subVolume);
+		final int height = (int) Math.min(imp2.getHeight(), subVolume);
+		final int depth = (int) Math.min(imp2.getStackSize(), subVolume);
+		ImageStack stack2 = new ImageStack(width, height);
+		for (int z = 1; z <= depth; z++) {
+			ImageProcessor ip = stack.getProcessor(z);
+			ip.setRoi(0, 0, width, height);
+			stack2.addSlice(stack.getSliceLabel(z), ip.crop());
+		}
+		ImagePlus imp3 = new ImagePlus("Subvolume", stack2);
+		imp3.setCalibration(imp2.getCalibration());
+
+		Connectivity con = new Connectivity();
+		double[] deltaChis = con.getDeltaChis(imp3, testThreshold);
+		final int nTests = testThreshold.length;
+		double[] conns = new double[nTests];
+		for (int i = 0; i < nTests; i++)
+			conns[i] = con.getConnectivity(deltaChis[i]);
+		return conns;
+	}
+
 	/**
 	 * Replace the image in imp with imp2
 	 * 
@@ -352,6 +407,7 @@ public class ThresholdMinConn implements PlugIn {
 		gd.addNumericField("Tests", testCount, 0);
 		gd.addNumericField("Range", testRange, 2);
 		gd.addNumericField("Subvolume Size", subVolume, 0);
+		gd.addCheckbox("Fast_sweep (no purify, erode or dilate)", fastSweep);
 		gd.showDialog();
 		if (gd.wasCanceled()) {
 			return false;
@@ -362,6 +418,7 @@ public class ThresholdMinConn implements PlugIn {
 			testCount = (int) Math.floor(gd.getNextNumber());
 			testRange = gd.getNextNumber();
 			subVolume = (int) Math.floor(gd.getNextNumber());
+			fastSweep = gd.getNextBoolean();
 			return true;
 		}
 	}
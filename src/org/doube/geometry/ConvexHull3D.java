@@ -0,0 +1,386 @@
+package org.doube.geometry;
+
+/**
+ * ConvexHull3D Copyright 2026 agent
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * <p>
+ * 3D convex hull by QuickHull. Starting from a tetrahedron of extreme points,
+ * each face keeps the set of points outside it; the farthest of these is
+ * added to the hull by replacing all the faces it can see with a fan of new
+ * faces around their horizon, until no face has points outside it.
+ * </p>
+ * <p>
+ * Points are passed as a packed array {x0, y0, z0, x1, y1, z1, ...}. The hull
+ * cannot be built for fewer than 4 points, or for points that are all on a
+ * line or a plane, and a RuntimeException is thrown in those cases or if
+ * rounding error leaves the hull inconsistent, so calls should be enclosed in
+ * a try{} catch(RuntimeException re){} that falls back to using all the
+ * points.
+ * </p>
+ *
+ * @author agent
+ * @see <p>
+ *      Barber CB, Dobkin DP, Huhdanpaa H (1996) The Quickhull algorithm for
+ *      convex hulls. ACM Trans Math Softw 22: 469-483. <a
+ *      href="http://dx.doi.org/10.1145/235815.235821"
+ *      >doi:10.1145/235815.235821</a>
+ *      </p>
+ */
+public class ConvexHull3D {
+
+	private static final double DOUBLE_PREC = 2.220446049250313E-16;
+
+	private final double[] points;
+
+	private final int nPoints;
+
+	/** distance within which a point is considered to lie on a face */
+	private final double tolerance;
+
+	/** maps each directed edge of a live face to that face */
+	private final HashMap<Long, Face> edges = new HashMap<Long, Face>();
+
+	private final ArrayList<Face> faces = new ArrayList<Face>();
+
+	/** counter used to mark the faces visited while finding the horizon */
+	private int visit = 0;
+
+	private ConvexHull3D(double[] points) {
+		this.points = points;
+		this.nPoints = points.length / 3;
+		double maxX = 0, maxY = 0, maxZ = 0;
+		for (int i = 0; i < nPoints; i++) {
+			maxX = Math.max(maxX, Math.abs(points[i * 3]));
+			maxY = Math.max(maxY, Math.abs(points[i * 3 + 1]));
+			maxZ = Math.max(maxZ, Math.abs(points[i * 3 + 2]));
+		}
+		this.tolerance = 3 * DOUBLE_PREC * (maxX + maxY + maxZ);
+	}
+
+	/**
+	 * Find the points that are vertices of the convex hull
+	 *
+	 * @param points
+	 *            packed x, y, z coordinates
+	 * @return indices of the hull vertices, in ascending order
+	 * @throws IllegalArgumentException
+	 *             if the points are too few or don't span 3 dimensions
+	 * @throws IllegalStateException
+	 *             if the hull became inconsistent through rounding error
+	 */
+	public static int[] getHullVertices(double[] points) {
+		ConvexHull3D hull = new ConvexHull3D(points);
+		hull.build();
+		boolean[] isVertex = new boolean[hull.nPoints];
+		int nVertices = 0;
+		for (Face f : hull.faces) {
+			if (!f.alive)
+				continue;
+			for (int v = 0; v < 3; v++) {
+				if (!isVertex[f.v[v]]) {
+					isVertex[f.v[v]] = true;
+					nVertices++;
+				}
+			}
+		}
+		int[] vertices = new int[nVertices];
+		int n = 0;
+		for (int i = 0; i < hull.nPoints; i++)
+			if (isVertex[i])
+				vertices[n++] = i;
+		return vertices;
+	}
+
+	private void build() {
+		if (nPoints < 4)
+			throw new IllegalArgumentException("Need at least 4 points");
+		final int[] s = getInitialSimplex();
+		Face[] initial = new Face[4];
+		initial[0] = newFace(s[0], s[1], s[2], s[3]);
+		initial[1] = newFace(s[0], s[1], s[3], s[2]);
+		initial[2] = newFace(s[0], s[2], s[3], s[1]);
+		initial[3] = newFace(s[1], s[2], s[3], s[0]);
+		for (int f = 0; f < 4; f++)
+			addFace(initial[f]);
+
+		// give each point to the first face it is outside of
+		for (int i = 0; i < nPoints; i++) {
+			if (i == s[0] || i == s[1] || i == s[2] || i == s[3])
+				continue;
+			for (int f = 0; f < 4; f++) {
+				if (initial[f].distance(i) > tolerance) {
+					initial[f].addOutside(i);
+					break;
+				}
+			}
+		}
+
+		ArrayList<Face> pending = new ArrayList<Face>();
+		for (int f = 0; f < 4; f++)
+			pending.add(initial[f]);
+		ArrayList<Face> visible = new ArrayList<Face>();
+		ArrayList<int[]> horizon = new ArrayList<int[]>();
+		ArrayList<Face> created = new ArrayList<Face>();
+		while (!pending.isEmpty()) {
+			final Face face = pending.remove(pending.size() - 1);
+			if (!face.alive || face.nOutside == 0)
+				continue;
+
+			// the farthest outside point is the next hull vertex
+			int eye = -1;
+			double maxDist = 0;
+			for (int k = 0; k < face.nOutside; k++) {
+				final double dist = face.distance(face.outside[k]);
+				if (dist > maxDist) {
+					maxDist = dist;
+					eye = face.outside[k];
+				}
+			}
+
+			// find the faces the eye can see, and the edges around them
+			visible.clear();
+			horizon.clear();
+			visit++;
+			face.mark = visit;
+			visible.add(face);
+			for (int k = 0; k < visible.size(); k++) {
+				final Face f = visible.get(k);
+				for (int e = 0; e < 3; e++) {
+					final int a = f.v[e];
+					final int b = f.v[(e + 1) % 3];
+					final Face g = edges.get(key(b, a));
+					if (g == null)
+						throw new IllegalStateException("Hull is not closed");
+					if (g.mark == visit)
+						continue;
+					if (g.distance(eye) > tolerance) {
+						g.mark = visit;
+						visible.add(g);
+					} else {
+						horizon.add(new int[] { a, b });
+					}
+				}
+			}
+
+			// replace the visible faces with a cone from the horizon to the eye
+			for (Face f : visible) {
+				f.alive = false;
+				for (int e = 0; e < 3; e++)
+					edges.remove(key(f.v[e], f.v[(e + 1) % 3]));
+			}
+			created.clear();
+			for (int[] edge : horizon) {
+				Face f = new Face(edge[0], edge[1], eye);
+				addFace(f);
+				created.add(f);
+			}
+			for (Face f : visible) {
+				for (int k = 0; k < f.nOutside; k++) {
+					final int i = f.outside[k];
+					if (i == eye)
+						continue;
+					for (Face c : created) {
+						if (c.distance(i) > tolerance) {
+							c.addOutside(i);
+							break;
+						}
+					}
+				}
+				f.outside = null;
+				f.nOutside = 0;
+			}
+			pending.addAll(created);
+		}
+	}
+
+	/**
+	 * Find 4 extreme points that span a tetrahedron
+	 *
+	 * @return indices of the 4 points
+	 */
+	private int[] getInitialSimplex() {
+		// extreme points on each axis
+		int[] min = new int[3];
+		int[] max = new int[3];
+		for (int i = 1; i < nPoints; i++) {
+			for (int a = 0; a < 3; a++) {
+				if (points[i * 3 + a] < points[min[a] * 3 + a])
+					min[a] = i;
+				if (points[i * 3 + a] > points[max[a] * 3 + a])
+					max[a] = i;
+			}
+		}
+		int axis = 0;
+		double extent = 0;
+		for (int a = 0; a < 3; a++) {
+			final double e = points[max[a] * 3 + a] - points[min[a] * 3 + a];
+			if (e > extent) {
+				extent = e;
+				axis = a;
+			}
+		}
+		if (extent <= tolerance)
+			throw new IllegalArgumentException("Points are coincident");
+		final int v0 = min[axis];
+		final int v1 = max[axis];
+
+		// farthest point from the line v0-v1
+		double ux = x(v1) - x(v0), uy = y(v1) - y(v0), uz = z(v1) - z(v0);
+		final double uLength = Math.sqrt(ux * ux + uy * uy + uz * uz);
+		ux /= uLength;
+		uy /= uLength;
+		uz /= uLength;
+		int v2 = -1;
+		double maxDist = tolerance;
+		for (int i = 0; i < nPoints; i++) {
+			final double dx = x(i) - x(v0), dy = y(i) - y(v0), dz = z(i)
+					- z(v0);
+			final double cx = dy * uz - dz * uy;
+			final double cy = dz * ux - dx * uz;
+			final double cz = dx * uy - dy * ux;
+			final double dist = Math.sqrt(cx * cx + cy * cy + cz * cz);
+			if (dist > maxDist) {
+				maxDist = dist;
+				v2 = i;
+			}
+		}
+		if (v2 < 0)
+			throw new IllegalArgumentException("Points are collinear");
+
+		// farthest point from the plane v0-v1-v2
+		final double ax = x(v1) - x(v0), ay = y(v1) - y(v0), az = z(v1)
+				- z(v0);
+		final double bx = x(v2) - x(v0), by = y(v2) - y(v0), bz = z(v2)
+				- z(v0);
+		double nx = ay * bz - az * by;
+		double ny = az * bx - ax * bz;
+		double nz = ax * by - ay * bx;
+		final double nLength = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		nx /= nLength;
+		ny /= nLength;
+		nz /= nLength;
+		int v3 = -1;
+		maxDist = tolerance;
+		for (int i = 0; i < nPoints; i++) {
+			final double dist = Math.abs((x(i) - x(v0)) * nx + (y(i) - y(v0))
+					* ny + (z(i) - z(v0)) * nz);
+			if (dist > maxDist) {
+				maxDist = dist;
+				v3 = i;
+			}
+		}
+		if (v3 < 0)
+			throw new IllegalArgumentException("Points are coplanar");
+		int[] simplex = { v0, v1, v2, v3 };
+		return simplex;
+	}
+
+	/**
+	 * Make a face of the initial tetrahedron, wound so that its normal
+	 * points away from the opposite vertex
+	 */
+	private Face newFace(int a, int b, int c, int opposite) {
+		Face f = new Face(a, b, c);
+		if (f.distance(opposite) > 0)
+			f = new Face(a, c, b);
+		return f;
+	}
+
+	private void addFace(Face f) {
+		if (!(f.nx * f.nx + f.ny * f.ny + f.nz * f.nz > 0))
+			throw new IllegalStateException("Degenerate hull face");
+		for (int e = 0; e < 3; e++) {
+			final Long k = key(f.v[e], f.v[(e + 1) % 3]);
+			if (edges.containsKey(k))
+				throw new IllegalStateException("Hull edge is not manifold");
+			edges.put(k, f);
+		}
+		faces.add(f);
+	}
+
+	private Long key(int a, int b) {
+		return Long.valueOf((long) a * nPoints + b);
+	}
+
+	private double x(int i) {
+		return points[i * 3];
+	}
+
+	private double y(int i) {
+		return points[i * 3 + 1];
+	}
+
+	private double z(int i) {
+		return points[i * 3 + 2];
+	}
+
+	/**
+	 * Triangular face with vertices wound anticlockwise when viewed from
+	 * outside the hull
+	 */
+	private class Face {
+		final int[] v;
+
+		/** unit outward normal and distance of the plane from the origin */
+		final double nx, ny, nz, offset;
+
+		int[] outside = new int[4];
+
+		int nOutside = 0;
+
+		boolean alive = true;
+
+		int mark = 0;
+
+		Face(int a, int b, int c) {
+			this.v = new int[] { a, b, c };
+			final double ax = x(b) - x(a), ay = y(b) - y(a), az = z(b) - z(a);
+			final double bx = x(c) - x(a), by = y(c) - y(a), bz = z(c) - z(a);
+			double cx = ay * bz - az * by;
+			double cy = az * bx - ax * bz;
+			double cz = ax * by - ay * bx;
+			final double length = Math.sqrt(cx * cx + cy * cy + cz * cz);
+			if (length > 0) {
+				cx /= length;
+				cy /= length;
+				cz /= length;
+			}
+			this.nx = cx;
+			this.ny = cy;
+			this.nz = cz;
+			this.offset = cx * x(a) + cy * y(a) + cz * z(a);
+		}
+
+		/** signed distance of point i above the face's plane */
+		double distance(int i) {
+			return nx * x(i) + ny * y(i) + nz * z(i) - offset;
+		}
+
+		void addOutside(int i) {
+			if (nOutside == outside.length) {
+				int[] grown = new int[nOutside * 2];
+				System.arraycopy(outside, 0, grown, 0, nOutside);
+				outside = grown;
+			}
+			outside[nOutside++] = i;
+		}
+	}
+}
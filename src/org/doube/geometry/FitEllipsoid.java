@@ -211,6 +211,154 @@ public class FitEllipsoid {
 		return ellipsoid;
 	}
 
+	/** Length of the result array filled by the packed yuryPetrov() */
+	public static final int RESULT_LENGTH = 24;
+
+	/** Length of the workspace used by the packed yuryPetrov() */
+	public static final int WORKSPACE_LENGTH = 108;
+
+	/**
+	 * <p>
+	 * Yury Petrov's ellipsoid fit to packed coordinates, without JAMA. The
+	 * normal equations are summed straight from the points and solved in
+	 * place in a caller-supplied workspace, so a thread fitting many
+	 * ellipsoids allocates nothing per fit.
+	 * </p>
+	 * <p>
+	 * The result holds the centre in elements 0-2, the radii in 3-5, the
+	 * row-major 3x3 matrix whose columns are the unit vectors of the
+	 * corresponding axes in 6-14 and the 9 variables of the ellipsoid
+	 * equation in 15-23. Radii are in descending order.
+	 * </p>
+	 *
+	 * @param points
+	 *            x, y and z coordinates of each point, packed
+	 * @param workspace
+	 *            array of at least WORKSPACE_LENGTH, overwritten
+	 * @param result
+	 *            array of at least RESULT_LENGTH to write the ellipsoid to
+	 * @return false if there are too few points or the equations are
+	 *         singular, in which case result is undefined
+	 */
+	public static boolean yuryPetrov(float[] points, double[] workspace,
+			double[] result) {
+		final int nPoints = points.length / 3;
+		if (nPoints < 9)
+			return false;
+
+		// normal equations D'D v = D'1: D'D in 0-80, D'1 in 81-89
+		final double[] n = workspace;
+		final int b = 81;
+		final int row = 99;
+		for (int i = 0; i < 90; i++)
+			n[i] = 0;
+		for (int p = 0; p < nPoints; p++) {
+			final double x = points[p * 3];
+			final double y = points[p * 3 + 1];
+			final double z = points[p * 3 + 2];
+			n[row] = x * x;
+			n[row + 1] = y * y;
+			n[row + 2] = z * z;
+			n[row + 3] = 2 * x * y;
+			n[row + 4] = 2 * x * z;
+			n[row + 5] = 2 * y * z;
+			n[row + 6] = 2 * x;
+			n[row + 7] = 2 * y;
+			n[row + 8] = 2 * z;
+			for (int i = 0; i < 9; i++) {
+				final double di = n[row + i];
+				n[b + i] += di;
+				for (int j = i; j < 9; j++)
+					n[i * 9 + j] += di * n[row + j];
+			}
+		}
+		for (int i = 1; i < 9; i++)
+			for (int j = 0; j < i; j++)
+				n[i * 9 + j] = n[j * 9 + i];
+
+		// Gaussian elimination with partial pivoting
+		for (int k = 0; k < 9; k++) {
+			int pivot = k;
+			double max = Math.abs(n[k * 9 + k]);
+			for (int i = k + 1; i < 9; i++) {
+				final double a = Math.abs(n[i * 9 + k]);
+				if (a > max) {
+					max = a;
+					pivot = i;
+				}
+			}
+			if (max == 0)
+				return false;
+			if (pivot != k) {
+				for (int j = k; j < 9; j++) {
+					final double t = n[k * 9 + j];
+					n[k * 9 + j] = n[pivot * 9 + j];
+					n[pivot * 9 + j] = t;
+				}
+				final double t = n[b + k];
+				n[b + k] = n[b + pivot];
+				n[b + pivot] = t;
+			}
+			final double nkk = n[k * 9 + k];
+			for (int i = k + 1; i < 9; i++) {
+				final double f = n[i * 9 + k] / nkk;
+				if (f == 0)
+					continue;
+				for (int j = k + 1; j < 9; j++)
+					n[i * 9 + j] -= f * n[k * 9 + j];
+				n[b + i] -= f * n[b + k];
+			}
+		}
+		final int v = 15;
+		for (int i = 8; i >= 0; i--) {
+			double sum = n[b + i];
+			for (int j = i + 1; j < 9; j++)
+				sum -= n[i * 9 + j] * result[v + j];
+			result[v + i] = sum / n[i * 9 + i];
+		}
+
+		// centre C = -A^-1 (G, H, I), A being the quadratic part
+		final double a00 = result[v], a11 = result[v + 1], a22 = result[v + 2];
+		final double a01 = result[v + 3], a02 = result[v + 4], a12 = result[v + 5];
+		final double g = result[v + 6], h = result[v + 7], k = result[v + 8];
+		final double c00 = a11 * a22 - a12 * a12;
+		final double c01 = a02 * a12 - a01 * a22;
+		final double c02 = a01 * a12 - a02 * a11;
+		final double det = a00 * c00 + a01 * c01 + a02 * c02;
+		if (det == 0)
+			return false;
+		final double c11 = a00 * a22 - a02 * a02;
+		final double c12 = a01 * a02 - a00 * a12;
+		final double c22 = a00 * a11 - a01 * a01;
+		final double cx = -(c00 * g + c01 * h + c02 * k) / det;
+		final double cy = -(c01 * g + c11 * h + c12 * k) / det;
+		final double cz = -(c02 * g + c12 * h + c22 * k) / det;
+		result[0] = cx;
+		result[1] = cy;
+		result[2] = cz;
+
+		// translating to the centre leaves A and sets the constant to r33
+		final double r33 = cx * (a00 * cx + a01 * cy + a02 * cz) + cy
+				* (a01 * cx + a11 * cy + a12 * cz) + cz
+				* (a02 * cx + a12 * cy + a22 * cz) + 2
+				* (cx * g + cy * h + cz * k) - 1;
+		final int m = 90;
+		final double scale = -1 / r33;
+		n[m] = a00 * scale;
+		n[m + 1] = a01 * scale;
+		n[m + 2] = a02 * scale;
+		n[m + 3] = a01 * scale;
+		n[m + 4] = a11 * scale;
+		n[m + 5] = a12 * scale;
+		n[m + 6] = a02 * scale;
+		n[m + 7] = a12 * scale;
+		n[m + 8] = a22 * scale;
+		SymmetricEigen3.solve(n, m, result, 3, result, 6);
+		for (int i = 3; i < 6; i++)
+			result[i] = Math.sqrt(1 / result[i]);
+		return true;
+	}
+
 	/**
 	 * Return points on an ellipsoid with optional noise. Point density is not
 	 * uniform, becoming more dense at the poles.
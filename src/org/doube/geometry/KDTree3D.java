@@ -0,0 +1,473 @@
+package org.doube.geometry;
+
+/**
+ * KDTree3D Copyright 2026 agent
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * <p>
+ * kd-tree over a set of items in 3D, each of which has a point, such as a
+ * particle's centroid, and optionally an axis-aligned bounding box. Items are
+ * split at the median point along the axis of greatest spread until at most
+ * LEAF_SIZE items are left in a node. Each node records the bounds of its
+ * items' points and of their boxes, so that whole subtrees can be skipped
+ * during k-nearest-neighbour, radius and box gap queries.
+ * </p>
+ * <p>
+ * Points are passed packed as {x0, y0, z0, x1, y1, z1, ...} and boxes as {x
+ * min, x max, y min, y max, z min, z max} for each item. Items are referred to
+ * by their index in these arrays. Once built, the tree is read-only and may
+ * be queried from many threads at once.
+ * </p>
+ *
+ * @author agent
+ */
+public class KDTree3D {
+
+	/** Most items in a leaf node */
+	private static final int LEAF_SIZE = 8;
+
+	private final double[] points;
+
+	private final double[] boxes;
+
+	private final int nItems;
+
+	/** Items in tree order; each node holds a contiguous range */
+	private final int[] items;
+
+	/** Points and boxes copied into tree order, so leaves are contiguous */
+	private final double[] sortedPoints, sortedBoxes;
+
+	private int nNodes;
+
+	/** Range of items in each node, start inclusive and end exclusive */
+	private final int[] start, end;
+
+	/** Child nodes, -1 for leaves */
+	private final int[] left, right;
+
+	/** Bounds of each node's points, 6 per node */
+	private final double[] pointBounds;
+
+	/** Bounds of each node's boxes, 6 per node; null if there are no boxes */
+	private final double[] boxBounds;
+
+	/**
+	 * Build a tree
+	 *
+	 * @param points
+	 *            packed x, y, z coordinates of each item
+	 * @param boxes
+	 *            packed x, y and z minima and maxima of each item's bounding
+	 *            box, or null
+	 */
+	public KDTree3D(double[] points, double[] boxes) {
+		this.points = points;
+		this.boxes = boxes;
+		this.nItems = points.length / 3;
+		if (boxes != null && boxes.length / 6 != nItems)
+			throw new IllegalArgumentException("Need one box per point");
+		this.items = new int[nItems];
+		for (int i = 0; i < nItems; i++)
+			items[i] = i;
+		// leaves hold at least LEAF_SIZE / 2 items
+		final int maxNodes = 2 * (nItems / (LEAF_SIZE / 2) + 1);
+		this.start = new int[maxNodes];
+		this.end = new int[maxNodes];
+		this.left = new int[maxNodes];
+		this.right = new int[maxNodes];
+		this.pointBounds = new double[6 * maxNodes];
+		this.boxBounds = boxes == null ? null : new double[6 * maxNodes];
+		if (nItems > 0)
+			build(0, nItems);
+		this.sortedPoints = new double[3 * nItems];
+		this.sortedBoxes = boxes == null ? null : new double[6 * nItems];
+		for (int n = 0; n < nItems; n++) {
+			System.arraycopy(points, 3 * items[n], sortedPoints, 3 * n, 3);
+			if (boxes != null)
+				System.arraycopy(boxes, 6 * items[n], sortedBoxes, 6 * n, 6);
+		}
+	}
+
+	/**
+	 * @return number of items in the tree
+	 */
+	public int getNItems() {
+		return nItems;
+	}
+
+	/**
+	 * Build the subtree holding items[from] to items[to - 1]
+	 *
+	 * @return index of the subtree's root node
+	 */
+	private int build(int from, int to) {
+		final int node = nNodes++;
+		start[node] = from;
+		end[node] = to;
+		left[node] = -1;
+		right[node] = -1;
+		setBounds(node, from, to);
+		if (to - from <= LEAF_SIZE)
+			return node;
+		// split at the median of the axis of greatest spread
+		final int b = 6 * node;
+		int axis = 0;
+		double spread = pointBounds[b + 1] - pointBounds[b];
+		for (int a = 1; a < 3; a++) {
+			final double s = pointBounds[b + 2 * a + 1] - pointBounds[b + 2 * a];
+			if (s > spread) {
+				spread = s;
+				axis = a;
+			}
+		}
+		final int median = (from + to) / 2;
+		select(from, to, median, axis);
+		final int l = build(from, median);
+		final int r = build(median, to);
+		left[node] = l;
+		right[node] = r;
+		return node;
+	}
+
+	/**
+	 * Record the bounds of the points and boxes of items[from] to items[to -
+	 * 1] for node
+	 */
+	private void setBounds(int node, int from, int to) {
+		final int b = 6 * node;
+		for (int a = 0; a < 3; a++) {
+			pointBounds[b + 2 * a] = Double.POSITIVE_INFINITY;
+			pointBounds[b + 2 * a + 1] = Double.NEGATIVE_INFINITY;
+			if (boxBounds != null) {
+				boxBounds[b + 2 * a] = Double.POSITIVE_INFINITY;
+				boxBounds[b + 2 * a + 1] = Double.NEGATIVE_INFINITY;
+			}
+		}
+		for (int n = from; n < to; n++) {
+			final int i = items[n];
+			for (int a = 0; a < 3; a++) {
+				final double p = points[3 * i + a];
+				pointBounds[b + 2 * a] = Math.min(pointBounds[b + 2 * a], p);
+				pointBounds[b + 2 * a + 1] = Math.max(
+						pointBounds[b + 2 * a + 1], p);
+				if (boxBounds != null) {
+					boxBounds[b + 2 * a] = Math.min(boxBounds[b + 2 * a],
+							boxes[6 * i + 2 * a]);
+					boxBounds[b + 2 * a + 1] = Math.max(
+							boxBounds[b + 2 * a + 1], boxes[6 * i + 2 * a + 1]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Partially sort items[from] to items[to - 1] so that the item with the
+	 * kth smallest coordinate on axis is at k, with no larger coordinates
+	 * before it and no smaller ones after it
+	 */
+	private void select(int from, int to, int k, int axis) {
+		int lo = from;
+		int hi = to - 1;
+		while (hi > lo) {
+			final double pivot = points[3 * items[(lo + hi) >>> 1] + axis];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (points[3 * items[i] + axis] < pivot)
+					i++;
+				while (points[3 * items[j] + axis] > pivot)
+					j--;
+				if (i <= j) {
+					final int t = items[i];
+					items[i] = items[j];
+					items[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * Squared distance from a point to the nearest point of a box
+	 *
+	 * @param bounds
+	 *            array holding the box
+	 * @param b
+	 *            index of the box's x minimum
+	 */
+	private static double distanceSq(double x, double y, double z,
+			double[] bounds, int b) {
+		final double dx = Math.max(0, Math.max(bounds[b] - x, x - bounds[b + 1]));
+		final double dy = Math.max(0, Math.max(bounds[b + 2] - y, y
+				- bounds[b + 3]));
+		final double dz = Math.max(0, Math.max(bounds[b + 4] - z, z
+				- bounds[b + 5]));
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * Squared gap between two boxes; 0 if they touch or overlap
+	 */
+	private static double gapSq(double[] a, int aOffset, double[] b,
+			int bOffset) {
+		double sum = 0;
+		for (int i = 0; i < 6; i += 2) {
+			final double d = Math.max(0, Math.max(a[aOffset + i]
+					- b[bOffset + i + 1], b[bOffset + i] - a[aOffset + i + 1]));
+			sum += d * d;
+		}
+		return sum;
+	}
+
+	/**
+	 * Find the k items whose points are nearest a point
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param k
+	 *            number of neighbours to find
+	 * @param exclude
+	 *            item to leave out, e.g. the one whose neighbours are sought,
+	 *            or -1
+	 * @param neighbours
+	 *            array of at least k to put the items in, nearest first
+	 * @param distances
+	 *            array of at least k to put their distances in, or null
+	 * @return number of neighbours found, which is less than k only if the
+	 *         tree has fewer items
+	 */
+	public int getNearest(double x, double y, double z, int k, int exclude,
+			int[] neighbours, double[] distances) {
+		if (k < 1 || nItems == 0)
+			return 0;
+		// max-heap of the best k so far
+		final double[] heapD = new double[k];
+		final int[] heapI = new int[k];
+		final int size = nearest(0, x, y, z, k, exclude, heapD, heapI, 0);
+		// sort by popping the heap
+		for (int n = size - 1; n >= 0; n--) {
+			neighbours[n] = heapI[0];
+			if (distances != null)
+				distances[n] = Math.sqrt(heapD[0]);
+			heapD[0] = heapD[n];
+			heapI[0] = heapI[n];
+			siftDown(heapD, heapI, 0, n);
+		}
+		return size;
+	}
+
+	/**
+	 * Add the items of node's subtree to the heap if they are closer than its
+	 * worst
+	 *
+	 * @return new heap size
+	 */
+	private int nearest(int node, double x, double y, double z, int k,
+			int exclude, double[] heapD, int[] heapI, int size) {
+		if (size == k && distanceSq(x, y, z, pointBounds, 6 * node) >= heapD[0])
+			return size;
+		if (left[node] < 0) {
+			for (int n = start[node]; n < end[node]; n++) {
+				final int i = items[n];
+				if (i == exclude)
+					continue;
+				final double dx = sortedPoints[3 * n] - x;
+				final double dy = sortedPoints[3 * n + 1] - y;
+				final double dz = sortedPoints[3 * n + 2] - z;
+				final double d = dx * dx + dy * dy + dz * dz;
+				if (size < k) {
+					// sift up
+					int c = size++;
+					while (c > 0) {
+						final int parent = (c - 1) / 2;
+						if (heapD[parent] >= d)
+							break;
+						heapD[c] = heapD[parent];
+						heapI[c] = heapI[parent];
+						c = parent;
+					}
+					heapD[c] = d;
+					heapI[c] = i;
+				} else if (d < heapD[0]) {
+					heapD[0] = d;
+					heapI[0] = i;
+					siftDown(heapD, heapI, 0, size);
+				}
+			}
+			return size;
+		}
+		// nearer child first
+		final int l = left[node];
+		final int r = right[node];
+		if (distanceSq(x, y, z, pointBounds, 6 * l) <= distanceSq(x, y, z,
+				pointBounds, 6 * r)) {
+			size = nearest(l, x, y, z, k, exclude, heapD, heapI, size);
+			size = nearest(r, x, y, z, k, exclude, heapD, heapI, size);
+		} else {
+			size = nearest(r, x, y, z, k, exclude, heapD, heapI, size);
+			size = nearest(l, x, y, z, k, exclude, heapD, heapI, size);
+		}
+		return size;
+	}
+
+	private static void siftDown(double[] heapD, int[] heapI, int c, int size) {
+		final double d = heapD[c];
+		final int i = heapI[c];
+		while (true) {
+			int child = 2 * c + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && heapD[child + 1] > heapD[child])
+				child++;
+			if (heapD[child] <= d)
+				break;
+			heapD[c] = heapD[child];
+			heapI[c] = heapI[child];
+			c = child;
+		}
+		heapD[c] = d;
+		heapI[c] = i;
+	}
+
+	/**
+	 * Count the items whose points are within a distance of a point
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param radius
+	 * @param exclude
+	 *            item not to count, or -1
+	 * @return number of items with points no further than radius away
+	 */
+	public int countWithin(double x, double y, double z, double radius,
+			int exclude) {
+		if (nItems == 0)
+			return 0;
+		return within(0, x, y, z, radius * radius, exclude, null, 0);
+	}
+
+	/**
+	 * Find the items whose points are within a distance of a point
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param radius
+	 * @param exclude
+	 *            item to leave out, or -1
+	 * @return the items with points no further than radius away, in no
+	 *         particular order
+	 */
+	public int[] getWithin(double x, double y, double z, double radius,
+			int exclude) {
+		final int count = countWithin(x, y, z, radius, exclude);
+		int[] found = new int[count];
+		if (count > 0)
+			within(0, x, y, z, radius * radius, exclude, found, 0);
+		return found;
+	}
+
+	/**
+	 * Count, and optionally list, the items of node's subtree within the
+	 * radius
+	 *
+	 * @param found
+	 *            array to list items in from index n, or null
+	 * @return n plus the number found
+	 */
+	private int within(int node, double x, double y, double z,
+			double radiusSq, int exclude, int[] found, int n) {
+		if (distanceSq(x, y, z, pointBounds, 6 * node) > radiusSq)
+			return n;
+		if (left[node] < 0) {
+			for (int m = start[node]; m < end[node]; m++) {
+				final int i = items[m];
+				if (i == exclude)
+					continue;
+				final double dx = sortedPoints[3 * m] - x;
+				final double dy = sortedPoints[3 * m + 1] - y;
+				final double dz = sortedPoints[3 * m + 2] - z;
+				if (dx * dx + dy * dy + dz * dz <= radiusSq) {
+					if (found != null)
+						found[n] = i;
+					n++;
+				}
+			}
+			return n;
+		}
+		n = within(left[node], x, y, z, radiusSq, exclude, found, n);
+		return within(right[node], x, y, z, radiusSq, exclude, found, n);
+	}
+
+	/**
+	 * Find the item whose bounding box is nearest to an item's bounding box
+	 *
+	 * @param item
+	 * @param gap
+	 *            array whose first element receives the gap between the two
+	 *            boxes, 0 if they touch or overlap
+	 * @return nearest other item, or -1 if there is none
+	 */
+	public int getNearestBox(int item, double[] gap) {
+		if (boxes == null)
+			throw new IllegalStateException("Tree was built without boxes");
+		// best[0] is the squared gap, best[1] the item
+		double[] best = { Double.POSITIVE_INFINITY, -1 };
+		if (nItems > 0)
+			nearestBox(0, item, best);
+		gap[0] = Math.sqrt(best[0]);
+		return (int) best[1];
+	}
+
+	private void nearestBox(int node, int item, double[] best) {
+		if (gapSq(boxes, 6 * item, boxBounds, 6 * node) >= best[0])
+			return;
+		if (left[node] < 0) {
+			for (int n = start[node]; n < end[node]; n++) {
+				final int i = items[n];
+				if (i == item)
+					continue;
+				final double g = gapSq(boxes, 6 * item, sortedBoxes, 6 * n);
+				if (g < best[0]) {
+					best[0] = g;
+					best[1] = i;
+				}
+			}
+			return;
+		}
+		final int l = left[node];
+		final int r = right[node];
+		if (gapSq(boxes, 6 * item, boxBounds, 6 * l) <= gapSq(boxes, 6 * item,
+				boxBounds, 6 * r)) {
+			nearestBox(l, item, best);
+			nearestBox(r, item, best);
+		} else {
+			nearestBox(r, item, best);
+			nearestBox(l, item, best);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package org.doube.geometry;
+
+/**
+ * SymmetricEigen3 Copyright 2026 agent
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * <p>
+ * Eigenvalues and eigenvectors of real symmetric 3x3 matrices by cyclic
+ * Jacobi rotation. Matrices are read from and results written to packed
+ * arrays at a given offset, so that many small matrices such as inertia
+ * tensors can be solved without allocating a Matrix per solve.
+ * </p>
+ * <p>
+ * Results follow JAMA's EigenvalueDecomposition for symmetric matrices:
+ * eigenvalues are in ascending order and eigenvector <i>j</i> is column
+ * <i>j</i> of the row-major 3x3 matrix V. Each eigenvector is signed so that
+ * its largest component is positive.
+ * </p>
+ *
+ * @author agent
+ */
+public class SymmetricEigen3 {
+
+	/** Sweeps after which Jacobi iteration gives up */
+	private static final int MAX_SWEEPS = 50;
+
+	/**
+	 * Solve the symmetric matrix held in a[aOffset] to a[aOffset + 8],
+	 * row-major. Only the upper triangle is read.
+	 *
+	 * @param a
+	 *            array holding the matrix; not modified
+	 * @param aOffset
+	 *            index of the matrix's first element
+	 * @param values
+	 *            array to write 3 eigenvalues into
+	 * @param valuesOffset
+	 *            index of the first eigenvalue
+	 * @param vectors
+	 *            array to write the 3x3 row-major eigenvector matrix into
+	 * @param vectorsOffset
+	 *            index of V[0][0]
+	 */
+	public static void solve(double[] a, int aOffset, double[] values,
+			int valuesOffset, double[] vectors, int vectorsOffset) {
+		double a00 = a[aOffset], a01 = a[aOffset + 1], a02 = a[aOffset + 2];
+		double a11 = a[aOffset + 4], a12 = a[aOffset + 5];
+		double a22 = a[aOffset + 8];
+		double v00 = 1, v01 = 0, v02 = 0;
+		double v10 = 0, v11 = 1, v12 = 0;
+		double v20 = 0, v21 = 0, v22 = 1;
+
+		for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+			final double off = a01 * a01 + a02 * a02 + a12 * a12;
+			final double diag = a00 * a00 + a11 * a11 + a22 * a22;
+			if (off == 0 || off < 1e-32 * diag)
+				break;
+			double t, c, s, tau, x, y;
+
+			// rotate in the (0, 1) plane
+			if (a01 != 0) {
+				t = rotation(a00, a11, a01);
+				c = 1 / Math.sqrt(t * t + 1);
+				s = t * c;
+				tau = s / (1 + c);
+				a00 -= t * a01;
+				a11 += t * a01;
+				a01 = 0;
+				x = a02;
+				y = a12;
+				a02 = x - s * (y + tau * x);
+				a12 = y + s * (x - tau * y);
+				x = v00;
+				y = v01;
+				v00 = x - s * (y + tau * x);
+				v01 = y + s * (x - tau * y);
+				x = v10;
+				y = v11;
+				v10 = x - s * (y + tau * x);
+				v11 = y + s * (x - tau * y);
+				x = v20;
+				y = v21;
+				v20 = x - s * (y + tau * x);
+				v21 = y + s * (x - tau * y);
+			}
+
+			// rotate in the (0, 2) plane
+			if (a02 != 0) {
+				t = rotation(a00, a22, a02);
+				c = 1 / Math.sqrt(t * t + 1);
+				s = t * c;
+				tau = s / (1 + c);
+				a00 -= t * a02;
+				a22 += t * a02;
+				a02 = 0;
+				x = a01;
+				y = a12;
+				a01 = x - s * (y + tau * x);
+				a12 = y + s * (x - tau * y);
+				x = v00;
+				y = v02;
+				v00 = x - s * (y + tau * x);
+				v02 = y + s * (x - tau * y);
+				x = v10;
+				y = v12;
+				v10 = x - s * (y + tau * x);
+				v12 = y + s * (x - tau * y);
+				x = v20;
+				y = v22;
+				v20 = x - s * (y + tau * x);
+				v22 = y + s * (x - tau * y);
+			}
+
+			// rotate in the (1, 2) plane
+			if (a12 != 0) {
+				t = rotation(a11, a22, a12);
+				c = 1 / Math.sqrt(t * t + 1);
+				s = t * c;
+				tau = s / (1 + c);
+				a11 -= t * a12;
+				a22 += t * a12;
+				a12 = 0;
+				x = a01;
+				y = a02;
+				a01 = x - s * (y + tau * x);
+				a02 = y + s * (x - tau * y);
+				x = v01;
+				y = v02;
+				v01 = x - s * (y + tau * x);
+				v02 = y + s * (x - tau * y);
+				x = v11;
+				y = v12;
+				v11 = x - s * (y + tau * x);
+				v12 = y + s * (x - tau * y);
+				x = v21;
+				y = v22;
+				v21 = x - s * (y + tau * x);
+				v22 = y + s * (x - tau * y);
+			}
+		}
+
+		// write out in ascending order of eigenvalue
+		int i0 = 0, i1 = 1, i2 = 2;
+		double d0 = a00, d1 = a11, d2 = a22;
+		int ti;
+		double td;
+		if (d1 < d0) {
+			td = d0;
+			d0 = d1;
+			d1 = td;
+			ti = i0;
+			i0 = i1;
+			i1 = ti;
+		}
+		if (d2 < d1) {
+			td = d1;
+			d1 = d2;
+			d2 = td;
+			ti = i1;
+			i1 = i2;
+			i2 = ti;
+			if (d1 < d0) {
+				td = d0;
+				d0 = d1;
+				d1 = td;
+				ti = i0;
+				i0 = i1;
+				i1 = ti;
+			}
+		}
+		values[valuesOffset] = d0;
+		values[valuesOffset + 1] = d1;
+		values[valuesOffset + 2] = d2;
+		setColumn(vectors, vectorsOffset, 0, i0, v00, v01, v02, v10, v11,
+				v12, v20, v21, v22);
+		setColumn(vectors, vectorsOffset, 1, i1, v00, v01, v02, v10, v11,
+				v12, v20, v21, v22);
+		setColumn(vectors, vectorsOffset, 2, i2, v00, v01, v02, v10, v11,
+				v12, v20, v21, v22);
+	}
+
+	/**
+	 * Tangent of the Jacobi rotation angle that zeroes apq, taking the
+	 * smaller of the two possible angles
+	 *
+	 * @param app
+	 * @param aqq
+	 * @param apq
+	 * @return t
+	 */
+	private static double rotation(double app, double aqq, double apq) {
+		final double theta = (aqq - app) / (2 * apq);
+		final double t = 1 / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+		return theta < 0 ? -t : t;
+	}
+
+	/**
+	 * Copy column src of V into column dest of the output, flipping its sign
+	 * if necessary so that its largest component is positive
+	 */
+	private static void setColumn(double[] vectors, int offset, int dest,
+			int src, double v00, double v01, double v02, double v10,
+			double v11, double v12, double v20, double v21, double v22) {
+		double x, y, z;
+		if (src == 0) {
+			x = v00;
+			y = v10;
+			z = v20;
+		} else if (src == 1) {
+			x = v01;
+			y = v11;
+			z = v21;
+		} else {
+			x = v02;
+			y = v12;
+			z = v22;
+		}
+		double max = x;
+		if (Math.abs(y) > Math.abs(max))
+			max = y;
+		if (Math.abs(z) > Math.abs(max))
+			max = z;
+		if (max < 0) {
+			x = -x;
+			y = -y;
+			z = -z;
+		}
+		vectors[offset + dest] = x;
+		vectors[offset + 3 + dest] = y;
+		vectors[offset + 6 + dest] = z;
+	}
+}
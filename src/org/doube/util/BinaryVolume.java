@@ -0,0 +1,480 @@
+package org.doube.util;
+
+/**
+ * BinaryVolume
+ * Copyright 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+/**
+ * <p>
+ * Binary image stack held at one bit per voxel, for plugins that only need to
+ * know whether each voxel is foreground or background. It takes an eighth of
+ * the memory of an 8-bit stack and lets whole rows be processed 64 voxels at
+ * a time.
+ * </p>
+ * <p>
+ * Each slice is an array of long words. A row takes wordsPerRow words and
+ * voxel (x, y) is bit x &amp; 63 of word (y + 1) * wordsPerRow + x / 64, so
+ * that every slice has an empty row above row 0 and below row height - 1.
+ * Bits in the padding rows, and bits past the width in the last word of each
+ * row, are always 0, so kernels reading rows y - 1 and y + 1 need no bounds
+ * checks.
+ * </p>
+ *
+ * @author agent
+ *
+ */
+public class BinaryVolume {
+
+	private final int width;
+
+	private final int height;
+
+	private final int depth;
+
+	/** number of words in each row */
+	private final int wordsPerRow;
+
+	/** bits in use in the last word of each row */
+	private final long lastWordMask;
+
+	/** packed slices, (height + 2) * wordsPerRow words each */
+	private final long[][] slices;
+
+	/**
+	 * Create an empty volume
+	 *
+	 * @param width
+	 * @param height
+	 * @param depth
+	 */
+	public BinaryVolume(int width, int height, int depth) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.wordsPerRow = (width + 63) >> 6;
+		final int rem = width & 63;
+		this.lastWordMask = rem == 0 ? -1L : (1L << rem) - 1;
+		this.slices = new long[depth][(height + 2) * wordsPerRow];
+	}
+
+	/**
+	 * Pack an 8-bit stack, taking every non-zero pixel as foreground
+	 *
+	 * @param stack
+	 *            8-bit ImageStack
+	 */
+	public BinaryVolume(ImageStack stack) {
+		this(stack, 1, 255);
+	}
+
+	/**
+	 * Pack an 8-bit stack, taking pixels in a range of values as foreground
+	 *
+	 * @param stack
+	 *            8-bit ImageStack
+	 * @param min
+	 *            lowest pixel value that is foreground
+	 * @param max
+	 *            highest pixel value that is foreground
+	 */
+	public BinaryVolume(ImageStack stack, int min, int max) {
+		this(stack.getWidth(), stack.getHeight(), stack.getSize());
+		for (int z = 0; z < this.depth; z++) {
+			final Object pixels = stack.getPixels(z + 1);
+			if (!(pixels instanceof byte[]))
+				throw new IllegalArgumentException("Need an 8-bit stack");
+			packSlice((byte[]) pixels, min, max, this.slices[z]);
+		}
+	}
+
+	/**
+	 * Copy a volume
+	 *
+	 * @param volume
+	 */
+	public BinaryVolume(BinaryVolume volume) {
+		this(volume.width, volume.height, volume.depth);
+		for (int z = 0; z < this.depth; z++)
+			System.arraycopy(volume.slices[z], 0, this.slices[z], 0,
+					this.slices[z].length);
+	}
+
+	private void packSlice(final byte[] pixels, final int min, final int max,
+			final long[] packed) {
+		final int w = this.width;
+		for (int y = 0; y < this.height; y++) {
+			final int rowIndex = y * w;
+			final int rowWord = (y + 1) * this.wordsPerRow;
+			for (int word = 0; word < this.wordsPerRow; word++) {
+				final int x0 = word << 6;
+				final int nX = Math.min(64, w - x0);
+				long bits = 0;
+				for (int x = nX - 1; x >= 0; x--) {
+					final int v = pixels[rowIndex + x0 + x] & 0xff;
+					bits <<= 1;
+					if (v >= min && v <= max)
+						bits |= 1;
+				}
+				packed[rowWord + word] = bits;
+			}
+		}
+	}
+
+	public int getWidth() {
+		return this.width;
+	}
+
+	public int getHeight() {
+		return this.height;
+	}
+
+	public int getDepth() {
+		return this.depth;
+	}
+
+	/**
+	 * @return number of words in each row of a slice
+	 */
+	public int getWordsPerRow() {
+		return this.wordsPerRow;
+	}
+
+	/**
+	 * @return mask of the bits in the last word of each row that hold voxels
+	 */
+	public long getLastWordMask() {
+		return this.lastWordMask;
+	}
+
+	/**
+	 * Get a slice's words, for kernels that work on whole rows. The array is
+	 * the volume's own, so writes to it change the volume; callers must keep
+	 * the padding rows and the bits past the width 0.
+	 *
+	 * @param z
+	 *            slice number, starting at 0
+	 * @return (height + 2) * wordsPerRow words
+	 */
+	public long[] getSlice(int z) {
+		return this.slices[z];
+	}
+
+	/**
+	 * Get the index in a slice's words of the first word of a row
+	 *
+	 * @param y
+	 *            row, from -1 to height
+	 * @return (y + 1) * wordsPerRow
+	 */
+	public int getRowWord(int y) {
+		return (y + 1) * this.wordsPerRow;
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return true if (x, y, z) is foreground; false if it is background or
+	 *         outside the volume
+	 */
+	public boolean get(int x, int y, int z) {
+		if (x < 0 || x >= this.width || y < 0 || y >= this.height || z < 0
+				|| z >= this.depth)
+			return false;
+		return ((this.slices[z][(y + 1) * this.wordsPerRow + (x >> 6)] >>> x) & 1) != 0;
+	}
+
+	/**
+	 * Make (x, y, z) foreground
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void set(int x, int y, int z) {
+		this.slices[z][(y + 1) * this.wordsPerRow + (x >> 6)] |= 1L << x;
+	}
+
+	/**
+	 * Make (x, y, z) background
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void clear(int x, int y, int z) {
+		this.slices[z][(y + 1) * this.wordsPerRow + (x >> 6)] &= ~(1L << x);
+	}
+
+	/**
+	 * Count the foreground voxels
+	 *
+	 * @return number of foreground voxels
+	 */
+	public long count() {
+		long count = 0;
+		for (int z = 0; z < this.depth; z++) {
+			final long[] slice = this.slices[z];
+			for (int i = 0; i < slice.length; i++)
+				count += Long.bitCount(slice[i]);
+		}
+		return count;
+	}
+
+	/**
+	 * Find the next foreground voxel along a row, so that the foreground can
+	 * be visited without testing each background voxel
+	 *
+	 * @param x
+	 *            first column to look at
+	 * @param y
+	 * @param z
+	 * @return x coordinate of the first foreground voxel at or after x in row
+	 *         y of slice z, or -1 if there is none
+	 */
+	public int nextForeground(int x, int y, int z) {
+		if (x >= this.width)
+			return -1;
+		final long[] slice = this.slices[z];
+		final int rowWord = (y + 1) * this.wordsPerRow;
+		int word = x >> 6;
+		long bits = slice[rowWord + word] & (-1L << x);
+		while (bits == 0) {
+			word++;
+			if (word == this.wordsPerRow)
+				return -1;
+			bits = slice[rowWord + word];
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
+	}
+
+	/**
+	 * Check whether a box contains any foreground, a row of words at a time.
+	 * The box is clipped to the volume.
+	 *
+	 * @param x0
+	 *            first column
+	 * @param x1
+	 *            last column + 1
+	 * @param y0
+	 *            first row
+	 * @param y1
+	 *            last row + 1
+	 * @param z0
+	 *            first slice
+	 * @param z1
+	 *            last slice + 1
+	 * @return true if any voxel in the box is foreground
+	 */
+	public boolean containsForeground(int x0, int x1, int y0, int y1, int z0,
+			int z1) {
+		x0 = Math.max(0, x0);
+		x1 = Math.min(this.width, x1);
+		y0 = Math.max(0, y0);
+		y1 = Math.min(this.height, y1);
+		z0 = Math.max(0, z0);
+		z1 = Math.min(this.depth, z1);
+		if (x0 >= x1 || y0 >= y1 || z0 >= z1)
+			return false;
+		final int firstWord = x0 >> 6;
+		final int lastWord = (x1 - 1) >> 6;
+		final long firstMask = -1L << x0;
+		final long lastMask = -1L >>> (63 - ((x1 - 1) & 63));
+		for (int z = z0; z < z1; z++) {
+			final long[] slice = this.slices[z];
+			for (int y = y0; y < y1; y++) {
+				final int rowWord = (y + 1) * this.wordsPerRow;
+				if (firstWord == lastWord) {
+					if ((slice[rowWord + firstWord] & firstMask & lastMask) != 0)
+						return true;
+					continue;
+				}
+				if ((slice[rowWord + firstWord] & firstMask) != 0
+						|| (slice[rowWord + lastWord] & lastMask) != 0)
+					return true;
+				for (int word = firstWord + 1; word < lastWord; word++)
+					if (slice[rowWord + word] != 0)
+						return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the 3 &#215; 3 &#215; 3 neighbourhood of a voxel as a bit mask.
+	 * Voxels outside the volume are background.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return 27-bit mask in which bit (dz + 1) * 9 + (dy + 1) * 3 + (dx + 1)
+	 *         is set if (x + dx, y + dy, z + dz) is foreground, so bit 13 is
+	 *         the voxel itself
+	 */
+	public int getNeighbourhood(int x, int y, int z) {
+		int mask = 0;
+		for (int dz = -1; dz <= 1; dz++) {
+			final int zz = z + dz;
+			if (zz < 0 || zz >= this.depth)
+				continue;
+			final long[] slice = this.slices[zz];
+			for (int dy = -1; dy <= 1; dy++) {
+				final int bit = (dz + 1) * 9 + (dy + 1) * 3;
+				mask |= getTriple(slice, (y + dy + 1) * this.wordsPerRow, x) << bit;
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Get the voxels at x - 1, x and x + 1 in a row as bits 0, 1 and 2
+	 *
+	 * @param slice
+	 *            slice words
+	 * @param rowWord
+	 *            index of the row's first word
+	 * @param x
+	 * @return 3-bit mask
+	 */
+	private int getTriple(final long[] slice, final int rowWord, final int x) {
+		final int word = x >> 6;
+		final int bit = x & 63;
+		long bits = slice[rowWord + word];
+		if (bit > 0 && bit < 63)
+			return (int) (bits >>> (bit - 1)) & 7;
+		int triple = (int) (bits >>> bit) & 1;
+		triple <<= 1;
+		if (bit == 0) {
+			if (word > 0)
+				triple |= (int) (slice[rowWord + word - 1] >>> 63);
+			triple |= (int) ((bits >>> 1) & 1) << 2;
+		} else {
+			triple |= (int) ((bits >>> 62) & 1);
+			if (word + 1 < this.wordsPerRow)
+				triple |= (int) (slice[rowWord + word + 1] & 1) << 2;
+		}
+		return triple;
+	}
+
+	/**
+	 * Get the 6 face neighbours of a voxel as a bit mask. Voxels outside the
+	 * volume are background.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return 6-bit mask with bits for (x, y - 1), (x, y + 1), (x + 1, y), (x -
+	 *         1, y), (z + 1) and (z - 1), in that order from bit 0
+	 */
+	public int getFaceNeighbours(int x, int y, int z) {
+		int mask = 0;
+		if (get(x, y - 1, z))
+			mask |= 1;
+		if (get(x, y + 1, z))
+			mask |= 2;
+		if (get(x + 1, y, z))
+			mask |= 4;
+		if (get(x - 1, y, z))
+			mask |= 8;
+		if (get(x, y, z + 1))
+			mask |= 16;
+		if (get(x, y, z - 1))
+			mask |= 32;
+		return mask;
+	}
+
+	/**
+	 * Unpack the volume into a new 8-bit stack
+	 *
+	 * @param value
+	 *            pixel value to give foreground voxels
+	 * @return ImageStack with foreground = value and background = 0
+	 */
+	public ImageStack toStack(int value) {
+		ImageStack stack = new ImageStack(this.width, this.height);
+		for (int z = 0; z < this.depth; z++) {
+			byte[] pixels = new byte[this.width * this.height];
+			unpackSlice(z, (byte) value, pixels);
+			stack.addSlice("" + (z + 1), new ByteProcessor(this.width,
+					this.height, pixels, null));
+		}
+		return stack;
+	}
+
+	/**
+	 * Unpack the volume into an existing 8-bit stack of the same size,
+	 * overwriting all of its pixels
+	 *
+	 * @param stack
+	 *            8-bit ImageStack
+	 * @param value
+	 *            pixel value to give foreground voxels
+	 */
+	public void toStack(ImageStack stack, int value) {
+		for (int z = 0; z < this.depth; z++)
+			unpackSlice(z, (byte) value, (byte[]) stack.getPixels(z + 1));
+	}
+
+	/**
+	 * Pack an 8-bit slice into slice z, taking every non-zero pixel as
+	 * foreground
+	 *
+	 * @param z
+	 *            slice number, from 0
+	 * @param pixels
+	 *            width * height pixels
+	 */
+	public void setPixels(int z, byte[] pixels) {
+		packSlice(pixels, 1, 255, this.slices[z]);
+	}
+
+	/**
+	 * Unpack slice z into an 8-bit pixel array, overwriting all of its pixels
+	 *
+	 * @param z
+	 *            slice number, from 0
+	 * @param value
+	 *            pixel value to give foreground voxels
+	 * @param pixels
+	 *            width * height pixels
+	 */
+	public void getPixels(int z, int value, byte[] pixels) {
+		unpackSlice(z, (byte) value, pixels);
+	}
+
+	private void unpackSlice(final int z, final byte value,
+			final byte[] pixels) {
+		final long[] slice = this.slices[z];
+		final int w = this.width;
+		for (int y = 0; y < this.height; y++) {
+			final int rowIndex = y * w;
+			final int rowWord = (y + 1) * this.wordsPerRow;
+			for (int word = 0; word < this.wordsPerRow; word++) {
+				final int x0 = word << 6;
+				final int nX = Math.min(64, w - x0);
+				long bits = slice[rowWord + word];
+				for (int x = 0; x < nX; x++) {
+					pixels[rowIndex + x0 + x] = (bits & 1) != 0 ? value : 0;
+					bits >>>= 1;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package org.doube.util;
+
+/**
+ * NeighbourhoodCursor
+ * Copyright 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import ij.ImageStack;
+
+/**
+ * <p>
+ * Reads the 3 &#215; 3 &#215; 3 neighbourhood of voxels in an 8-bit stack
+ * without allocating anything per voxel. The cursor holds the pixel arrays of
+ * the slices above, at and below its position, and keeps the neighbourhood
+ * as a 27-bit mask of non-zero voxels in which bit (dz + 1) * 9 + (dy + 1) *
+ * 3 + (dx + 1) is (x + dx, y + dy, z + dz), the order of Skeletonize3D's
+ * neighbourhood arrays and of {@link BinaryVolume#getNeighbourhood(int, int,
+ * int)}. Moving one voxel along x, y or z shifts the mask and only reads the
+ * 9 voxels that come into the neighbourhood; other moves read all 27, and
+ * slices are only fetched from the stack when the cursor changes slice.
+ * </p>
+ * <p>
+ * Voxels outside the stack are 0. Pixels written other than through
+ * {@link #set(int, int, int, byte)} are not seen until the cursor is
+ * {@link #reset()}. A cursor is not thread safe.
+ * </p>
+ *
+ * @author agent
+ *
+ */
+public class NeighbourhoodCursor {
+
+	/** 27-bit mask of the whole neighbourhood */
+	private static final int CUBE = (1 << 27) - 1;
+
+	/** neighbourhood masks without the voxels at dx = +1 and dy = +1 */
+	private static final int NOT_X2, NOT_Y2;
+
+	/** neighbourhood indices at dx = +1, dy = +1 and dz = +1 */
+	private static final int[] X2 = { 2, 5, 8, 11, 14, 17, 20, 23, 26 };
+
+	private static final int[] Y2 = { 6, 7, 8, 15, 16, 17, 24, 25, 26 };
+
+	private static final int[] Z2 = { 18, 19, 20, 21, 22, 23, 24, 25, 26 };
+
+	static {
+		int x2 = 0, y2 = 0;
+		for (int i = 0; i < 9; i++) {
+			x2 |= 1 << X2[i];
+			y2 |= 1 << Y2[i];
+		}
+		NOT_X2 = CUBE & ~x2;
+		NOT_Y2 = CUBE & ~y2;
+	}
+
+	private final ImageStack stack;
+
+	private final int width;
+
+	private final int height;
+
+	private final int depth;
+
+	/** pixels of slices z - 1, z and z + 1, null outside the stack */
+	private final byte[][] planes = new byte[3][];
+
+	/** slice that planes are centred on, or -2 if none */
+	private int planeZ = -2;
+
+	/** position of mask */
+	private int x, y, z;
+
+	/** neighbourhood of (x, y, z), if valid */
+	private int mask;
+
+	private boolean valid = false;
+
+	/**
+	 * @param stack
+	 *            8-bit ImageStack
+	 */
+	public NeighbourhoodCursor(ImageStack stack) {
+		this.stack = stack;
+		this.width = stack.getWidth();
+		this.height = stack.getHeight();
+		this.depth = stack.getSize();
+	}
+
+	/**
+	 * Move the cursor to a voxel
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 *            slice number, from 0
+	 * @return 27-bit mask of the voxel's non-zero neighbours, with bit 13
+	 *         the voxel itself
+	 */
+	public int moveTo(int x, int y, int z) {
+		if (this.valid && z == this.z) {
+			if (y == this.y) {
+				if (x == this.x)
+					return this.mask;
+				if (x == this.x + 1) {
+					this.x = x;
+					this.mask = ((this.mask >>> 1) & NOT_X2) | read(X2);
+					return this.mask;
+				}
+			} else if (x == this.x && y == this.y + 1) {
+				this.y = y;
+				this.mask = ((this.mask >>> 3) & NOT_Y2) | read(Y2);
+				return this.mask;
+			}
+		} else if (this.valid && x == this.x && y == this.y
+				&& z == this.z + 1) {
+			this.z = z;
+			loadPlanes(z);
+			this.mask = (this.mask >>> 9) | read(Z2);
+			return this.mask;
+		}
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		loadPlanes(z);
+		int m = 0;
+		for (int i = 0; i < 27; i++) {
+			if (get(i) != 0)
+				m |= 1 << i;
+		}
+		this.mask = m;
+		this.valid = true;
+		return m;
+	}
+
+	/**
+	 * Get the number of non-zero neighbours of a voxel, not counting the
+	 * voxel itself
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 *            slice number, from 0
+	 * @return number of non-zero voxels in the 26-neighbourhood
+	 */
+	public int getNumberOfNeighbors(int x, int y, int z) {
+		return Integer.bitCount(moveTo(x, y, z) & ~(1 << 13));
+	}
+
+	/**
+	 * Get the value of a voxel in the neighbourhood of the cursor's position
+	 *
+	 * @param i
+	 *            neighbourhood index, (dz + 1) * 9 + (dy + 1) * 3 + (dx + 1)
+	 * @return pixel value, or 0 if outside the stack
+	 */
+	public byte get(int i) {
+		final byte[] plane = this.planes[i / 9];
+		final int xx = this.x + i % 3 - 1;
+		final int yy = this.y + (i / 3) % 3 - 1;
+		if (plane == null || xx < 0 || xx >= this.width || yy < 0
+				|| yy >= this.height)
+			return 0;
+		return plane[yy * this.width + xx];
+	}
+
+	/**
+	 * Set a voxel's value, keeping the cursor's neighbourhood up to date.
+	 * Voxels outside the stack are ignored.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 *            slice number, from 0
+	 * @param value
+	 *            pixel value
+	 */
+	public void set(int x, int y, int z, byte value) {
+		if (x < 0 || x >= this.width || y < 0 || y >= this.height || z < 0
+				|| z >= this.depth)
+			return;
+		final int dz = z - this.planeZ;
+		final byte[] pixels = dz >= -1 && dz <= 1 ? this.planes[dz + 1]
+				: (byte[]) this.stack.getPixels(z + 1);
+		pixels[y * this.width + x] = value;
+		final int dx = x - this.x;
+		final int dy = y - this.y;
+		if (this.valid && z - this.z >= -1 && z - this.z <= 1 && dy >= -1
+				&& dy <= 1 && dx >= -1 && dx <= 1) {
+			final int bit = 1 << ((z - this.z + 1) * 9 + (dy + 1) * 3 + dx + 1);
+			if (value != 0)
+				this.mask |= bit;
+			else
+				this.mask &= ~bit;
+		}
+	}
+
+	/**
+	 * Forget the cached neighbourhood, so that the next move reads all of it
+	 * from the stack again
+	 */
+	public void reset() {
+		this.valid = false;
+		this.planeZ = -2;
+	}
+
+	/**
+	 * Get the slices around z, sliding the ones already held where possible
+	 *
+	 * @param z
+	 */
+	private void loadPlanes(int z) {
+		if (z == this.planeZ)
+			return;
+		if (z == this.planeZ + 1) {
+			this.planes[0] = this.planes[1];
+			this.planes[1] = this.planes[2];
+			this.planes[2] = getPlane(z + 1);
+		} else {
+			for (int p = 0; p < 3; p++)
+				this.planes[p] = getPlane(z + p - 1);
+		}
+		this.planeZ = z;
+	}
+
+	private byte[] getPlane(int z) {
+		if (z < 0 || z >= this.depth)
+			return null;
+		return (byte[]) this.stack.getPixels(z + 1);
+	}
+
+	/**
+	 * @param indices
+	 *            neighbourhood indices
+	 * @return mask of the non-zero voxels among indices
+	 */
+	private int read(final int[] indices) {
+		int m = 0;
+		for (int i = 0; i < indices.length; i++) {
+			if (get(indices[i]) != 0)
+				m |= 1 << indices[i];
+		}
+		return m;
+	}
+}
@@ -0,0 +1,193 @@
+package org.doube.util;
+
+/**
+ * UnionFind
+ * Copyright 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * <p>
+ * Disjoint-set forest for recording equivalences between provisional particle
+ * labels.
+ * </p>
+ * <p>
+ * Label 0 is reserved for voxels that are not in the phase being labelled, so
+ * the first label handed out by {@link #newLabel()} is 1. Sets are always
+ * rooted at their smallest member, which means that compacting the roots in
+ * ascending order numbers particles in the order in which they are first met
+ * in a raster scan.
+ * </p>
+ * <p>
+ * The table also keeps a running voxel count for each label, so that
+ * particle sizes are known as soon as the equivalences are resolved.
+ * </p>
+ *
+ * @author agent
+ *
+ */
+public class UnionFind {
+
+	/** parent of each label; a label is a root if parent[label] == label */
+	private int[] parent;
+
+	/** voxels counted against each label, whether or not it is a root */
+	private long[] size;
+
+	/** number of labels issued so far, including the reserved label 0 */
+	private int nLabels;
+
+	public UnionFind() {
+		this(1024);
+	}
+
+	/**
+	 * @param capacity
+	 *            initial number of labels to allocate space for
+	 */
+	public UnionFind(int capacity) {
+		this.parent = new int[Math.max(2, capacity)];
+		this.size = new long[parent.length];
+		this.nLabels = 1;
+	}
+
+	/**
+	 * Issue a new label in its own set
+	 *
+	 * @return the new label
+	 */
+	public int newLabel() {
+		if (nLabels == parent.length)
+			grow();
+		parent[nLabels] = nLabels;
+		size[nLabels] = 0;
+		return nLabels++;
+	}
+
+	/**
+	 * Count voxels as belonging to label
+	 *
+	 * @param label
+	 * @param n
+	 *            number of voxels
+	 */
+	public void addSize(int label, long n) {
+		size[label] += n;
+	}
+
+	/**
+	 * @param label
+	 * @return number of voxels counted against label itself, not including
+	 *         the rest of its set
+	 */
+	public long getSize(int label) {
+		return size[label];
+	}
+
+	/**
+	 * Find the root of the set containing label, halving the path on the way
+	 * up
+	 *
+	 * @param label
+	 * @return smallest label in the set
+	 */
+	public int find(int label) {
+		final int[] p = this.parent;
+		while (p[label] != label) {
+			p[label] = p[p[label]];
+			label = p[label];
+		}
+		return label;
+	}
+
+	/**
+	 * Merge the sets containing labels a and b
+	 *
+	 * @param a
+	 * @param b
+	 * @return root of the merged set, which is its smallest label
+	 */
+	public int union(int a, int b) {
+		final int rootA = find(a);
+		final int rootB = find(b);
+		if (rootA == rootB)
+			return rootA;
+		if (rootA < rootB) {
+			parent[rootB] = rootA;
+			return rootA;
+		}
+		parent[rootA] = rootB;
+		return rootB;
+	}
+
+	/**
+	 * @return number of labels issued, including the reserved label 0
+	 */
+	public int getNLabels() {
+		return nLabels;
+	}
+
+	/**
+	 * Resolve all equivalences into a lookup table of consecutive labels.
+	 * Background (0) maps to 0 and each set is numbered 1, 2, 3... in order of
+	 * its smallest label.
+	 *
+	 * @return int[] mapping each provisional label to its final label
+	 */
+	public int[] getCompactLabels() {
+		int[] map = new int[nLabels];
+		int next = 1;
+		for (int label = 1; label < nLabels; label++) {
+			final int root = find(label);
+			if (root == label)
+				map[label] = next++;
+			else
+				map[label] = map[root];
+		}
+		return map;
+	}
+
+	/**
+	 * Total the voxel counts of each set
+	 *
+	 * @param map
+	 *            lookup table from {@link #getCompactLabels()}
+	 * @return long[] voxel count of each final label; element 0 is 0
+	 */
+	public long[] getCompactSizes(int[] map) {
+		int nSets = 0;
+		for (int label = 1; label < nLabels; label++)
+			nSets = Math.max(nSets, map[label]);
+		long[] sizes = new long[nSets + 1];
+		for (int label = 1; label < nLabels; label++)
+			sizes[map[label]] += size[label];
+		return sizes;
+	}
+
+	private void grow() {
+		final int length = parent.length;
+		int newLength = length + (length >> 1);
+		if (newLength < 0 || newLength > Integer.MAX_VALUE - 8)
+			newLength = Integer.MAX_VALUE - 8;
+		if (newLength <= length)
+			throw new IllegalStateException("Too many particle labels");
+		int[] newParent = new int[newLength];
+		System.arraycopy(parent, 0, newParent, 0, length);
+		parent = newParent;
+		long[] newSize = new long[newLength];
+		System.arraycopy(size, 0, newSize, 0, length);
+		size = newSize;
+	}
+}